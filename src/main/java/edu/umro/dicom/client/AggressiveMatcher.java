@@ -0,0 +1,303 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Find and replace all of the values used for aggressive anonymization in a
+ * single pass over a text value, ignoring case.
+ *
+ * The values are compiled into an Aho-Corasick automaton that is scanned
+ * from right to left to find the longest value starting at each position.
+ * Values are then replaced from left to right, where matches do not overlap
+ * and the longest match wins when several start at the same position.
+ * Replacement text is never searched again.
+ *
+ * Instances do not change after they are built, so they may be shared by
+ * threads.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class AggressiveMatcher {
+
+    /** The values to replace and their replacements, as given to the constructor. */
+    private final HashMap<String, String> replaceList;
+
+    /** Lower case values to search for. */
+    private final String[] keyList;
+
+    /** Replacement for each value. */
+    private final String[] replacementList;
+
+    /** Symbol for each ASCII character, or -1 if no value contains it. */
+    private final int[] asciiSymbol = new int[128];
+
+    /** Symbol for each non-ASCII character that appears in a value. */
+    private final HashMap<Character, Integer> otherSymbol = new HashMap<Character, Integer>();
+
+    /** Number of different characters in the values. */
+    private final int symbolCount;
+
+    /** Next state for each state and symbol, with failures already resolved. */
+    private final int[] transition;
+
+    /** Index of the longest value that the text read so far ends with, or -1 for each state. */
+    private final int[] longestKey;
+
+    /**
+     * Build a matcher.
+     *
+     * @param replaceList
+     *            Values (in lower case) and their replacements.
+     */
+    public AggressiveMatcher(Map<String, String> replaceList) {
+        this.replaceList = new HashMap<String, String>(replaceList);
+        ArrayList<String> keys = new ArrayList<String>();
+        for (String key : replaceList.keySet()) {
+            if ((key != null) && (key.length() > 0)) keys.add(key);
+        }
+        keyList = keys.toArray(new String[keys.size()]);
+        replacementList = new String[keyList.length];
+        for (int k = 0; k < keyList.length; k++) {
+            String replacement = replaceList.get(keyList[k]);
+            replacementList[k] = (replacement == null) ? "" : replacement;
+        }
+
+        // assign a symbol to each character used in the values
+        Arrays.fill(asciiSymbol, -1);
+        int count = 0;
+        for (String key : keyList) {
+            for (int c = 0; c < key.length(); c++) {
+                char ch = Character.toLowerCase(key.charAt(c));
+                if (symbol(ch) == -1) {
+                    if (ch < asciiSymbol.length) asciiSymbol[ch] = count;
+                    else otherSymbol.put(ch, count);
+                    count++;
+                }
+            }
+        }
+        symbolCount = Math.max(1, count);
+
+        // build a trie of the reversed values
+        int maxStates = 1;
+        for (String key : keyList) {
+            maxStates += key.length();
+        }
+        int[] trie = new int[maxStates * symbolCount];
+        Arrays.fill(trie, -1);
+        int[] terminal = new int[maxStates];
+        Arrays.fill(terminal, -1);
+        int stateCount = 1;
+        for (int k = 0; k < keyList.length; k++) {
+            String key = keyList[k];
+            int state = 0;
+            for (int c = key.length() - 1; c >= 0; c--) {
+                int s = symbol(Character.toLowerCase(key.charAt(c)));
+                int next = trie[state * symbolCount + s];
+                if (next == -1) {
+                    next = stateCount++;
+                    trie[state * symbolCount + s] = next;
+                }
+                state = next;
+            }
+            // keep the first of any duplicates
+            if (terminal[state] == -1) terminal[state] = k;
+        }
+
+        // add failure transitions breadth first
+        transition = new int[stateCount * symbolCount];
+        longestKey = new int[stateCount];
+        int[] failure = new int[stateCount];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        longestKey[0] = -1;
+        for (int s = 0; s < symbolCount; s++) {
+            int next = trie[s];
+            if (next == -1) {
+                transition[s] = 0;
+            }
+            else {
+                transition[s] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            // a state is longer than its failure state, so if it is a value then it is the longest
+            longestKey[state] = (terminal[state] != -1) ? terminal[state] : longestKey[failure[state]];
+            for (int s = 0; s < symbolCount; s++) {
+                int next = trie[state * symbolCount + s];
+                if (next == -1) {
+                    transition[state * symbolCount + s] = transition[failure[state] * symbolCount + s];
+                }
+                else {
+                    transition[state * symbolCount + s] = next;
+                    failure[next] = transition[failure[state] * symbolCount + s];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the symbol for a lower case character.
+     *
+     * @return Symbol, or -1 if the character does not appear in any value.
+     */
+    private int symbol(char ch) {
+        if (ch < asciiSymbol.length) return asciiSymbol[ch];
+        Integer s = otherSymbol.get(ch);
+        return (s == null) ? -1 : s;
+    }
+
+    /**
+     * Get the values and replacements that this matcher was built with.
+     *
+     * @return Values and their replacements.
+     */
+    public HashMap<String, String> getReplaceList() {
+        return replaceList;
+    }
+
+    /**
+     * Replace all of the values found in the given text.
+     *
+     * @param text
+     *            Text to search.
+     *
+     * @return The text with values replaced, or the same instance if no
+     *         values were found.
+     */
+    public String replace(String text) {
+        if ((keyList.length == 0) || (text == null)) return text;
+
+        // find the longest value starting at each position
+        int length = text.length();
+        int[] match = null;
+        int state = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            int s = symbol(Character.toLowerCase(text.charAt(i)));
+            state = (s == -1) ? 0 : transition[state * symbolCount + s];
+            int k = longestKey[state];
+            if (k != -1) {
+                if (match == null) {
+                    match = new int[length];
+                    Arrays.fill(match, -1);
+                }
+                match[i] = k;
+            }
+        }
+        if (match == null) return text;
+
+        StringBuilder result = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            int k = match[i];
+            if (k == -1) {
+                result.append(text.charAt(i));
+                i++;
+            }
+            else {
+                result.append(replacementList[k]);
+                i += keyList[k].length();
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * The replacement loop that was used before this class, for comparison.
+     * It failed when a value was replaced near the end of the text by
+     * something shorter, which left the text unchanged.
+     */
+    private static String replaceByLoop(String originalValue, HashMap<String, String> aggressiveReplaceList) {
+        String newValue = originalValue;
+        try {
+            for (String aggressiveValue : aggressiveReplaceList.keySet()) {
+                int count = 0;
+                int start;
+                int finish = 0;
+                while (((start = newValue.substring(finish).toLowerCase().indexOf(aggressiveValue)) != -1) && (count < 100)) {
+                    start += finish;
+                    finish = start + aggressiveValue.length();
+                    newValue = newValue.substring(0, start) + aggressiveReplaceList.get(aggressiveValue) + newValue.substring(finish);
+                    count++;
+                }
+            }
+        }
+        catch (StringIndexOutOfBoundsException e) {
+            return originalValue;
+        }
+        return newValue;
+    }
+
+    /**
+     * Benchmark against the previous replacement loop. For testing only.
+     *
+     * @param args
+     *            Optional number of values to replace and number of passes.
+     */
+    public static void main(String[] args) {
+        int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        int passes = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+        HashMap<String, String> replaceList = new HashMap<String, String>();
+        String[] names = { "smith", "johnson", "williams", "brown", "jones", "miller", "davis", "garcia", "rodriguez", "wilson" };
+        for (int k = 0; k < keyCount; k++) {
+            replaceList.put(names[k % names.length] + ((k < names.length) ? "" : Integer.toString(k)), "anon");
+        }
+        String[] values = {
+                "Referred by Dr. Smith for follow up of JOHNSON, Mary",
+                "CT CHEST W/O CONTRAST",
+                "Plan for Garcia-Rodriguez 12345678 revised by Wilson",
+                "RT Structure Set for patient Brown^Jones",
+                "Head and neck IMRT, 70 Gy in 35 fractions, 2 Gy per fraction" };
+
+        AggressiveMatcher matcher = new AggressiveMatcher(replaceList);
+        for (String value : values) {
+            System.out.println(value + "\n    matcher: " + matcher.replace(value) + "\n    loop:    " + replaceByLoop(value, replaceList));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int total = 0;
+            for (int p = 0; p < passes; p++) {
+                for (String value : values) {
+                    total += replaceByLoop(value, replaceList).length();
+                }
+            }
+            long loopTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int p = 0; p < passes; p++) {
+                for (String value : values) {
+                    total -= matcher.replace(value).length();
+                }
+            }
+            long matcherTime = System.nanoTime() - start;
+
+            System.out.println(keyCount + " values, " + (passes * values.length) + " replacements:  loop: " + (loopTime / 1000000) + " ms    matcher: "
+                    + (matcherTime / 1000000) + " ms    speedup: " + String.format("%.1f", (double) loopTime / Math.max(1, matcherTime)) + "    check: " + total);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package edu.umro.dicom.client;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
 /*
  * Copyright 2012 Regents of the University of Michigan
@@ -24,12 +25,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeFactory;
@@ -40,11 +40,8 @@ import com.pixelmed.dicom.SequenceAttribute;
 import com.pixelmed.dicom.SequenceItem;
 import com.pixelmed.dicom.TagFromName;
 import com.pixelmed.dicom.UnknownAttribute;
-import com.pixelmed.dicom.ValueRepresentation;
 
 import edu.umro.util.Log;
-import edu.umro.util.Utility;
-import edu.umro.util.XML;
 
 /**
  * Represent a patient ID - UID combination
@@ -71,6 +68,14 @@ class Uid {
         return originalPatientId;
     }
 
+    public String getAnonymizedPatientId() {
+        return anonymizedPatientId;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
     public Uid(String anonymizedPatientId, String uid, String originalPatientId) {
         this.anonymizedPatientId = anonymizedPatientId;
         this.uid = uid;
@@ -93,11 +98,53 @@ public class Anonymize {
 
     private static HashSet<String> patientList = new HashSet<String>();
 
-    private static HashMap<Uid, String> uidHistory = new HashMap<Uid, String>();
+    /** Anonymized UID for each patient ID - UID combination. */
+    private static ConcurrentHashMap<Uid, String> uidHistory = new ConcurrentHashMap<Uid, String>();
+
+    /** Number of locks used to translate UIDs. */
+    private static final int UID_LOCK_COUNT = 64;
+
+    /**
+     * Locks for making new UIDs. Each patient ID - UID combination is guarded
+     * by one of these, so that different UIDs can be translated at the same
+     * time but a new UID is only made once for each combination.
+     */
+    private static final Object[] uidLockList = new Object[UID_LOCK_COUNT];
+
+    static {
+        for (int l = 0; l < uidLockList.length; l++) {
+            uidLockList[l] = new Object();
+        }
+    }
+
+    /** Preloaded UIDs that are searched on disk, most recently preloaded first. */
+    private static final CopyOnWriteArrayList<UidMappingFile> mappingFileList = new CopyOnWriteArrayList<UidMappingFile>();
+
+    /**
+     * If not null, new UIDs are derived from a keyed hash of the original
+     * patient ID and UID using this key instead of being generated and
+     * remembered.
+     */
+    private static volatile String uidHashKey = null;
+
+    /** Anonymized patient ID for each original patient ID that has been given one. */
+    private static final ConcurrentHashMap<String, String> patientIdHistory = new ConcurrentHashMap<String, String>();
+
+    /** Original patient ID for each series that was completely anonymized in a journaled run, by series key. */
+    private static final ConcurrentHashMap<String, String> completedSeriesList = new ConcurrentHashMap<String, String>();
+
+    /** If not null, new UIDs and patient IDs are recorded here so that an interrupted run can be resumed. */
+    private static volatile UidJournal journal = null;
+
+    /** True once the hook that syncs the journal at shutdown has been added. Guarded by this class. */
+    private static boolean journalHookAdded = false;
 
     /** Template to be used to generate anonymous patient IDs. Use a default ID unless it is overridden. */
     private static String template = "$######";
 
+    /** Generates patient IDs from the template. Guarded by this class. */
+    private static PatientIdGenerator patientIdGenerator = null;
+
     /**
      * Set the template.
      * 
@@ -110,11 +157,58 @@ public class Anonymize {
         }
     }
 
+    /**
+     * Set the key used to derive anonymized UIDs. With a key, the same
+     * original patient ID and UID are always given the same anonymized UID,
+     * in any process that uses the same key, and nothing is remembered.
+     * Preloaded UIDs still take precedence.
+     * 
+     * @param key
+     *            Secret key, or null to generate and remember UIDs.
+     * 
+     * @throws IllegalArgumentException
+     *             If there is a key but the root UID is so long that hashed
+     *             UIDs would have too few digits to be unique.
+     */
+    public static void setUidHashKey(String key) {
+        key = ((key != null) && (key.length() > 0)) ? key : null;
+        if ((key != null) && (Util.getHashedUidDigitCount() < Util.MIN_UID_HASH_DIGITS)) {
+            throw new IllegalArgumentException("The root UID is too long to derive UIDs from a key.  It leaves room for " + Util.getHashedUidDigitCount()
+                    + " digits, but at least " + Util.MIN_UID_HASH_DIGITS + " are needed.");
+        }
+        uidHashKey = key;
+    }
+
     /**
      * Remove all anonymizing history.
      */
     public static void clearHistory() {
         uidHistory.clear();
+        mappingFileList.clear();
+        patientIdHistory.clear();
+        completedSeriesList.clear();
+        UidJournal j = journal;
+        if (j != null) j.clear();
+    }
+
+    private static boolean isSamePatient(String patientId, String other) {
+        return (patientId == null) ? (other == null) : patientId.equalsIgnoreCase(other);
+    }
+
+    /**
+     * Remove the remembered history of the given patient, but not what was
+     * preloaded from mapping files.
+     */
+    private static void forgetPatient(String patientId) {
+        ArrayList<Uid> removeList = new ArrayList<Uid>();
+        for (Uid uid : uidHistory.keySet())
+            if (isSamePatient(patientId, uid.getOriginalPatientId())) removeList.add(uid);
+        for (Uid uid : removeList)
+            uidHistory.remove(uid);
+        for (String originalPatientId : patientIdHistory.keySet())
+            if (isSamePatient(patientId, originalPatientId)) patientIdHistory.remove(originalPatientId);
+        for (Map.Entry<String, String> series : completedSeriesList.entrySet())
+            if (isSamePatient(patientId, series.getValue())) completedSeriesList.remove(series.getKey());
     }
 
     /**
@@ -127,75 +221,205 @@ public class Anonymize {
      * 
      */
     public static void clearPatientHistory(String patientId) {
-        ArrayList<Uid> removeList = new ArrayList<Uid>();
-        for (Uid uid : uidHistory.keySet())
-            if (uid.getOriginalPatientId().equalsIgnoreCase(patientId)) removeList.add(uid);
-        for (Uid uid : removeList)
-            uidHistory.remove(uid);
+        forgetPatient(patientId);
+        for (UidMappingFile mappingFile : mappingFileList)
+            mappingFile.ignorePatient(patientId);
+        UidJournal j = journal;
+        if (j != null) j.forgetPatient(patientId);
     }
 
-    private static String genId() {
-        StringBuffer patientId = new StringBuffer();
-        char[] tmpl = template.toCharArray();
-        int t = 0;
-        Random random = new Random();
-        while (t < tmpl.length) {
-            switch (tmpl[t]) {
-            case '*':
-                int r = random.nextInt(36);
-                if (r < 10) {
-                    patientId.append((char) ('0' + r));
-                }
-                else {
-                    patientId.append((char) ('A' + (r - 10)));
-                }
-                break;
-            case '?':
-                patientId.append((char) ('A' + random.nextInt(26)));
-                break;
-            case '#':
-                patientId.append((char) ('0' + random.nextInt(10)));
-                break;
-            case '%':
-                t++;
-                if (t <= (tmpl.length - 1)) {
-                    patientId.append(tmpl[t]);
-                }
-                break;
-            default:
-                patientId.append(tmpl[t]);
-                break;
+    /**
+     * Open a journal that new UIDs and patient IDs are recorded in, after
+     * restoring the history that it already holds. Running again with the
+     * same journal after being interrupted gives the same patient IDs and
+     * UIDs, and series that were completed can be skipped. This should be
+     * done before preloading or anonymizing anything.
+     * 
+     * @param file
+     *            Journal file, which is created if it does not exist.
+     * 
+     * @throws IOException
+     *             If the journal can not be read or written.
+     */
+    public static synchronized void openJournal(File file) throws IOException {
+        closeJournal();
+        final int[] count = { 0, 0 };
+        UidJournal.Handler handler = new UidJournal.Handler() {
+            public void uid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) {
+                uidHistory.put(new Uid(anonymizedPatientId, originalUid, originalPatientId), anonymizedUid);
+                count[0]++;
+            }
+
+            public void patient(String originalPatientId, String anonymizedPatientId) {
+                patientIdHistory.put(originalPatientId, anonymizedPatientId);
+                patientList.add(anonymizedPatientId);
+                count[1]++;
+            }
+
+            public void forgetPatient(String originalPatientId) {
+                Anonymize.forgetPatient(originalPatientId);
+            }
+
+            public void clear() {
+                uidHistory.clear();
+                patientIdHistory.clear();
+                completedSeriesList.clear();
             }
-            t++;
+
+            public void series(String originalPatientId, String seriesKey) {
+                completedSeriesList.put(seriesKey, originalPatientId);
+            }
+        };
+        UidJournal j = UidJournal.open(file, handler, ClientConfig.getInstance().getUidJournalSyncInterval());
+        if (!journalHookAdded) {
+            // one hook syncs whichever journal is open at shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    UidJournal j = journal;
+                    if (j == null) return;
+                    try {
+                        j.sync();
+                    }
+                    catch (IOException e) {
+                        Log.get().severe("Unable to sync UID journal " + j.getFile().getAbsolutePath() + " : " + Log.fmtEx(e));
+                    }
+                }
+            }, "UidJournalShutdown"));
+            journalHookAdded = true;
         }
-        return patientId.toString();
+        journal = j;
+        Log.get().info("Restored " + count[1] + " patient IDs, " + count[0] + " UIDs and " + completedSeriesList.size() + " completed series from UID journal "
+                + file.getAbsolutePath());
     }
 
-    public synchronized static String makeUniquePatientId() {
-        final int MAX_TRIES = 100;
-        String patientId = null;
-        int tries = 0;
-        while ((patientId == null) && (++tries < MAX_TRIES)) {
-            String patId = genId();
-            if (!patientList.contains(patId)) {
-                patientList.add(patId);
-                patientId = patId;
-                return patientId;
-            }
+    /**
+     * Write everything to the journal, compact it, and stop using it. Does
+     * nothing if there is no journal.
+     */
+    public static synchronized void closeJournal() {
+        UidJournal j = journal;
+        if (j == null) return;
+        journal = null;
+        try {
+            j.close();
+        }
+        catch (IOException e) {
+            Log.get().severe("Unable to close UID journal " + j.getFile().getAbsolutePath() + " : " + Log.fmtEx(e));
         }
-        throw new RuntimeException("Unable to generate unique patient ID with template: " + template + "  Last Id generated: " + patientId);
     }
 
-    private static String establishNewPatientId(AttributeList attributeList) {
-        Attribute patientAttribute = attributeList.get(TagFromName.PatientID);
-        String patientId = null;
-        if (patientAttribute != null) {
-            patientId = patientAttribute.getSingleStringValueOrNull();
+    /**
+     * Determine whether new UIDs and patient IDs are being recorded in a
+     * journal.
+     * 
+     * @return True if a journal is open.
+     */
+    public static boolean isJournalOpen() {
+        return journal != null;
+    }
+
+    /**
+     * Get the anonymized patient ID that was given to an original patient
+     * ID, including by earlier runs with the same journal.
+     * 
+     * @param originalPatientId
+     *            Patient ID before anonymization.
+     * 
+     * @return Anonymized patient ID, or null if none has been given.
+     */
+    public static String getPatientId(String originalPatientId) {
+        return patientIdHistory.get(originalPatientId);
+    }
+
+    /**
+     * Remember the anonymized patient ID given to an original patient ID.
+     * 
+     * @param originalPatientId
+     *            Patient ID before anonymization.
+     * 
+     * @param anonymizedPatientId
+     *            Patient ID after anonymization.
+     */
+    public static void putPatientId(String originalPatientId, String anonymizedPatientId) {
+        synchronized (Anonymize.class) {
+            patientList.add(anonymizedPatientId);
         }
-        return (patientId == null) ? makeUniquePatientId() : patientId;
+        patientIdHistory.put(originalPatientId, anonymizedPatientId);
+        UidJournal j = journal;
+        if (j != null) j.addPatient(originalPatientId, anonymizedPatientId);
+    }
+
+    /**
+     * Determine if an anonymized patient ID has already been used.
+     * 
+     * @param anonymizedPatientId
+     *            Patient ID after anonymization.
+     * 
+     * @return True if the ID was generated or remembered.
+     */
+    public static synchronized boolean isPatientIdUsed(String anonymizedPatientId) {
+        return patientList.contains(anonymizedPatientId);
+    }
+
+    /**
+     * Determine if a series was completely anonymized by this or an earlier
+     * run with the same journal.
+     * 
+     * @param seriesKey
+     *            Identifies the original series.
+     * 
+     * @return True if completed. Always false if there is no journal.
+     */
+    public static boolean isSeriesCompleted(String seriesKey) {
+        return completedSeriesList.containsKey(seriesKey);
+    }
+
+    /**
+     * Record in the journal that a series was completely anonymized, and
+     * wait until the journal is on disk so that the UIDs of the series are
+     * never lost. Does nothing if there is no journal.
+     * 
+     * @param originalPatientId
+     *            Patient ID before anonymization.
+     * 
+     * @param seriesKey
+     *            Identifies the original series.
+     */
+    public static void seriesCompleted(String originalPatientId, String seriesKey) {
+        UidJournal j = journal;
+        if (j == null) return;
+        completedSeriesList.put(seriesKey, originalPatientId);
+        j.addSeries(originalPatientId, seriesKey);
+        try {
+            j.sync();
+        }
+        catch (IOException e) {
+            Log.get().severe("Unable to sync UID journal " + j.getFile().getAbsolutePath() + " : " + Log.fmtEx(e));
+        }
+    }
+
+    /**
+     * Make a patient ID from the template that has not been used. IDs are
+     * generated in a random order that does not repeat, so this only fails
+     * when every ID that the template allows has been used.
+     * 
+     * @return A new patient ID.
+     */
+    public synchronized static String makeUniquePatientId() {
+        if ((patientIdGenerator == null) || (!patientIdGenerator.getTemplate().equals(template))) {
+            patientIdGenerator = new PatientIdGenerator(template, new Random());
+        }
+        String patientId;
+        while ((patientId = patientIdGenerator.next()) != null) {
+            // skip IDs that were given some other way, such as by a previous run
+            if (patientList.add(patientId)) return patientId;
+        }
+        throw new RuntimeException("Unable to generate unique patient ID with template: " + template + "  All " + patientIdGenerator.size()
+                + " IDs have been used.");
     }
 
     public static boolean isPreloadFile(File file) {
+        if (UidMappingFile.isMappingFile(file)) return true;
         if (file.getName().toLowerCase().endsWith(".xml")) {
             try {
                 FileInputStream fis = new FileInputStream(file);
@@ -210,33 +434,50 @@ public class Anonymize {
         return false;
     }
 
+    /**
+     * Preload UIDs from a previous session. An <code>AnonymizePreload</code>
+     * XML file is read one element at a time and its UIDs are remembered. A
+     * <code>UidMappingFile</code> is searched where it lies instead, so that
+     * very large histories do not have to be loaded into memory.
+     * 
+     * @param file
+     *            Preload XML file or UID mapping file.
+     */
     public static void preloadUids(File file) {
         try {
-            Document doc = XML.parseToDocument(Utility.readFile(file));
-            NodeList patientList = XML.getMultipleNodes(doc, "*/PatientID");
-            int uidCount = 0;
-            for (int p = 0; p < patientList.getLength(); p++) {
-                Node patNode = patientList.item(p);
-                String origPat = XML.getValue(patNode, "@orig");
-                String anonPat = XML.getValue(patNode, "@anon");
-                NodeList uidList = XML.getMultipleNodes(patNode, "UID");
-                for (int u = 0; u < uidList.getLength(); u++) {
-                    Node uidNode = uidList.item(u);
-                    String origUid = XML.getValue(uidNode, "@orig");
-                    String anonUid = XML.getValue(uidNode, "@anon");
+            if (UidMappingFile.isMappingFile(file)) {
+                UidMappingFile mappingFile = UidMappingFile.open(file);
+                mappingFileList.add(0, mappingFile);
+                Log.get().info("Preloaded " + mappingFile.size() + " UIDs from mapping file " + file.getAbsolutePath());
+                return;
+            }
+            final int[] uidCount = { 0 };
+            int patientCount = UidMappingFile.readPreload(file, new UidMappingFile.PreloadHandler() {
+                public void add(String origPat, String anonPat, String origUid, String anonUid) {
                     uidHistory.put(new Uid(anonPat, origUid, origPat), anonUid);
-                    // System.out.println("preload added origPat: " + origPat + " anonPat: " + anonPat + " origUid: " +
-                    // origUid + " anonUid: " + anonUid);
-                    uidCount++;
+                    uidCount[0]++;
                 }
-            }
-            Log.get().info("Preloaded " + patientList.getLength() + " patient IDs and " + uidCount + " UIDs from file " + file.getAbsolutePath());
+            });
+            Log.get().info("Preloaded " + patientCount + " patient IDs and " + uidCount[0] + " UIDs from file " + file.getAbsolutePath());
         }
         catch (Exception e) {
             Log.get().severe("\n\nUnable to preload UIDS: " + e.getMessage() + "\n\n");
         }
     }
 
+    /**
+     * Find a UID in the preloaded mapping files.
+     * 
+     * @return Anonymized UID, or null if it was not preloaded.
+     */
+    private static String lookupMappedUid(String anonymizedPatientId, String oldUid) {
+        for (UidMappingFile mappingFile : mappingFileList) {
+            UidMappingFile.Mapping mapping = mappingFile.lookup(anonymizedPatientId, oldUid);
+            if (mapping != null) return mapping.anonymizedUid;
+        }
+        return null;
+    }
+
     /**
      * Translate the given UID into an anonymized one. If the
      * same UID is passed in, the same anonymized UID will be
@@ -251,46 +492,116 @@ public class Anonymize {
      * @return Anonymized UID that is being used instead
      *         of the non-anonymized UID.
      */
-    private static synchronized String translateUid(String anonymizedPatientId, String oldUid, String originalPatientId) {
-        String newUid = uidHistory.get(new Uid(anonymizedPatientId, oldUid, originalPatientId));
-        if (newUid == null) {
-            newUid = Util.getUID();
-            uidHistory.put(new Uid(anonymizedPatientId, oldUid, originalPatientId), newUid);
+    private static String translateUid(String anonymizedPatientId, String oldUid, String originalPatientId) {
+        Uid key = new Uid(anonymizedPatientId, oldUid, originalPatientId);
+        String newUid = uidHistory.get(key);
+        if (newUid != null) return newUid;
+        if (!mappingFileList.isEmpty()) {
+            newUid = lookupMappedUid(anonymizedPatientId, oldUid);
+            if (newUid != null) return newUid;
+        }
+        String hashKey = uidHashKey;
+        if (hashKey != null) return Util.getHashedUID(hashKey, originalPatientId, oldUid);
+        synchronized (uidLockList[(key.hashCode() & 0x7fffffff) % UID_LOCK_COUNT]) {
+            newUid = uidHistory.get(key);
+            if (newUid == null) {
+                newUid = Util.getUID();
+                uidHistory.put(key, newUid);
+                UidJournal j = journal;
+                if (j != null) j.addUid(originalPatientId, anonymizedPatientId, oldUid, newUid);
+            }
         }
         return newUid;
     }
 
-    private static void anonymizeNonSequenceAttribute(String anonymizedPatientId, Attribute attribute, Attribute replacement, String originalPatientId) {
-        if (replacement != null) {
-            String replacementValue = replacement.getSingleStringValueOrEmptyString();
+    /**
+     * Translate the UIDs that will be replaced when the given DICOM object is
+     * anonymized, in the same order that anonymizing would, but without
+     * changing the object. This allows the objects of a series to be
+     * anonymized in any order while getting the same UIDs as if they were
+     * anonymized one after another, provided that this is called for them in
+     * that order.
+     * 
+     * @param attributeList
+     *            Object that will be anonymized.
+     * 
+     * @param replacementAttributeList
+     *            Values that will be written into the attributeList.
+     */
+    public static void translateUids(AttributeList attributeList, AttributeList replacementAttributeList) {
+        translateUids(attributeList, new AnonymizePlan(replacementAttributeList));
+    }
 
-            if (ValueRepresentation.isUniqueIdentifierVR(attribute.getVR())) {
-                String oldUid = attribute.getSingleStringValueOrNull();
-                if (oldUid != null) {
-                    String newUid = Util.isValidUid(replacementValue) ? replacementValue : translateUid(anonymizedPatientId, oldUid, originalPatientId);
-                    try {
-                        attribute.setValue(newUid);
-                    }
-                    catch (DicomException e) {
-                        ;
-                    }
+    /**
+     * Translate the UIDs that will be replaced when the given DICOM object is
+     * anonymized with the given plan. See
+     * <code>translateUids(AttributeList, AttributeList)</code>.
+     * 
+     * @param attributeList
+     *            Object that will be anonymized.
+     * 
+     * @param plan
+     *            Plan that it will be anonymized with.
+     */
+    public static void translateUids(AttributeList attributeList, AnonymizePlan plan) {
+        String anonymizedPatientId = plan.getAnonymizedPatientId();
+        // without a patient ID, a new one is made for each object, so there is nothing to share
+        if (anonymizedPatientId == null) return;
+        String originalPatientId = (attributeList.get(TagFromName.PatientID) == null) ? null : attributeList.get(TagFromName.PatientID).getSingleStringValueOrNull();
+        translateUids(anonymizedPatientId, attributeList, plan, originalPatientId);
+    }
+
+    private static void translateUids(String anonymizedPatientId, AttributeList attributeList, AnonymizePlan plan, String originalPatientId) {
+        for (Attribute attribute : getAttributeListValues(attributeList).values()) {
+            if (attribute instanceof SequenceAttribute) {
+                Iterator<?> si = ((SequenceAttribute) attribute).iterator();
+                while (si.hasNext()) {
+                    SequenceItem item = (SequenceItem) si.next();
+                    translateUids(anonymizedPatientId, item.getAttributeList(), plan, originalPatientId);
                 }
             }
+            else if (plan.getAction(attribute.getTag(), attribute.getVR()) == AnonymizePlan.Action.TRANSLATE_UID) {
+                String oldUid = attribute.getSingleStringValueOrNull();
+                if (oldUid != null) translateUid(anonymizedPatientId, oldUid, originalPatientId);
+            }
+        }
+    }
 
-            else {
+    private static void anonymizeNonSequenceAttribute(String anonymizedPatientId, Attribute attribute, AnonymizePlan.Action action, String replacementValue,
+            String originalPatientId) {
+        switch (action) {
+        case SET_UID:
+        case TRANSLATE_UID:
+            String oldUid = attribute.getSingleStringValueOrNull();
+            if (oldUid != null) {
+                String newUid = (action == AnonymizePlan.Action.SET_UID) ? replacementValue : translateUid(anonymizedPatientId, oldUid, originalPatientId);
                 try {
-                    attribute.setValue(replacementValue);
+                    attribute.setValue(newUid);
                 }
                 catch (DicomException e) {
-                    // If there is a problem, then just make the attribute empty
-                    try {
-                        attribute.removeValues();
-                    }
-                    catch (DicomException e1) {
-                        ;
-                    }
+                    ;
                 }
             }
+            break;
+
+        case REPLACE:
+        case REPLACE_BINARY:
+            try {
+                attribute.setValue(replacementValue);
+            }
+            catch (DicomException e) {
+                // If there is a problem, then just make the attribute empty
+                try {
+                    attribute.removeValues();
+                }
+                catch (DicomException e1) {
+                    ;
+                }
+            }
+            break;
+
+        default:
+            break;
         }
     }
 
@@ -298,7 +609,7 @@ public class Anonymize {
         return (TreeMap<AttributeTag, Attribute>) attributeList;
     }
 
-    private static void aggressivelyAnonymize(Attribute attribute, HashMap<String, String> aggressiveReplaceList) {
+    private static void aggressivelyAnonymize(Attribute attribute, AggressiveMatcher matcher) {
         try {
             ArrayList<String> newValueList = new ArrayList<String>();
             String[] originalValueList = null;
@@ -312,22 +623,9 @@ public class Anonymize {
             if (originalValueList != null) {
                 int changeCount = 0;
                 for (String originalValue : originalValueList) {
-                    String newValue = originalValue;
-                    boolean changed = false;
-                    for (String aggressiveValue : aggressiveReplaceList.keySet()) {
-                        // Do not allow too many replacements. There is the possibility of recursion.
-                        int count = 0;
-                        int start;
-                        int finish = 0;
-                        while (((start = newValue.substring(finish).toLowerCase().indexOf(aggressiveValue)) != -1) && (count < 100)) {
-                            start += finish;
-                            finish = start + aggressiveValue.length();
-                            newValue = newValue.substring(0, start) + aggressiveReplaceList.get(aggressiveValue) + newValue.substring(finish);
-                            changed = true;
-                            count++;
-                        }
-                    }
-                    if (changed) {
+                    String newValue = matcher.replace(originalValue);
+                    // the same instance is returned if nothing was found
+                    if (newValue != originalValue) {
                         newValueList.add(newValue);
                         changeCount++;
                     }
@@ -374,26 +672,25 @@ public class Anonymize {
      * @param attributeList
      *            Anonymize (modify) this.
      * 
-     * @param replacementAttributeList
+     * @param plan
      *            Reference this for what is to be anonymized.
      */
-    private static void anonymize(String anonymizedPatientId, AttributeList attributeList, AttributeList replacementAttributeList, HashMap<String, String> aggressiveReplaceList,
-            String originalPatientId) {
+    private static void anonymize(String anonymizedPatientId, AttributeList attributeList, AnonymizePlan plan, AggressiveMatcher matcher, String originalPatientId) {
         for (Attribute attribute : getAttributeListValues(attributeList).values()) {
             AttributeTag tag = attribute.getTag();
             if (attribute instanceof SequenceAttribute) {
                 Iterator<?> si = ((SequenceAttribute) attribute).iterator();
                 while (si.hasNext()) {
                     SequenceItem item = (SequenceItem) si.next();
-                    anonymize(anonymizedPatientId, item.getAttributeList(), replacementAttributeList, aggressiveReplaceList, originalPatientId);
+                    anonymize(anonymizedPatientId, item.getAttributeList(), plan, matcher, originalPatientId);
                 }
             }
             else {
-                Attribute replacement = replacementAttributeList.get(tag);
-                if (replacement != null) {
-                    anonymizeNonSequenceAttribute(anonymizedPatientId, attribute, replacement, originalPatientId);
+                AnonymizePlan.Action action = plan.getAction(tag, attribute.getVR());
+                if (action != AnonymizePlan.Action.SKIP) {
+                    anonymizeNonSequenceAttribute(anonymizedPatientId, attribute, action, plan.getReplacement(tag), originalPatientId);
+                    if (action.isScrubbed()) aggressivelyAnonymize(attribute, matcher);
                 }
-                aggressivelyAnonymize(attribute, aggressiveReplaceList);
             }
         }
     }
@@ -407,17 +704,33 @@ public class Anonymize {
      * the replacement list, then a new unique patient ID will be constructed and put
      * into the target attribute list.
      * 
+     * Different objects may be anonymized at the same time by different threads.
+     * 
      * @param attributeList
      *            Target object to be anonymized.
      * 
      * @param replacementAttributeList
      *            List of values to be written into the attributeList.
      */
-    public static synchronized void anonymize(AttributeList attributeList, AttributeList replacementAttributeList) {
-        HashMap<String, String> aggressiveReplaceList = ClientConfig.getInstance().getAggressiveAnonymization(attributeList, CustomDictionary.getInstance());
+    public static void anonymize(AttributeList attributeList, AttributeList replacementAttributeList) {
+        anonymize(attributeList, new AnonymizePlan(replacementAttributeList));
+    }
+
+    /**
+     * Anonymize the given DICOM object with a plan compiled from a list of
+     * replacement values. See <code>anonymize(AttributeList, AttributeList)</code>.
+     * 
+     * @param attributeList
+     *            Target object to be anonymized.
+     * 
+     * @param plan
+     *            What to do with each attribute.
+     */
+    public static void anonymize(AttributeList attributeList, AnonymizePlan plan) {
+        AggressiveMatcher matcher = ClientConfig.getInstance().getAggressiveMatcher(attributeList, CustomDictionary.getInstance());
         String originalPatientId = (attributeList.get(TagFromName.PatientID) == null) ? null : attributeList.get(TagFromName.PatientID).getSingleStringValueOrNull();
-        String anonymizedPatientId = establishNewPatientId(replacementAttributeList);
-        anonymize(anonymizedPatientId, attributeList, replacementAttributeList, aggressiveReplaceList, originalPatientId);
+        String anonymizedPatientId = (plan.getAnonymizedPatientId() == null) ? makeUniquePatientId() : plan.getAnonymizedPatientId();
+        anonymize(anonymizedPatientId, attributeList, plan, matcher, originalPatientId);
     }
 
     /**
@@ -453,13 +766,13 @@ public class Anonymize {
         Attribute attribute = AttributeFactory.newAttribute(TagFromName.ManufacturerModelName);
         String origValue = "Brilliance Big Bore orig orig ";
         attribute.addValue(origValue);
-        aggressivelyAnonymize(attribute, aggressiveReplaceList);
+        aggressivelyAnonymize(attribute, new AggressiveMatcher(aggressiveReplaceList));
         System.out.println(origValue + " --> " + attribute);
 
         attribute = AttributeFactory.newAttribute(TagFromName.PatientBirthDate);
         origValue = "18000101";
         attribute.addValue(origValue);
-        aggressivelyAnonymize(attribute, aggressiveReplaceList);
+        aggressivelyAnonymize(attribute, new AggressiveMatcher(aggressiveReplaceList));
         System.out.println(origValue + " --> " + attribute);
 
     }
@@ -59,7 +59,6 @@ import com.pixelmed.dicom.DicomException;
 import com.pixelmed.dicom.SequenceAttribute;
 import com.pixelmed.dicom.SequenceItem;
 import com.pixelmed.dicom.TagFromName;
-import com.pixelmed.dicom.ValueRepresentation;
 
 import edu.umro.util.Log;
 
@@ -583,12 +582,7 @@ public class AnonymizeGUI implements ActionListener, DocumentListener {
 
 
     private boolean isAnonymizable(AttributeTag tag) {
-        if (tag.getGroup() == 2) return false;
-        byte[] vr = CustomDictionary.getInstance().getValueRepresentationFromTag(tag);
-        if (vr == null) return false;
-        if (ValueRepresentation.isOtherByteOrWordVR(vr)) return false;
-        if (ValueRepresentation.isSequenceVR(vr)) return false;
-        return true;
+        return DicomEngine.isAnonymizable(tag);
     }
 
 
@@ -745,4 +739,29 @@ public class AnonymizeGUI implements ActionListener, DocumentListener {
         return attributeList;
     }
 
+
+    /**
+     * Get the attribute list containing tags and values to be used
+     * for anonymizing the given patient.
+     * 
+     * @param patient Patient being anonymized.
+     * 
+     * @return List of attributes to replace, including patient ID and name.
+     * 
+     * @throws DicomException On invalid PatientID or PatientName
+     */
+    public AttributeList getAttributeList(EnginePatient patient) throws DicomException {
+        AttributeList replacementAttributeList = getAttributeList();
+
+        Attribute patientId = AttributeFactory.newAttribute(TagFromName.PatientID);
+        patientId.addValue(patient.getAnonymizedPatientId());
+        replacementAttributeList.put(patientId);
+
+        Attribute patientName = AttributeFactory.newAttribute(TagFromName.PatientName);
+        patientName.addValue(patient.getAnonymizedPatientName());
+        replacementAttributeList.put(patientName);
+
+        return replacementAttributeList;
+    }
+
 }
@@ -0,0 +1,202 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.ValueRepresentation;
+
+/**
+ * What to do with each attribute when anonymizing, compiled from a list of
+ * replacement values. The action for an attribute depends on whether it has
+ * a replacement and on the class of its value representation: text, UID or
+ * binary. Binary attributes, including pixel data, are never converted to
+ * text.
+ *
+ * Plans do not change after they are built, so they may be shared by
+ * threads.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class AnonymizePlan {
+
+    /**
+     * Ways of anonymizing an attribute. Actions that scrub also replace
+     * values used for aggressive anonymization after any other change.
+     */
+    public enum Action {
+        /** Leave the attribute as it is. */
+        SKIP(false),
+        /** Only replace values used for aggressive anonymization. */
+        SCRUB(true),
+        /** Replace the value, then scrub. */
+        REPLACE(true),
+        /** Replace the value of a binary attribute. */
+        REPLACE_BINARY(false),
+        /** Replace a UID that has a value with the given valid UID, then scrub. */
+        SET_UID(true),
+        /** Replace a UID that has a value with its anonymized UID, then scrub. */
+        TRANSLATE_UID(true);
+
+        private final boolean scrub;
+
+        Action(boolean scrub) {
+            this.scrub = scrub;
+        }
+
+        public boolean isScrubbed() {
+            return scrub;
+        }
+    }
+
+    /** Value representations that hold text. Unknown ones are treated as text. */
+    private static final int VR_TEXT = 0;
+
+    /** Value representation for UIDs. */
+    private static final int VR_UID = 1;
+
+    /** Value representations whose values are stored in binary. */
+    private static final int VR_BINARY = 2;
+
+    /** Action for each class of value representation when there is no replacement, a replacement, or a replacement that is a valid UID. */
+    private static final Action[][] ACTION_TABLE = {
+            /* text   */ { Action.SCRUB, Action.REPLACE, Action.REPLACE },
+            /* UID    */ { Action.SCRUB, Action.TRANSLATE_UID, Action.SET_UID },
+            /* binary */ { Action.SKIP, Action.REPLACE_BINARY, Action.REPLACE_BINARY } };
+
+    /** Class of each value representation, indexed by its two letters. */
+    private static final byte[] vrClassTable = new byte[32 * 32];
+
+    static {
+        byte[][] binaryList = { ValueRepresentation.OB, ValueRepresentation.OD, ValueRepresentation.OF, ValueRepresentation.OL, ValueRepresentation.OW,
+                ValueRepresentation.OX, ValueRepresentation.XO, ValueRepresentation.US, ValueRepresentation.SS, ValueRepresentation.XS,
+                ValueRepresentation.UL, ValueRepresentation.SL, ValueRepresentation.FL, ValueRepresentation.FD, ValueRepresentation.AT };
+        for (byte[] vr : binaryList) {
+            vrClassTable[vrIndex(vr)] = VR_BINARY;
+        }
+        vrClassTable[vrIndex(ValueRepresentation.UI)] = VR_UID;
+    }
+
+    /** Replacement for each attribute that has one. */
+    private final HashMap<AttributeTag, Replacement> replacementIndex = new HashMap<AttributeTag, Replacement>();
+
+    /** Anonymized patient ID, or null if none was given. */
+    private final String anonymizedPatientId;
+
+    /** A replacement value and the column of the action table that it uses. */
+    private static class Replacement {
+        final String value;
+        final int column;
+
+        Replacement(String value) {
+            this.value = value;
+            column = Util.isValidUid(value) ? 2 : 1;
+        }
+    }
+
+    private static int vrIndex(byte[] vr) {
+        return ((vr[0] & 0x1f) << 5) | (vr[1] & 0x1f);
+    }
+
+    /**
+     * Compile a plan.
+     *
+     * @param replacementAttributeList
+     *            Values to be written into anonymized objects.
+     */
+    public AnonymizePlan(AttributeList replacementAttributeList) {
+        Iterator<?> i = replacementAttributeList.values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            replacementIndex.put(attribute.getTag(), new Replacement(attribute.getSingleStringValueOrEmptyString()));
+        }
+        Attribute patientId = replacementAttributeList.get(TagFromName.PatientID);
+        anonymizedPatientId = (patientId == null) ? null : patientId.getSingleStringValueOrNull();
+    }
+
+    /**
+     * Get the anonymized patient ID.
+     *
+     * @return Anonymized patient ID, or null if none was given.
+     */
+    public String getAnonymizedPatientId() {
+        return anonymizedPatientId;
+    }
+
+    /**
+     * Determine whether this plan would be compiled from the given list of
+     * replacement values, so that it may be used instead of compiling
+     * another one.
+     *
+     * @param replacementAttributeList
+     *            Values to be written into anonymized objects.
+     *
+     * @return True if the list has the same attributes and values that this
+     *         plan was compiled from.
+     */
+    public boolean isCompiledFrom(AttributeList replacementAttributeList) {
+        if (replacementAttributeList.size() != replacementIndex.size()) return false;
+        Iterator<?> i = replacementAttributeList.values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            Replacement replacement = replacementIndex.get(attribute.getTag());
+            if ((replacement == null) || (!replacement.value.equals(attribute.getSingleStringValueOrEmptyString()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the replacement value for an attribute.
+     *
+     * @param tag
+     *            Tag of attribute.
+     *
+     * @return Replacement value, or null if there is none.
+     */
+    public String getReplacement(AttributeTag tag) {
+        Replacement replacement = replacementIndex.get(tag);
+        return (replacement == null) ? null : replacement.value;
+    }
+
+    /**
+     * Get the action for a non-sequence attribute.
+     *
+     * @param tag
+     *            Tag of attribute.
+     *
+     * @param vr
+     *            Value representation of attribute. May be null.
+     *
+     * @return What to do with the attribute.
+     */
+    public Action getAction(AttributeTag tag, byte[] vr) {
+        if (isPixelData(tag)) return Action.SKIP;
+        Replacement replacement = replacementIndex.get(tag);
+        int vrClass = ((vr == null) || (vr.length < 2)) ? VR_TEXT : vrClassTable[vrIndex(vr)];
+        return ACTION_TABLE[vrClass][(replacement == null) ? 0 : replacement.column];
+    }
+
+    private static boolean isPixelData(AttributeTag tag) {
+        return tag.equals(TagFromName.PixelData) || tag.equals(TagFromName.FloatPixelData) || tag.equals(TagFromName.DoubleFloatPixelData);
+    }
+}
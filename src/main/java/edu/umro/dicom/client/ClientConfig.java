@@ -18,9 +18,12 @@ package edu.umro.dicom.client;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -202,6 +205,208 @@ public class ClientConfig {
         return true;
     }
 
+    /**
+     * Get the number of threads used to read DICOM headers when files are loaded. If there
+     * is a problem or it is not specified, use the number of processors on this machine.
+     * 
+     * @return Number of threads used to read DICOM headers.
+     */
+    public int getIngestThreadCount() {
+        int count = Runtime.getRuntime().availableProcessors();
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/IngestThreadCount/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                count = Integer.parseInt(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getIngestThreadCount: Invalid IngestThreadCount in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return Math.max(1, count);
+    }
+
+    /**
+     * Get the number of series that are anonymized or uploaded at the same time. If there
+     * is a problem or it is not specified, use the number of processors on this machine.
+     * 
+     * @return Number of threads used to process series.
+     */
+    public int getProcessThreadCount() {
+        int count = Runtime.getRuntime().availableProcessors();
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/ProcessThreadCount/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                count = Integer.parseInt(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getProcessThreadCount: Invalid ProcessThreadCount in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return Math.max(1, count);
+    }
+
+    /**
+     * Get the sidecar files written beside each anonymized file in command line mode, as a
+     * list separated by commas such as <code>txt,xml</code>.  If there is a problem or it is
+     * not specified, write all of them.
+     * 
+     * @return Sidecars to write.
+     */
+    public EnumSet<Sidecar> getSidecars() {
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/Sidecars/text()");
+            if (text != null) return Sidecar.parse(text);
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (IllegalArgumentException e) {
+            Log.get().warning("getSidecars: Invalid Sidecars in configuration file " + CONFIG_FILE_NAME + " : " + e.getMessage());
+        }
+        return EnumSet.allOf(Sidecar.class);
+    }
+
+    /**
+     * Get the number of threads that write anonymized files, so that anonymizing the next
+     * files does not wait for the disk.  If there is a problem or it is not specified, use 2.
+     * 
+     * @return Number of threads used to write files.
+     */
+    public int getWriteThreadCount() {
+        int count = 2;
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/WriteThreadCount/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                count = Integer.parseInt(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getWriteThreadCount: Invalid WriteThreadCount in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return Math.max(1, count);
+    }
+
+    /**
+     * Get the size of files, in megabytes, at or above which files are anonymized by copying
+     * their pixel data instead of reading it into memory. If there is a problem or it is not
+     * specified, use 64. A negative value means never.
+     * 
+     * @return Size in bytes, or -1 to never stream.
+     */
+    public long getStreamingThreshold() {
+        long megabytes = 64;
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/StreamingThreshold/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                megabytes = Long.parseLong(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getStreamingThreshold: Invalid StreamingThreshold in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return (megabytes < 0) ? -1 : megabytes * 1024 * 1024;
+    }
+
+    /**
+     * Get the number of milliseconds between writing new records of the UID journal to disk.
+     * Records made within this time before the process dies may be lost.  If there is a
+     * problem or it is not specified, use 100.
+     * 
+     * @return Milliseconds between syncs.
+     */
+    public long getUidJournalSyncInterval() {
+        long interval = 100;
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/UidJournalSyncInterval/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                interval = Long.parseLong(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getUidJournalSyncInterval: Invalid UidJournalSyncInterval in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return Math.max(1, interval);
+    }
+
+    /**
+     * Determine whether anonymized files are written with the transfer syntax of the original
+     * file instead of the default. If there is a config problem, default to false.
+     * 
+     * @return True if the original transfer syntax should be kept.
+     */
+    public boolean getKeepTransferSyntax() {
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/KeepTransferSyntax/text()");
+            String[] trueText = { "t", "true", "yes", "1" };
+            for (String t : trueText) {
+                if (t.equalsIgnoreCase(text)) return true;
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        return false;
+    }
+
+    /**
+     * Get the file used to save DICOM headers between sessions so that files that have not
+     * changed do not have to be read again. The headers include patient names and IDs, so they
+     * are only saved if a file is specified.
+     * 
+     * @return Header index file, or null if headers should not be saved.
+     */
+    public File getHeaderIndexFile() {
+        String text = null;
+        try {
+            text = XML.getValue(config, "/DicomClientConfig/HeaderIndexFile/text()");
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        if ((text == null) || (text.trim().length() == 0) || text.trim().equalsIgnoreCase("none")) {
+            return null;
+        }
+        return new File(text.trim());
+    }
+
+    /**
+     * Get the maximum number of file headers kept in the header index. When there are more,
+     * the ones used least recently are dropped.
+     * 
+     * @return Maximum number of headers in the index.
+     */
+    public int getHeaderIndexSize() {
+        int size = 100 * 1000;
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/HeaderIndexSize/text()");
+            if ((text != null) && (text.trim().length() > 0)) {
+                size = Integer.parseInt(text.trim());
+            }
+        }
+        catch (UMROException e) {
+            // not specified, so use the default
+        }
+        catch (NumberFormatException e) {
+            Log.get().warning("getHeaderIndexSize: Invalid HeaderIndexSize in configuration file " + CONFIG_FILE_NAME + " : " + e);
+        }
+        return Math.max(0, size);
+    }
+
     /**
      * Get the template that controls how new patient IDs are generated for anonymization.
      * 
@@ -218,6 +423,23 @@ public class ClientConfig {
         return null;
     }
 
+    /**
+     * Get the secret key used to derive anonymized UIDs from a keyed hash of
+     * the original patient ID and UID.
+     * 
+     * @return Key, or null if UIDs should be generated instead.
+     */
+    public String getUidHashKey() {
+        try {
+            String text = XML.getValue(config, "/DicomClientConfig/UidHashKey/text()");
+            if ((text != null) && (text.trim().length() > 0)) return text.trim();
+        }
+        catch (UMROException e) {
+            // not specified, so generate UIDs
+        }
+        return null;
+    }
+
     /**
      * Get the default state for sending the KO manifest. If there is a config problem, default to TRUE.
      * 
@@ -271,52 +493,163 @@ public class ClientConfig {
         return true;
     }
 
+    /** An attribute whose values are replaced wherever they appear, and what they are replaced with. */
+    private static class AggressiveTag {
+        final AttributeTag tag;
+        final String replacement;
+
+        AggressiveTag(AttributeTag tag, String replacement) {
+            this.tag = tag;
+            this.replacement = replacement;
+        }
+    }
+
+    /**
+     * Attributes used for aggressive anonymization, read from the configuration
+     * once for each dictionary used to look up their names.
+     */
+    private final HashMap<DicomDictionary, ArrayList<AggressiveTag>> aggressiveTagList = new HashMap<DicomDictionary, ArrayList<AggressiveTag>>();
+
+    /** Maximum number of patients whose aggressive anonymization values are kept. */
+    private static final int AGGRESSIVE_CACHE_SIZE = 64;
+
+    /**
+     * The aggressive anonymization dictionary of a patient: the values of
+     * each attribute that have been seen, the tokens taken from them, and
+     * the matcher built from the tokens. Values from more files of the
+     * patient are merged in as they arrive.
+     */
+    private static class AggressiveEntry {
+        final ArrayList<AggressiveTag> tagList;
+        /** Values already tokenized, for each attribute of the tag list. */
+        final ArrayList<HashSet<String>> seenValueList = new ArrayList<HashSet<String>>();
+        /** Tokens (in lower case) and their replacements. */
+        final HashMap<String, String> replaceList = new HashMap<String, String>();
+        AggressiveMatcher matcher = NO_AGGRESSIVE_MATCHER;
+
+        AggressiveEntry(ArrayList<AggressiveTag> tagList) {
+            this.tagList = tagList;
+            for (int t = 0; t < tagList.size(); t++)
+                seenValueList.add(new HashSet<String>());
+        }
+    }
+
+    /** Matcher that replaces nothing, used when aggressive anonymization is off. */
+    private static final AggressiveMatcher NO_AGGRESSIVE_MATCHER = new AggressiveMatcher(new HashMap<String, String>());
+
+    /**
+     * Matchers for recently anonymized patients, indexed by normalized original
+     * patient ID, least recently used first.
+     */
+    private final LinkedHashMap<String, AggressiveEntry> aggressiveCache = new LinkedHashMap<String, AggressiveEntry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AggressiveEntry> eldest) {
+            return size() > AGGRESSIVE_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Get the attributes used for aggressive anonymization, reading them from
+     * the configuration the first time each dictionary is used.
+     * 
+     * @param dictionary
+     *            Used to look up attribute names.
+     * 
+     * @return List of attributes and their replacements.
+     */
+    private synchronized ArrayList<AggressiveTag> getAggressiveTagList(DicomDictionary dictionary) {
+        ArrayList<AggressiveTag> tagList = aggressiveTagList.get(dictionary);
+        if (tagList == null) {
+            tagList = new ArrayList<AggressiveTag>();
+            try {
+                NodeList nodeList = XML.getMultipleNodes(config, "/DicomClientConfig/AggressiveAnonymization");
+                for (int n = 0; n < nodeList.getLength(); n++) {
+                    Node node = nodeList.item(n);
+                    String replacement = XML.getAttributeValue(node, "replacement");
+                    replacement = (replacement == null) ? "" : replacement;
+                    String tagName = XML.getValue(node, "text()");
+                    AttributeTag tag = dictionary.getTagFromName(tagName);
+                    if (tag == null) {
+                        throw new RuntimeException("Unknown DICOM attribute " + tagName + " in AggressiveAnonymization list.");
+                    }
+                    tagList.add(new AggressiveTag(tag, replacement));
+                }
+            }
+            catch (UMROException e) {
+                Log.get().severe("UMROException getAggressiveAnonymization: " + Log.fmtEx(e));
+            }
+            getReservedWordList();
+            aggressiveTagList.put(dictionary, tagList);
+        }
+        return tagList;
+    }
+
     /**
      * Get the values that should be replaced for aggressive patient anonymization.
      * 
      * @return List of values (in lower case) and their replacement values.
+     *         The list may be shared, so it must not be modified.
      */
     public HashMap<String, String> getAggressiveAnonymization(AttributeList attributeList, DicomDictionary dictionary) {
-        HashMap<String, String> replaceList = new HashMap<String, String>();
-        if (!DicomClient.getAggressivelyAnonymize()) return replaceList;
-        getReservedWordList();
-        try {
-            NodeList nodeList = XML.getMultipleNodes(config, "/DicomClientConfig/AggressiveAnonymization");
-            for (int n = 0; n < nodeList.getLength(); n++) {
-                Node node = nodeList.item(n);
-                String replacement = XML.getAttributeValue(node, "replacement");
-                replacement = (replacement == null) ? "" : replacement;
-                String tagName = XML.getValue(node, "text()");
-                AttributeTag tag = dictionary.getTagFromName(tagName);
-                if (tag == null) {
-                    throw new RuntimeException("Unknown DICOM attribute " + tagName + " in AggressiveAnonymization list.");
-                }
-                Attribute attribute = attributeList.get(tag);
-                if (attribute != null) {
-                    String[] origValueList = attribute.getOriginalStringValues();
-                    if ((origValueList != null) && (origValueList.length > 0)) {
-                        for (String value : origValueList) {
-                            if (mightBePHI(value)) {
-                                String[] tokenList = value.toLowerCase().split("[^a-z0-9]");
-                                for (String token : tokenList) {
-                                    if ((token.length() > 1) && (!reservedWordList.contains(token))) {
-                                        replaceList.put(token, replacement);
-                                    }
-                                }
+        return getAggressiveMatcher(attributeList, dictionary).getReplaceList();
+    }
+
+    /**
+     * Get the matcher that replaces the values of aggressive patient
+     * anonymization.
+     * 
+     * Each patient has a dictionary of the tokens found in the values of all
+     * of their files so far. Only values that have not been seen before are
+     * tokenized, and the matcher is rebuilt only when that adds a token or
+     * changes its replacement, so files of the same patient usually share
+     * one matcher.
+     * 
+     * @return Matcher for the values of the given object and the other files
+     *         of its patient.
+     */
+    public AggressiveMatcher getAggressiveMatcher(AttributeList attributeList, DicomDictionary dictionary) {
+        if (!DicomClient.getAggressivelyAnonymize()) return NO_AGGRESSIVE_MATCHER;
+        ArrayList<AggressiveTag> tagList = getAggressiveTagList(dictionary);
+
+        // an entry made with another dictionary may have taken values from other attributes
+        String patientId = Patient.getPatientId(attributeList);
+        AggressiveEntry entry;
+        synchronized (aggressiveCache) {
+            entry = aggressiveCache.get(patientId);
+            if ((entry == null) || (entry.tagList != tagList)) {
+                entry = new AggressiveEntry(tagList);
+                aggressiveCache.put(patientId, entry);
+            }
+        }
+
+        synchronized (entry) {
+            boolean changed = false;
+            try {
+                for (int t = 0; t < tagList.size(); t++) {
+                    AggressiveTag aggressiveTag = tagList.get(t);
+                    Attribute attribute = attributeList.get(aggressiveTag.tag);
+                    String[] origValueList = (attribute == null) ? null : attribute.getOriginalStringValues();
+                    if (origValueList == null) continue;
+                    HashSet<String> seenValues = entry.seenValueList.get(t);
+                    for (String value : origValueList) {
+                        if ((value == null) || (!seenValues.add(value)) || (!mightBePHI(value))) continue;
+                        String[] tokenList = value.toLowerCase().split("[^a-z0-9]");
+                        for (String token : tokenList) {
+                            if ((token.length() > 1) && (!reservedWordList.contains(token))) {
+                                if (!aggressiveTag.replacement.equals(entry.replaceList.put(token, aggressiveTag.replacement))) changed = true;
                             }
                         }
                     }
                 }
             }
+            catch (DicomException e) {
+                Log.get().severe("DicomException getAggressiveAnonymization: " + Log.fmtEx(e));
+            }
+            if (changed) entry.matcher = new AggressiveMatcher(entry.replaceList);
+            return entry.matcher;
         }
-        catch (UMROException e) {
-            Log.get().severe("UMROException getAggressiveAnonymization: " + Log.fmtEx(e));
-        }
-        catch (DicomException e) {
-            Log.get().severe("DicomException getAggressiveAnonymization: " + Log.fmtEx(e));
-        }
-
-        return replaceList;
     }
 
     private HashSet<String> reservedWordList = null;
@@ -386,9 +719,10 @@ public class ClientConfig {
      * 
      * @return
      */
-    public AttributeList getAnonymizingReplacementList() {
+    public synchronized AttributeList getAnonymizingReplacementList() {
         if (anonymizingReplacementList == null) {
-            anonymizingReplacementList = new AttributeList();
+            // build the whole list before sharing it with other threads
+            AttributeList replacementList = new AttributeList();
             try {
                 NodeList nodeList = XML.getMultipleNodes(config, "/DicomClientConfig/AnonymizeDefaultList/*");
                 for (int ad = 0; ad < nodeList.getLength(); ad++) {
@@ -403,7 +737,7 @@ public class ClientConfig {
                                 Attribute attribute = AttributeFactory.newAttribute(tag);
                                 if (canControlAnonymizing(tag)) {
                                     attribute.addValue(value);
-                                    anonymizingReplacementList.put(attribute);
+                                    replacementList.put(attribute);
                                 }
                             }
                         }
@@ -416,6 +750,7 @@ public class ClientConfig {
             catch (UMROException e) {
                 Log.get().warning("Unable to parse list of default attributes to anonymize.  User will have to supply them manually.");
             }
+            anonymizingReplacementList = replacementList;
         }
         return anonymizingReplacementList;
     }
@@ -156,7 +156,7 @@ public class CreateGui extends JPanel implements ActionListener {
     public static boolean isCreateable(Attribute attribute) {
         if (attribute == null) return false;
         byte[] vr = attribute.getVR();
-        return Preview.vrSet.contains(vr) || ValueRepresentation.isSequenceVR(vr);
+        return TextRenderer.vrSet.contains(vr) || ValueRepresentation.isSequenceVR(vr);
     }
     
     public static boolean isCreateable(AttributeLocation attributeLocation) {
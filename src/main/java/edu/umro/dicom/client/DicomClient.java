@@ -32,8 +32,12 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.net.ssl.HostnameVerifier;
@@ -71,6 +75,7 @@ import edu.umro.util.Exec;
 import edu.umro.util.Log;
 import edu.umro.util.OpSys;
 import edu.umro.util.General;
+import edu.umro.util.Utility;
 
 /**
  * Main class that shows a GUI to let the user upload DICOM files.
@@ -82,7 +87,7 @@ import edu.umro.util.General;
  * @author Jim Irrer irrer@umich.edu
  * 
  */
-public class DicomClient implements ActionListener, FileDrop.Listener, ChangeListener {
+public class DicomClient implements ActionListener, FileDrop.Listener, ChangeListener, IngestPipeline.Loader {
 
     /** Name that appears in title bar of window. */
     public static final String PROJECT_NAME = "DICOM+";
@@ -166,6 +171,13 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
     /** Panel containing the list of patients. */
     private JPanel patientListPanel = null;
 
+    /**
+     * Loaded patients indexed by patient ID, in the order that they were
+     * loaded. This is kept separately from the patient list panel so that
+     * patients can be found without searching the GUI components.
+     */
+    private final LinkedHashMap<String, Patient> patientIndex = new LinkedHashMap<String, Patient>();
+
     /** Scroll pane containing the list of patients. */
     private JScrollPane patientScrollPane = null;
 
@@ -256,9 +268,62 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
     /** If true, activate the <AggressiveAnonymization> tags in configuration file. */
     private static boolean aggressivelyAnonymize = false;
 
+    /** Number of threads reading DICOM headers as specified on the command line.  If 0, then use the configuration file. */
+    private static int ingestThreadCount = 0;
+
+    /** Key for deriving anonymized UIDs as specified on the command line.  If null, then use the configuration file. */
+    private static String uidHashKey = null;
+
+    /** Number of series processed at the same time as specified on the command line.  If 0, then use the configuration file. */
+    private static int processThreadCount = 0;
+
+    /** If true, keep the transfer syntax of each file as specified on the command line.  If false, then use the configuration file. */
+    private static boolean keepTransferSyntax = false;
+
+    /** Journal of new UIDs and patient IDs as specified on the command line, or null if none. */
+    private static File journalFile = null;
+
+    /** Sidecars to write beside each anonymized file as specified on the command line.  If null, then use the configuration file. */
+    private static EnumSet<Sidecar> sidecarSet = null;
+
+    /** Most recently started loading of files. */
+    private volatile IngestPipeline ingestPipeline = null;
+
     /** Last time that updates were made to the screen. */
     long lastRepaint = 0;
 
+    /**
+     * Engine that does the anonymizing and uploading for the GUI, using the
+     * destination directory, anonymization values and message area of the
+     * GUI.
+     */
+    private class GuiEngine extends DicomEngine {
+        GuiEngine() {
+            // the GUI only writes the DICOM files
+            setWriteSidecars(false);
+            if (processThreadCount > 0) setProcessThreadCount(processThreadCount);
+        }
+
+        @Override
+        public File getDestinationDirectory() {
+            return DicomClient.this.getDestinationDirectory();
+        }
+
+        @Override
+        protected AttributeList getReplacementList(EngineSeries series, AttributeList attributeList) throws DicomException {
+            AnonymizeGUI.getInstance().updateTagList(attributeList);
+            return AnonymizeGUI.getInstance().getAttributeList(series.getPatient());
+        }
+
+        @Override
+        protected void showMessage(String message) {
+            DicomClient.this.showMessage(message);
+        }
+    }
+
+    /** Does the processing for the GUI. */
+    private final GuiEngine engine = new GuiEngine();
+
     /**
      * Append a message to the list of messages and show
      * it to the user.
@@ -278,6 +343,32 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         Log.get().info("User message: " + message);
     }
 
+    /**
+     * Show a message to the user if the GUI is running, otherwise just log
+     * it. This does not cause the GUI to be built.
+     * 
+     * @param message
+     *            Message to show.
+     */
+    public static void showMessageIfRunning(String message) {
+        DicomClient client = dicomClient;
+        if (client == null) {
+            Log.get().info("User message: " + message);
+        }
+        else {
+            client.showMessage(message);
+        }
+    }
+
+    /**
+     * Get the engine that does the anonymizing and uploading for the GUI.
+     * 
+     * @return The engine.
+     */
+    public DicomEngine getEngine() {
+        return engine;
+    }
+
     /**
      * If user does not specify an output directory, then assume one.
      */
@@ -786,17 +877,15 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
      * @return List of patients.
      */
     private ArrayList<Patient> getPatientList() {
-        ArrayList<Patient> patientList = new ArrayList<Patient>();
-        for (Component component : patientListPanel.getComponents()) {
-            if (component instanceof Patient) patientList.add((Patient) component);
+        synchronized (patientIndex) {
+            return new ArrayList<Patient>(patientIndex.values());
         }
-        return patientList;
     }
 
     private Patient findPatient(String patientId) {
-        for (Patient patient : getPatientList())
-            if (patient.getPatientId().equals(patientId)) return patient;
-        return null;
+        synchronized (patientIndex) {
+            return patientIndex.get(patientId);
+        }
     }
 
     /**
@@ -925,6 +1014,9 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         Anonymize.clearPatientHistory(patient.getPatientId());
         // this is needed because it makes the patient disappear immediately, instead of waiting for the next redraw.
         // patient.setVisible(false);
+        synchronized (patientIndex) {
+            patientIndex.remove(patient.getPatientId());
+        }
         patientListPanel.remove(patient);
         patientListPanel.validate();
         if (patientListPanel.getComponentCount() == 0) resetOutputDirectory();
@@ -936,6 +1028,7 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         for (Patient patient : getPatientList())
             clearPatient(patient);
         Anonymize.clearHistory();
+        engine.clearFileNames();
         messageTextArea.setText("");
         showMessageText.delete(0, showMessageText.length());
     }
@@ -1073,7 +1166,7 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         class UpdateStats implements Runnable {
             private void showStats() {
                 loadedStatisticsLabel.setText(loadedStatistics());
-                String processedText = "Files Anonymized: " + Series.totalFilesAnonymized +
+                String processedText = "Files Anonymized: " + engine.getAnonymizedCount() +
                         "            Files Uploaded: " + uploadCount;
                 processedStatisticsLabel.setText(processedText);
 
@@ -1126,10 +1219,14 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         stats += "        Series: " + seriesCount;
         stats += "        Studies: " + studyCount;
         stats += "        Patients: " + patientList.size();
+        IngestPipeline pipeline = ingestPipeline;
+        if ((pipeline != null) && (!pipeline.isFinished())) {
+            stats += "        Reading: " + String.format("%.0f", pipeline.getFilesPerSecond()) + " files/second";
+        }
         return stats;
     }
 
-    private void outOfMemory(String msg) {
+    public void outOfMemory(String msg) {
         String fullMessage = "<html>" + msg + "<p/><br/>The program has run out of memory.  This is usually" +
                 "<br/>caused by loading very large data sets.  Anything done" +
                 "<br/>beyond this point may silently fail, so it" +
@@ -1327,16 +1424,20 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
      * Read at a minimum the first portion of the given DICOM file. The
      * 'portion' is defined to be long enough to get the basic meta-data.
      * 
+     * This may be called by multiple threads at the same time. In GUI mode,
+     * files that have not changed since they were last read are taken from
+     * the header index.
+     * 
      * @param fileName
      * 
      * @return The contents of the file
      */
-    private AttributeList readDicomFile(File file) {
+    public AttributeList readDicomFile(File file) {
         AttributeList attributeList = new AttributeList();
         if (inCommandLineMode()) {
             try {
-                // this does not show any annoying messages in the log
-                attributeList.read(file);
+                // Only the header is needed because the series reads the whole file when it is processed.
+                attributeList = Util.readDicomHeader(file);
             }
             catch (Exception e) {
                 // Exceptions do not matter because
@@ -1346,6 +1447,11 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
             }
         }
         else {
+            HeaderIndex headerIndex = HeaderIndex.getInstance();
+            AttributeList saved = headerIndex.get(file);
+            if (saved != null) {
+                return saved;
+            }
             DicomClientReadStrategy dcrs = new DicomClientReadStrategy();
             try {
                 // attributeList.read(file, DicomClientReadStrategy.dicomClientReadStrategy);
@@ -1361,6 +1467,9 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                     attributeList = minimalAttributeList(dcrs.latest);
                 }
             }
+            if (attributeList.size() >= MIN_ATTRIBUTE_COUNT) {
+                headerIndex.put(file, attributeList);
+            }
         }
 
         // needed? attributeList = ensureMinimumMetadata(file, attributeList);
@@ -1425,9 +1534,9 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
      */
     public synchronized void addDicomFile(File file, boolean descend) {
         try {
-            fileCount++;
             setPreviewEnableable(false);
             if (file.isDirectory()) {
+                fileCount++;
                 if (descend) {
                     for (File child : file.listFiles()) {
                         addDicomFile(child, false);
@@ -1438,8 +1547,32 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                 }
                 return;
             }
-            AttributeList attributeList = readDicomFile(file);
+            addDicomFile(file, readDicomFile(file));
+        }
+        catch (Exception e) {
+            Log.get().severe("Unexpected error in DicomClient.addDicomFile: " + Log.fmtEx(e));
+        }
+        finally {
+            setPreviewEnableable(true);
+            updatePatientList();
+        }
+    }
 
+    /**
+     * Add a file whose header has already been read to the list of loaded
+     * files. If it is not a DICOM file then show a message and ignore it.
+     * The screen is not updated, so the caller should call
+     * <code>updatePatientList</code> when finished adding files.
+     * 
+     * @param file
+     *            DICOM file.
+     * 
+     * @param attributeList
+     *            Header of the file.
+     */
+    public synchronized void addDicomFile(File file, AttributeList attributeList) {
+        try {
+            fileCount++;
             if (attributeList.size() < MIN_ATTRIBUTE_COUNT) {
                 if (Anonymize.isPreloadFile(file)) {
                     Anonymize.preloadUids(file);
@@ -1451,19 +1584,15 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
 
             ensureSOPInstanceUID(file, attributeList);
 
-            String patientId = "none";
-            Attribute patientAttribute = attributeList.get(TagFromName.PatientID);
-            if (patientAttribute != null) {
-                patientId = patientAttribute.getSingleStringValueOrNull();
-                if (patientId == null) {
-                    patientId = "none";
-                }
-                patientId = new String(patientId); // avoid memory leaks
-            }
+            // same key that clearPatient removes by
+            String patientId = Patient.getPatientId(attributeList);
 
             Patient patient = findPatient(patientId);
             if (patient == null) {
                 patient = new Patient(file, attributeList, makeNewPatientId());
+                synchronized (patientIndex) {
+                    patientIndex.put(patient.getPatientId(), patient);
+                }
                 patientListPanel.add(patient);
                 setColor(patientListPanel);
                 // JScrollBar scrollBar = patientScrollPane.getVerticalScrollBar();
@@ -1479,64 +1608,86 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                 dragHereTarget = null;
             }
 
-            synchronized (this) {
-                if (!hasSpecifiedOutputDirectory) {
-                    // We have a valid DICOM file, so use its directory in determining where to put files.
-                    File parent = (file.getParentFile() == null) ? new File(".") : file.getParentFile();
-                    File anonymizedDirectory = new File(file.isDirectory() ? file : parent, "output");
-                    hasSpecifiedOutputDirectory = true;
-                    if (!inCommandLineMode()) {
-                        directoryChooser.setSelectedFile(anonymizedDirectory);
-                        anonymizeDestinationText.setText(anonymizedDirectory.getAbsolutePath());
-                    }
-
+            if (!hasSpecifiedOutputDirectory) {
+                // We have a valid DICOM file, so use its directory in determining where to put files.
+                File parent = (file.getParentFile() == null) ? new File(".") : file.getParentFile();
+                File anonymizedDirectory = new File(file.isDirectory() ? file : parent, "output");
+                hasSpecifiedOutputDirectory = true;
+                if (!inCommandLineMode()) {
+                    directoryChooser.setSelectedFile(anonymizedDirectory);
+                    anonymizeDestinationText.setText(anonymizedDirectory.getAbsolutePath());
                 }
             }
-
         }
         catch (Exception e) {
             Log.get().severe("Unexpected error in DicomClient.addDicomFile: " + Log.fmtEx(e));
         }
-        finally {
-            setPreviewEnableable(true);
-            // Need to set color for all of the new Swing components added.
-            setColor(getMainContainer());
-            setProcessedStatus();
+    }
 
-            long now = System.currentTimeMillis();
-            if ((now - lastRepaint) > 200) {
-                JScrollBar scrollBar = patientScrollPane.getVerticalScrollBar();
-                scrollBar.setValue(scrollBar.getMaximum());
-                patientScrollPane.paintAll(patientScrollPane.getGraphics());
-                lastRepaint = now;
-            }
+    /**
+     * Update the screen after files have been added to the patient list.
+     */
+    public void updatePatientList() {
+        // Need to set color for all of the new Swing components added.
+        setColor(getMainContainer());
+        setProcessedStatus();
+
+        long now = System.currentTimeMillis();
+        if ((now - lastRepaint) > 200) {
+            JScrollBar scrollBar = patientScrollPane.getVerticalScrollBar();
+            scrollBar.setValue(scrollBar.getMaximum());
+            patientScrollPane.paintAll(patientScrollPane.getGraphics());
+            lastRepaint = now;
         }
     }
 
+    /**
+     * Get the number of threads to use for reading DICOM headers. The command
+     * line overrides the configuration file.
+     * 
+     * @return Number of threads.
+     */
+    private static int getIngestThreadCount() {
+        if (ingestThreadCount > 0) return ingestThreadCount;
+        return ClientConfig.getInstance().getIngestThreadCount();
+    }
+
+    /**
+     * Load the given files, reading their headers in parallel. In GUI mode
+     * this returns immediately and the files are loaded in the background.
+     * In command line mode this returns when all files have been loaded.
+     * 
+     * @param fileList
+     *            Files and directories to load.
+     */
     public void filesDropped(File[] fileList) {
-        class Add implements Runnable {
-            File[] fileList = null;
+        IngestPipeline pipeline = new IngestPipeline(this, fileList, getIngestThreadCount(), !inCommandLineMode());
+        ingestPipeline = pipeline;
+        if (inCommandLineMode()) {
+            pipeline.run();
+        }
+        else {
+            setPreviewEnableable(false);
+            class Ingest implements Runnable {
+                IngestPipeline pipeline = null;
 
-            Add(File[] fileList) {
-                this.fileList = fileList;
-            }
+                Ingest(IngestPipeline pipeline) {
+                    this.pipeline = pipeline;
+                }
 
-            public void run() {
-                for (File file : fileList) {
+                public void run() {
                     try {
-                        addDicomFile(file, true);
+                        pipeline.run();
                     }
-                    catch (OutOfMemoryError t) {
-                        String msg = "The program has run out of memory reading file " + file.getAbsolutePath();
-                        Log.get().severe(msg);
-                        showMessage(msg);
-                        outOfMemory(msg);
+                    finally {
+                        HeaderIndex.getInstance().save();
+                        setPreviewEnableable(true);
+                        indicateThatStatisticsHaveChanged();
                     }
                 }
-
             }
+            new Thread(new Ingest(pipeline)).start();
         }
-        SwingUtilities.invokeLater(new Thread(new Add(fileList)));
     }
 
     /**
@@ -1555,37 +1706,51 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
         }
     }
 
-    static public ArrayList<Series> getAllSeries(Container container, ArrayList<Series> seriesList) {
-        if (container == null) container = DicomClient.getInstance().getMainContainer();
-        if (seriesList == null) seriesList = new ArrayList<Series>();
-        for (Component component : container.getComponents()) {
-            if (component instanceof Series) {
-                seriesList.add((Series) component);
-            }
-            if (component instanceof Container) {
-                getAllSeries((Container) component, seriesList);
-            }
+    /**
+     * Get all of the loaded series, ordered by patient, study, and the order
+     * in which they were loaded.
+     * 
+     * @return List of all series.
+     */
+    static public ArrayList<Series> getAllSeries() {
+        ArrayList<Series> seriesList = new ArrayList<Series>();
+        for (Patient patient : getInstance().getPatientList()) {
+            seriesList.addAll(patient.getSeriesList());
         }
         return seriesList;
     }
 
     /**
-     * Process all series in the given container to the currently
-     * specified PACS.
-     * 
-     * @param container
-     *            GUI component to be searched for series.
+     * Process all loaded series according to the current processing mode.
      */
     static private void processAll() {
-        try {
-            for (Series series : getAllSeries(null, null)) {
-                series.processSeries();
+        getInstance().processSeries(getAllSeries());
+    }
+
+    /**
+     * Process the given series according to the current processing mode on
+     * the engine's worker threads. The series are handed to the workers by a
+     * separate thread so that the caller, usually the event thread, does not
+     * wait when the workers are busy.
+     * 
+     * @param seriesList
+     *            Series to process.
+     */
+    public void processSeries(final List<Series> seriesList) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (Series series : seriesList) {
+                        series.processSeries();
+                    }
+                    setProcessedStatus();
+                }
+                catch (OutOfMemoryError t) {
+                    outOfMemory("");
+                }
             }
-            getInstance().setProcessedStatus();
-        }
-        catch (OutOfMemoryError t) {
-            DicomClient.getInstance().outOfMemory("");
-        }
+        }, "SeriesDispatcher");
+        thread.start();
     }
 
     /**
@@ -1661,36 +1826,9 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
     }
 
     /**
-     * Check to see if no file exists in the user specified directory with the
-     * given prefix and each of the given suffixes.
-     * 
-     * @param dir
-     *            Directory to search.
-     * 
-     * @param prefix
-     *            Base name of file(s).
-     * 
-     * @param suffixList
-     *            Suffix for each file(s).
-     * 
-     * @return True if none of the files exist, and the prefix may be used to
-     *         create new files without overwriting existing files.
-     */
-    boolean testPrefix(String prefix, ArrayList<String> suffixList) {
-        File dir = getDestinationDirectory();
-        for (int s = 0; s < suffixList.size(); s++) {
-            File file = new File(dir, prefix + suffixList.get(s));
-            if (file.exists()) return false;
-        }
-        return true;
-    }
-
-    /**
-     * Get an available file prefix to be written to. No file should exist with
-     * this prefix and any of the suffixes provided. The file prefix will also
-     * represent the content of the attribute list. The point of this is to be
-     * able to create a set of files with the given prefix and suffixes without
-     * overwriting any existing files.
+     * Get an available file prefix to be written to in the user specified
+     * directory. No file should exist with this prefix and any of the
+     * suffixes provided.
      * 
      * @param attributeList
      *            Content that will be written.
@@ -1702,43 +1840,14 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
      *         not exist in the user specified directory.
      */
     public String getAvailableFilePrefix(AttributeList attributeList, ArrayList<String> suffixList) throws SecurityException {
-
-        String patientIdText = Util.getAttributeValue(attributeList, TagFromName.PatientID);
-        String modalityText = Util.getAttributeValue(attributeList, TagFromName.Modality);
-        String seriesNumberText = Util.getAttributeValue(attributeList, TagFromName.SeriesNumber);
-        String instanceNumberText = Util.getAttributeValue(attributeList, TagFromName.InstanceNumber);
-
-        while ((instanceNumberText != null) && (instanceNumberText.length() < 4)) {
-            instanceNumberText = "0" + instanceNumberText;
-        }
-
-        String name = "";
-        name += (patientIdText == null) ? "" : patientIdText;
-        name += (modalityText == null) ? "" : ("_" + modalityText);
-        name += (seriesNumberText == null) ? "" : ("_" + seriesNumberText);
-        name += (instanceNumberText == null) ? "" : ("_" + instanceNumberText);
-
-        name = name.replace(' ', '_');
-
-        // try the prefix without an extra number to make it unique
-        if (testPrefix(name, suffixList)) return name;
-
-        // keep trying different unique numbers until one is found that is not
-        // taken
-        int count = 1;
-        while (true) {
-            String uniquifiedName = name + "_" + count;
-            if (testPrefix(uniquifiedName, suffixList)) return uniquifiedName;
-            count++;
-        }
-
+        return engine.getAvailableFilePrefix(getDestinationDirectory(), attributeList, suffixList);
     }
 
     private static void usage(String msg) {
         System.err.println(msg);
         String usage =
                 "Usage:\n\n" +
-                        "    DICOMClient [ -c ] [ -P patient_id ] [ -o output_file ] [ -3 ] [ -z ] [ -g ] inFile1 inFile2 ...\n" +
+                        "    DICOMClient [ -c ] [ -P patient_id ] [ -o output_file ] [ -3 ] [ -z ] [ -g ] [ -j threads ] [ -w threads ] [ -k key_file ] [ -x ] [ -r journal_file ] [ -s sidecars ] inFile1 inFile2 ...\n" +
                         "        -c Run in command line mode (without GUI)\n" +
                         "        -P Specify new patient ID for anonymization\n" +
                         "        -o Specify output file for anonymization (single file only, command line only)\n" +
@@ -1748,7 +1857,16 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                         "        -l preload.xml Preload UIDs for anonymization.  This allows anonymizing to take place over multiple sessions.\n" +
                         "        -z Replace each control character in generated XML files that describe DICOM attributes with a blank.  Required by SAS\n" +
                         "        -g Perform aggressive anonymization - anonymize fields that are not marked for\n" +
-                        "           anonymization but contain strings found in fields that are marked for anonymization.\n";
+                        "           anonymization but contain strings found in fields that are marked for anonymization.\n" +
+                        "        -j Number of threads used to read DICOM headers when loading files.  Defaults to the configuration file.\n" +
+                        "        -w Number of series anonymized or uploaded at the same time.  Defaults to the configuration file.\n" +
+                        "        -k key_file Derive anonymized UIDs from a keyed hash of the original patient ID and UID, using the secret\n" +
+                        "           key in key_file.  Runs with the same key give the same UIDs without preloading.\n" +
+                        "        -x Write each anonymized file with the transfer syntax of the original instead of implicit VR little endian.\n" +
+                        "        -r journal_file Record new UIDs and patient IDs in journal_file as they are made.  If the run is interrupted,\n" +
+                        "           running again with the same journal_file gives the same UIDs and skips series that were finished.\n" +
+                        "        -s sidecars Comma separated list of files to write beside each anonymized file: txt, png, xml, all or none.\n" +
+                        "           Defaults to the configuration file.\n";
         System.err.println(usage);
         System.exit(1);
     }
@@ -1815,16 +1933,65 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                                                     preloadFile = new File(args[a]);
                                                 }
                                                 else {
-                                                    if (args[a].startsWith("-")) {
-                                                        usage("Invalid argument: " + args[a]);
-                                                        System.exit(1);
+                                                    if (args[a].equals("-j")) {
+                                                        a++;
+                                                        ingestThreadCount = Integer.parseInt(args[a]);
+                                                        if (ingestThreadCount < 1) {
+                                                            usage("Number of threads must be at least 1: " + args[a]);
+                                                        }
                                                     }
                                                     else {
-                                                        fileList = new String[args.length - a];
-                                                        int f = 0;
-                                                        for (; a < args.length; a++) {
-                                                            fileList[f] = args[a];
-                                                            f++;
+                                                        if (args[a].equals("-w")) {
+                                                            a++;
+                                                            processThreadCount = Integer.parseInt(args[a]);
+                                                            if (processThreadCount < 1) {
+                                                                usage("Number of threads must be at least 1: " + args[a]);
+                                                            }
+                                                        }
+                                                        else {
+                                                            if (args[a].equals("-k")) { // key for deriving UIDs
+                                                                a++;
+                                                                uidHashKey = Utility.readFile(new File(args[a])).trim();
+                                                                if (uidHashKey.length() == 0) {
+                                                                    usage("Key file is empty: " + args[a]);
+                                                                }
+                                                            }
+                                                            else {
+                                                                if (args[a].equals("-x")) {
+                                                                    keepTransferSyntax = true;
+                                                                }
+                                                                else {
+                                                                    if (args[a].equals("-r")) { // UID journal
+                                                                        a++;
+                                                                        journalFile = new File(args[a]);
+                                                                    }
+                                                                    else {
+                                                                        if (args[a].equals("-s")) {
+                                                                            a++;
+                                                                            try {
+                                                                                sidecarSet = Sidecar.parse(args[a]);
+                                                                            }
+                                                                            catch (IllegalArgumentException e) {
+                                                                                usage(e.getMessage());
+                                                                            }
+                                                                        }
+                                                                        else {
+                                                                            if (args[a].startsWith("-")) {
+                                                                                usage("Invalid argument: " + args[a]);
+                                                                                System.exit(1);
+                                                                            }
+                                                                            else {
+                                                                                fileList = new String[args.length - a];
+                                                                                int f = 0;
+                                                                                for (; a < args.length; a++) {
+                                                                                    fileList[f] = args[a];
+                                                                                    f++;
+                                                                                }
+                                                                            }
+                                                                        }
+                                                                    }
+                                                                }
+                                                            }
                                                         }
                                                     }
                                                 }
@@ -1838,6 +2005,15 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
                 }
             }
 
+            if (journalFile != null) {  // Restore the journal before preloading so that preloaded UIDs are not forgotten by it.
+                try {
+                    Anonymize.openJournal(journalFile);
+                }
+                catch (IOException e) {
+                    usage("Unable to open UID journal " + journalFile.getAbsolutePath() + " : " + e.getMessage());
+                }
+            }
+
             if (preloadFile != null) {  // Do this last because we need to know if we are in command line mode or not.
                 Anonymize.preloadUids(preloadFile);
             }
@@ -1897,6 +2073,56 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
     }
     */
 
+    /**
+     * Load and anonymize the given files without a GUI, as specified by the
+     * command line parameters. Exit with a failure status if anonymization
+     * fails.
+     * 
+     * @param fileList
+     *            Files and directories to anonymize.
+     */
+    private static void processCommandLine(File[] fileList) {
+        DicomEngine engine = new DicomEngine();
+        engine.setDefaultPatientId(defaultPatientId);
+        engine.setOutputFile(commandParameterOutputFile);
+        engine.setDestinationDirectory(commandParameterOutputDirectory);
+        engine.setShowDetails(showDetails);
+        if (processThreadCount > 0) engine.setProcessThreadCount(processThreadCount);
+        if (keepTransferSyntax) engine.setKeepTransferSyntax(true);
+        if (sidecarSet != null) engine.setSidecars(sidecarSet);
+        engine.addListener(new EngineListener() {
+            public void message(String message) {
+                System.err.println(message);
+            }
+
+            public void seriesAdded(EngineSeries series) {
+            }
+
+            public void fileWritten(EngineSeries series, File file) {
+            }
+
+            public void progress(EngineSeries series, int count, int total) {
+            }
+        });
+        engine.load(fileList, getIngestThreadCount());
+        try {
+            engine.anonymizeAll();
+            Anonymize.closeJournal();
+        }
+        catch (DicomException e) {
+            String msg = "DICOM error - unable to anonymize series : " + e;
+            Log.get().severe(msg);
+            System.err.println(msg);
+            System.exit(1);
+        }
+        catch (IOException e) {
+            String msg = "File error - unable to anonymize series : " + e;
+            Log.get().severe(msg);
+            System.err.println(msg);
+            System.exit(1);
+        }
+    }
+
     /**
      * @param args
      */
@@ -1920,21 +2146,28 @@ public class DicomClient implements ActionListener, FileDrop.Listener, ChangeLis
             CustomAttributeList.setDictionary(CustomDictionary.getInstance());
 
             Anonymize.setTemplate(ClientConfig.getInstance().getAnonPatientIdTemplate());
-
-            DicomClient dicomClient = getInstance();
-            //dicomClient.setupTrustStore();
+            try {
+                Anonymize.setUidHashKey((uidHashKey == null) ? ClientConfig.getInstance().getUidHashKey() : uidHashKey);
+            }
+            catch (IllegalArgumentException e) {
+                Log.get().severe(e.getMessage());
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
 
             // If in command line mode, then anonymize all files and exit
-            // happily
+            // happily.  No GUI is built.
             if (inCommandLineMode()) {
-                for (String fileName : args) {
-                    dicomClient.addDicomFile(new File(fileName), true);
+                File[] fileList = new File[args.length];
+                for (int f = 0; f < args.length; f++) {
+                    fileList[f] = new File(args[f]);
                 }
-                Series.processOk = true;
-                processAll();
+                processCommandLine(fileList);
                 System.exit(0);
             }
             else {
+                DicomClient dicomClient = getInstance();
+                //dicomClient.setupTrustStore();
                 // doGc();
                 File[] fileList = new File[args.length];
                 int f = 0;
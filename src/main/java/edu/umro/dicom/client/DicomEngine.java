@@ -0,0 +1,1394 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.SetOfDicomFiles;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.util.General;
+import edu.umro.util.Log;
+
+/**
+ * Load, group, anonymize, write, and upload DICOM files without a GUI.
+ *
+ * Files are grouped into patients and series as they are loaded. Each series
+ * can then be anonymized, which writes a new set of files, or uploaded to a
+ * PACS. Progress is reported to any number of <code>EngineListener</code>s.
+ *
+ * An engine keeps all of its own state, so more than one may be used at the
+ * same time. The exception is the history of anonymized UIDs kept by
+ * <code>Anonymize</code>, which is shared, so that the same UID is always
+ * given the same anonymized value.
+ *
+ * The GUI uses an engine to do its processing, overriding the methods that
+ * depend on choices made by the user.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class DicomEngine {
+
+    /** Notified of progress. */
+    private final CopyOnWriteArrayList<EngineListener> listenerList = new CopyOnWriteArrayList<EngineListener>();
+
+    /** Patients indexed by patient ID, in the order that they were loaded. */
+    private final LinkedHashMap<String, EnginePatient> patientIndex = new LinkedHashMap<String, EnginePatient>();
+
+    /** Only one upload is done at a time. */
+    private final Semaphore uploadLock = new Semaphore(1);
+
+    /** Allocator of new file names for each destination directory. */
+    private final HashMap<File, FileNameAllocator> fileNameAllocatorList = new HashMap<File, FileNameAllocator>();
+
+    /** Number of series processed at the same time. */
+    private volatile int processThreadCount = ClientConfig.getInstance().getProcessThreadCount();
+
+    /** Runs the processing of series. Created when first needed. */
+    private SeriesScheduler scheduler = null;
+
+    /** Anonymizes the slices of series in parallel. Created when first needed. */
+    private ExecutorService sliceExecutor = null;
+
+    /** Number of threads that write anonymized files. */
+    private volatile int writeThreadCount = ClientConfig.getInstance().getWriteThreadCount();
+
+    /** Writes anonymized files while the slice threads go on to the next slices. Created when first needed. */
+    private ExecutorService writeExecutor = null;
+
+    /** Writes sidecars in parallel with each other and with anonymizing. Created when first needed. */
+    private ExecutorService sidecarExecutor = null;
+
+    /** Directory where anonymized files are written. */
+    private volatile File destinationDirectory = null;
+
+    /** If not null, the single file to which the anonymized file is written. */
+    private volatile File outputFile = null;
+
+    /** Text, image and XML versions written beside each anonymized file. Replaced, never changed. */
+    private volatile EnumSet<Sidecar> sidecarSet = ClientConfig.getInstance().getSidecars();
+
+    /** Files at least this many bytes long are anonymized without reading their pixel data into memory. */
+    private volatile long streamingThreshold = ClientConfig.getInstance().getStreamingThreshold();
+
+    /** If true, write anonymized files with the transfer syntax of the original instead of the default. */
+    private volatile boolean keepTransferSyntax = ClientConfig.getInstance().getKeepTransferSyntax();
+
+    /** If true, show the tag, VR and VM of each attribute in text files. */
+    private volatile boolean showDetails = false;
+
+    /** Next patient ID to use for anonymizing, or null to generate them. */
+    private String defaultPatientId = null;
+
+    /** Set to stop processing. */
+    private volatile boolean cancelled = false;
+
+    /** Number of files loaded. */
+    private final AtomicInteger fileCount = new AtomicInteger(0);
+
+    /** Number of files anonymized. */
+    private final AtomicInteger anonymizedCount = new AtomicInteger(0);
+
+    /**
+     * Adds files from an <code>IngestPipeline</code>.
+     */
+    private class Loader implements IngestPipeline.Loader {
+        public AttributeList readDicomFile(File file) {
+            return DicomEngine.this.readDicomFile(file);
+        }
+
+        public void addDicomFile(File file, AttributeList attributeList) {
+            DicomEngine.this.addDicomFile(file, attributeList);
+        }
+
+        public void showMessage(String message) {
+            DicomEngine.this.showMessage(message);
+        }
+
+        public void updatePatientList() {
+        }
+
+        public void outOfMemory(String message) {
+            Log.get().severe(message);
+            DicomEngine.this.showMessage(message);
+            cancel();
+        }
+    }
+
+    public void addListener(EngineListener listener) {
+        listenerList.add(listener);
+    }
+
+    public void removeListener(EngineListener listener) {
+        listenerList.remove(listener);
+    }
+
+    public File getDestinationDirectory() {
+        return destinationDirectory;
+    }
+
+    public void setDestinationDirectory(File destinationDirectory) {
+        this.destinationDirectory = destinationDirectory;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Write the anonymized file to the given file instead of the destination
+     * directory. Only useful when anonymizing a single file.
+     *
+     * @param outputFile
+     *            File to write, or null to write to the destination directory.
+     */
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public boolean getWriteSidecars() {
+        return !sidecarSet.isEmpty();
+    }
+
+    /**
+     * Write all sidecars or none.
+     *
+     * @param writeSidecars
+     *            True to write text, image and XML versions of each
+     *            anonymized file.
+     */
+    public void setWriteSidecars(boolean writeSidecars) {
+        sidecarSet = writeSidecars ? EnumSet.allOf(Sidecar.class) : EnumSet.noneOf(Sidecar.class);
+    }
+
+    public EnumSet<Sidecar> getSidecars() {
+        return EnumSet.copyOf(sidecarSet);
+    }
+
+    public void setSidecars(EnumSet<Sidecar> sidecarSet) {
+        this.sidecarSet = EnumSet.copyOf(sidecarSet);
+    }
+
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * Set the size of files that are anonymized by copying their pixel data
+     * instead of reading it. Streaming is not used when sidecars are written,
+     * because the image needs the pixel data.
+     *
+     * @param streamingThreshold
+     *            Size in bytes, or a negative number to never stream.
+     */
+    public void setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public boolean getKeepTransferSyntax() {
+        return keepTransferSyntax;
+    }
+
+    /**
+     * Set whether anonymized files are written with the transfer syntax of
+     * the original file. When they are, and sidecars are not written, the
+     * pixel data is copied without being decoded, even if it is compressed.
+     *
+     * @param keepTransferSyntax
+     *            True to keep the original transfer syntax.
+     */
+    public void setKeepTransferSyntax(boolean keepTransferSyntax) {
+        this.keepTransferSyntax = keepTransferSyntax;
+    }
+
+    public boolean getShowDetails() {
+        return showDetails;
+    }
+
+    public void setShowDetails(boolean showDetails) {
+        this.showDetails = showDetails;
+    }
+
+    /**
+     * Set the patient ID to use for the first patient loaded. Patients loaded
+     * after that get the next ID in sequence.
+     *
+     * @param defaultPatientId
+     *            First patient ID, or null to generate them.
+     */
+    public synchronized void setDefaultPatientId(String defaultPatientId) {
+        this.defaultPatientId = defaultPatientId;
+    }
+
+    public int getProcessThreadCount() {
+        return processThreadCount;
+    }
+
+    /**
+     * Set the number of series processed at the same time. Only effective
+     * before the first series is processed.
+     *
+     * @param processThreadCount
+     *            Number of worker threads.
+     */
+    public void setProcessThreadCount(int processThreadCount) {
+        this.processThreadCount = Math.max(1, processThreadCount);
+    }
+
+    public int getWriteThreadCount() {
+        return writeThreadCount;
+    }
+
+    /**
+     * Set the number of threads that write anonymized files. Only effective
+     * before the first file is written.
+     *
+     * @param writeThreadCount
+     *            Number of writer threads.
+     */
+    public void setWriteThreadCount(int writeThreadCount) {
+        this.writeThreadCount = Math.max(1, writeThreadCount);
+    }
+
+    /**
+     * Get the scheduler that runs the processing of series, creating it if
+     * necessary. At most two tasks per worker may be waiting or running.
+     *
+     * @return The scheduler.
+     */
+    private synchronized SeriesScheduler getScheduler() {
+        if (scheduler == null) {
+            scheduler = new SeriesScheduler(processThreadCount, processThreadCount * 2);
+            if (cancelled) scheduler.cancel();
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the threads that anonymize slices, creating them if necessary.
+     * Slices are started in the order that they were submitted.
+     *
+     * @return The slice threads.
+     */
+    private synchronized ExecutorService getSliceExecutor() {
+        if (sliceExecutor == null) {
+            sliceExecutor = Executors.newFixedThreadPool(processThreadCount, new ThreadFactory() {
+                private int threadNumber = 0;
+
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SliceWorker-" + (++threadNumber));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sliceExecutor;
+    }
+
+    /**
+     * Make a pool of threads with a bounded queue of work. A thread that
+     * submits work when the queue is full waits until there is room, so that
+     * work waiting to be done does not fill memory.
+     *
+     * @param threadName
+     *            Name of threads, which are numbered.
+     *
+     * @param threadCount
+     *            Number of threads.
+     *
+     * @param queueSize
+     *            Most work that may wait.
+     *
+     * @return The threads.
+     */
+    private static ExecutorService newBoundedExecutor(final String threadName, int threadCount, int queueSize) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private int threadNumber = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + "-" + (++threadNumber));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler waitForRoom = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                try {
+                    executor.getQueue().put(runnable);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting to queue work for " + threadName, e);
+                }
+            }
+        };
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory,
+                waitForRoom);
+    }
+
+    /**
+     * Get the threads that write anonymized files, creating them if
+     * necessary. At most two files per slice thread may be waiting to be
+     * written, so that anonymized files do not fill memory when the disk is
+     * slow.
+     *
+     * @return The writer threads.
+     */
+    private synchronized ExecutorService getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = newBoundedExecutor("FileWriter", writeThreadCount, processThreadCount * 2);
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * Get the threads that write sidecars, creating them if necessary. Making
+     * sidecars mostly uses the processor, so there is one thread per
+     * processor. At most the sidecars of two files per slice thread may be
+     * waiting.
+     *
+     * @return The sidecar threads.
+     */
+    private synchronized ExecutorService getSidecarExecutor() {
+        if (sidecarExecutor == null) {
+            sidecarExecutor = newBoundedExecutor("SidecarWriter", Runtime.getRuntime().availableProcessors(),
+                    processThreadCount * 2 * Sidecar.values().length);
+        }
+        return sidecarExecutor;
+    }
+
+    /**
+     * Process a series on one of the worker threads. Waits if the workers
+     * are busy and enough work is already waiting. Work submitted for the
+     * same series is done in order, one at a time.
+     *
+     * @param series
+     *            Series that the task processes.
+     *
+     * @param task
+     *            Work to do.
+     *
+     * @return True if the task was accepted, false if processing was
+     *         cancelled.
+     */
+    public boolean submit(EngineSeries series, Runnable task) {
+        return getScheduler().submit(series, task);
+    }
+
+    /**
+     * Wait until all submitted work has finished.
+     */
+    public void awaitIdle() {
+        getScheduler().awaitIdle();
+    }
+
+    /**
+     * Stop processing as soon as possible. Work that has not started is
+     * discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            if (scheduler != null) scheduler.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public int getFileCount() {
+        return fileCount.get();
+    }
+
+    public int getAnonymizedCount() {
+        return anonymizedCount.get();
+    }
+
+    /**
+     * Send a message to the listeners.
+     *
+     * @param message
+     *            Message for the user.
+     */
+    protected void showMessage(String message) {
+        Log.get().info("User message: " + message);
+        for (EngineListener listener : listenerList) {
+            listener.message(message);
+        }
+    }
+
+    /**
+     * Get the patient ID for anonymizing a patient. A patient that was given
+     * one before, possibly by an earlier run with the same UID journal, gets
+     * the same one. Otherwise a new one is made that has not been used.
+     *
+     * @param originalPatientId
+     *            Patient ID before anonymization.
+     *
+     * @return Anonymized patient ID.
+     */
+    private synchronized String makeNewPatientId(String originalPatientId) {
+        String patientId = Anonymize.getPatientId(originalPatientId);
+        if (patientId != null) return patientId;
+
+        if (defaultPatientId == null) {
+            patientId = Anonymize.makeUniquePatientId();
+        }
+        else {
+            do {
+                patientId = defaultPatientId;
+                defaultPatientId = General.increment(patientId);
+            } while (Anonymize.isPatientIdUsed(patientId));
+        }
+        Anonymize.putPatientId(originalPatientId, patientId);
+        return patientId;
+    }
+
+    /**
+     * Read the header of the given DICOM file.
+     *
+     * @param file
+     *            File to read.
+     *
+     * @return Header, which is empty if the file could not be read.
+     */
+    protected AttributeList readDicomFile(File file) {
+        try {
+            return Util.readDicomHeader(file);
+        }
+        catch (Exception e) {
+            // The content is checked by the caller.
+            Log.get().severe("Error reading DICOM file " + file.getAbsolutePath() + " : " + e);
+        }
+        return new AttributeList();
+    }
+
+    /**
+     * Load the given files, reading their headers in parallel. Returns when
+     * all of the files have been loaded.
+     *
+     * @param fileList
+     *            Files and directories to load. Directories are descended one level.
+     *
+     * @param threadCount
+     *            Number of threads reading headers.
+     */
+    public void load(File[] fileList, int threadCount) {
+        new IngestPipeline(new Loader(), fileList, threadCount, false).run();
+    }
+
+    /**
+     * If there is no valid SOP instance UID, then create one and add it.
+     */
+    private void ensureSOPInstanceUID(File file, AttributeList attributeList) {
+        if (!DicomClient.hasValidSOPInstanceUID(attributeList)) {
+            try {
+                Attribute attribute = AttributeFactory.newAttribute(TagFromName.SOPInstanceUID);
+                attribute.addValue(Util.getUID());
+                attributeList.put(attribute);
+                showMessage("No valid SOP Instance UID found.  Making random one for DICOM file: " + file.getAbsolutePath());
+            }
+            catch (DicomException e) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * Determine if two directories are the same, either of which may be null.
+     */
+    private static boolean sameDirectory(File a, File b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Add a file whose header has already been read. If it is not a DICOM
+     * file then show a message and ignore it. Files are grouped into series
+     * by series instance UID and directory.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @param attributeList
+     *            Header of the file.
+     */
+    public synchronized void addDicomFile(File file, AttributeList attributeList) {
+        try {
+            fileCount.incrementAndGet();
+            if (attributeList.size() < DicomClient.MIN_ATTRIBUTE_COUNT) {
+                if (Anonymize.isPreloadFile(file)) {
+                    Anonymize.preloadUids(file);
+                    return;
+                }
+                showMessage(file.getAbsolutePath() + " does not appear to be a DICOM file and is being ignored.");
+                return;
+            }
+
+            ensureSOPInstanceUID(file, attributeList);
+
+            String patientId = Util.getAttributeValue(attributeList, TagFromName.PatientID);
+            patientId = (patientId == null) ? "none" : new String(patientId);
+
+            EnginePatient patient = null;
+            synchronized (patientIndex) {
+                patient = patientIndex.get(patientId);
+                if (patient == null) {
+                    patient = new EnginePatient(patientId, makeNewPatientId(patientId));
+                    patientIndex.put(patientId, patient);
+                }
+            }
+
+            String studyInstanceUID = Util.getAttributeValue(attributeList, TagFromName.StudyInstanceUID);
+            studyInstanceUID = (studyInstanceUID == null) ? "" : studyInstanceUID;
+            String seriesInstanceUID = Util.getAttributeValue(attributeList, TagFromName.SeriesInstanceUID);
+            seriesInstanceUID = (seriesInstanceUID == null) ? "" : seriesInstanceUID;
+            String sopInstanceUID = Util.getAttributeValue(attributeList, TagFromName.SOPInstanceUID);
+
+            for (EngineSeries series : patient.findSeries(studyInstanceUID, seriesInstanceUID)) {
+                if (sameDirectory(series.getDirectory(), file.getParentFile())) {
+                    if (series.containsFile(file)) {
+                        showMessage("File " + file.getAbsolutePath() + " has already been loaded and is being ignored.");
+                    }
+                    else if (series.containsSOPInstanceUID(sopInstanceUID)) {
+                        showMessage("File " + file.getAbsolutePath() + " has the same SOPInstanceUID as a file " +
+                                "already in the same directory is being ignored.  If you want load " +
+                                "two or more files with the same SOPInstanceUID, they must be in different directories (folders).");
+                    }
+                    else {
+                        String msg = series.addFile(file, attributeList);
+                        if (msg != null) showMessage(msg);
+                    }
+                    return;
+                }
+            }
+
+            EngineSeries series = new EngineSeries(patient, file, attributeList);
+            series.addFile(file, attributeList);
+            patient.addSeries(series);
+            Log.get().info("Added series " + series);
+            for (EngineListener listener : listenerList) {
+                listener.seriesAdded(series);
+            }
+        }
+        catch (Exception e) {
+            Log.get().severe("Unexpected error in DicomEngine.addDicomFile: " + Log.fmtEx(e));
+        }
+    }
+
+    /**
+     * Get all of the loaded patients in the order that they were loaded.
+     *
+     * @return List of patients.
+     */
+    public ArrayList<EnginePatient> getPatientList() {
+        synchronized (patientIndex) {
+            return new ArrayList<EnginePatient>(patientIndex.values());
+        }
+    }
+
+    /**
+     * Get all of the loaded series, ordered by patient, study, and the order
+     * in which they were loaded.
+     *
+     * @return List of all series.
+     */
+    public ArrayList<EngineSeries> getAllSeries() {
+        ArrayList<EngineSeries> seriesList = new ArrayList<EngineSeries>();
+        for (EnginePatient patient : getPatientList()) {
+            seriesList.addAll(patient.getSeriesList());
+        }
+        return seriesList;
+    }
+
+    /**
+     * Determine if the user may choose how an attribute is anonymized.
+     *
+     * @param tag
+     *            Tag of attribute.
+     *
+     * @return True if it may be anonymized.
+     */
+    static boolean isAnonymizable(AttributeTag tag) {
+        if (tag.getGroup() == 2) return false;
+        byte[] vr = CustomDictionary.getInstance().getValueRepresentationFromTag(tag);
+        if (vr == null) return false;
+        if (ValueRepresentation.isOtherByteOrWordVR(vr)) return false;
+        if (ValueRepresentation.isSequenceVR(vr)) return false;
+        return true;
+    }
+
+    /**
+     * Get the list of anonymization values for a file in the given series.
+     * This is the default list from the configuration file with the patient's
+     * anonymized ID and name.
+     *
+     * @param series
+     *            Series being anonymized.
+     *
+     * @param attributeList
+     *            Contents of the file that is about to be anonymized.
+     *
+     * @return List of values to replace.
+     *
+     * @throws DicomException
+     *             On invalid PatientID or PatientName
+     */
+    protected AttributeList getReplacementList(EngineSeries series, AttributeList attributeList) throws DicomException {
+        AttributeList replacementAttributeList = new AttributeList();
+
+        Iterator<?> i = ClientConfig.getInstance().getAnonymizingReplacementList().values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            AttributeTag tag = attribute.getTag();
+            if (isAnonymizable(tag) && (!tag.equals(TagFromName.PatientID)) && (!tag.equals(TagFromName.PatientName))) {
+                Attribute replacement = AttributeFactory.newAttribute(tag);
+                replacement.addValue(attribute.getSingleStringValueOrEmptyString());
+                replacementAttributeList.put(replacement);
+            }
+        }
+
+        Attribute patientId = AttributeFactory.newAttribute(TagFromName.PatientID);
+        patientId.addValue(series.getPatient().getAnonymizedPatientId());
+        replacementAttributeList.put(patientId);
+
+        Attribute patientName = AttributeFactory.newAttribute(TagFromName.PatientName);
+        patientName.addValue(series.getPatient().getAnonymizedPatientName());
+        replacementAttributeList.put(patientName);
+
+        return replacementAttributeList;
+    }
+
+    /**
+     * Get the preferred file prefix for the given content:
+     * <code>PatientID_Modality_SeriesNumber_InstanceNumber</code>, leaving
+     * out values that are not present.
+     *
+     * @param attributeList
+     *            Content that will be written.
+     *
+     * @return File prefix, which may already be taken.
+     */
+    private static String getFilePrefix(AttributeList attributeList) {
+        String patientIdText = Util.getAttributeValue(attributeList, TagFromName.PatientID);
+        String modalityText = Util.getAttributeValue(attributeList, TagFromName.Modality);
+        String seriesNumberText = Util.getAttributeValue(attributeList, TagFromName.SeriesNumber);
+        String instanceNumberText = Util.getAttributeValue(attributeList, TagFromName.InstanceNumber);
+
+        while ((instanceNumberText != null) && (instanceNumberText.length() < 4)) {
+            instanceNumberText = "0" + instanceNumberText;
+        }
+
+        String name = "";
+        name += (patientIdText == null) ? "" : patientIdText;
+        name += (modalityText == null) ? "" : ("_" + modalityText);
+        name += (seriesNumberText == null) ? "" : ("_" + seriesNumberText);
+        name += (instanceNumberText == null) ? "" : ("_" + instanceNumberText);
+
+        return name.replace(' ', '_');
+    }
+
+    /**
+     * Get an available file prefix to be written to. No file should exist with
+     * this prefix and any of the suffixes provided. The file prefix will also
+     * represent the content of the attribute list. The point of this is to be
+     * able to create a set of files with the given prefix and suffixes without
+     * overwriting any existing files.
+     *
+     * The name is reserved with the same allocator that names the files this
+     * engine writes, so the two never choose the same name.
+     *
+     * @param dir
+     *            Directory where files will be written.
+     *
+     * @param attributeList
+     *            Content that will be written.
+     *
+     * @param suffixList
+     *            List of suffixes needed. Suffixes are expected be provided
+     *            with a leading '.' if desired by the caller.
+     *
+     * @return A file prefix that, when appended with each of the prefixes, does
+     *         not exist in the given directory.
+     */
+    public String getAvailableFilePrefix(File dir, AttributeList attributeList, ArrayList<String> suffixList) throws SecurityException {
+        FileNameAllocator allocator = getFileNameAllocator(dir);
+        String filePrefix = getFilePrefix(attributeList);
+        // Files made by other programs since the directory was listed are skipped too.
+        while (true) {
+            String prefix = allocator.reserve(filePrefix, suffixList);
+            boolean available = true;
+            for (String suffix : suffixList) {
+                if (new File(dir, prefix + suffix).exists()) available = false;
+            }
+            if (available) return prefix;
+        }
+    }
+
+    /**
+     * Get the allocator of file names for a destination directory, listing
+     * the directory the first time.
+     *
+     * @param dir
+     *            Destination directory.
+     *
+     * @return Allocator for the directory.
+     */
+    private FileNameAllocator getFileNameAllocator(File dir) {
+        synchronized (fileNameAllocatorList) {
+            FileNameAllocator allocator = fileNameAllocatorList.get(dir);
+            if (allocator == null) {
+                if ((dir != null) && (!dir.exists())) dir.mkdirs();
+                allocator = new FileNameAllocator(dir);
+                fileNameAllocatorList.put(dir, allocator);
+            }
+            return allocator;
+        }
+    }
+
+    /**
+     * Forget the names of files in destination directories, so that they are
+     * listed again. This should be done when files may have been removed
+     * from them.
+     */
+    public void clearFileNames() {
+        synchronized (fileNameAllocatorList) {
+            fileNameAllocatorList.clear();
+        }
+    }
+
+    /**
+     * Save the anonymized DICOM as text, XML or, if possible, as an image,
+     * using the same name as the DICOM file with a different suffix. Problems
+     * are reported instead of thrown, because the DICOM file is still good.
+     *
+     * @param sidecar
+     *            Version to write.
+     *
+     * @param attributeList
+     *            Anonymized DICOM. It is only read, so different sidecars
+     *            may be written from it at the same time.
+     *
+     * @param file
+     *            File where anonymized DICOM was written.
+     */
+    public void writeSidecar(Sidecar sidecar, AttributeList attributeList, File file) {
+        String fileName = file.getName();
+        int dotIndex = fileName.lastIndexOf('.');
+        String baseName = (dotIndex == -1) ? fileName : fileName.substring(0, dotIndex);
+        File dir = (file.getParentFile() == null) ? new File(".") : file.getParentFile();
+        File sidecarFile = new File(dir, baseName + sidecar.getSuffix());
+
+        switch (sidecar) {
+        case TEXT:
+            try {
+                Log.get().info("Writing text file: " + sidecarFile.getAbsolutePath());
+                Util.writeTextFile(attributeList, sidecarFile, showDetails);
+            }
+            catch (Exception e) {
+                showMessage("Unable to write anonymized text file " + sidecarFile.getAbsolutePath() + " : " + e);
+            }
+            break;
+
+        case PNG:
+            try {
+                Log.get().info("Writing PNG file: " + sidecarFile.getAbsolutePath());
+                Util.writePngFile(attributeList, sidecarFile);
+            }
+            catch (Exception e) {
+                Log.get().warning("Unable to write image file as part of anonymization for file " + sidecarFile.getAbsolutePath() + " : " + Log.fmtEx(e));
+            }
+            break;
+
+        case XML:
+            try {
+                Log.get().info("Writing XML file: " + sidecarFile.getAbsolutePath());
+                Util.writeXmlFile(attributeList, sidecarFile);
+            }
+            catch (Exception e) {
+                showMessage("Unable to write anonymized XML file " + sidecarFile.getAbsolutePath() + " : " + e);
+            }
+            break;
+        }
+
+        if (Anonymize.isJournalOpen() && sidecarFile.exists()) {
+            try {
+                Util.syncFile(sidecarFile);
+            }
+            catch (IOException e) {
+                Log.get().warning("Unable to sync file " + sidecarFile.getAbsolutePath() + " : " + Log.fmtEx(e));
+            }
+        }
+    }
+
+    /**
+     * Start writing the selected sidecars of an anonymized file on the
+     * sidecar threads.
+     *
+     * @param attributeList
+     *            Anonymized DICOM, which must not be changed afterwards.
+     *
+     * @param file
+     *            File where anonymized DICOM was written.
+     *
+     * @return The sidecars being written.
+     */
+    private List<Future<?>> submitSidecars(final AttributeList attributeList, final File file) {
+        ArrayList<Future<?>> futureList = new ArrayList<Future<?>>();
+        for (final Sidecar sidecar : sidecarSet) {
+            futureList.add(getSidecarExecutor().submit(new Runnable() {
+                public void run() {
+                    writeSidecar(sidecar, attributeList, file);
+                }
+            }));
+        }
+        return futureList;
+    }
+
+    /**
+     * Wait for sidecars to be written. Sidecars report their own problems,
+     * so anything thrown is unexpected and only logged.
+     *
+     * @param futureList
+     *            Sidecars being written.
+     */
+    private static void awaitSidecars(List<Future<?>> futureList) throws InterruptedException {
+        for (Future<?> future : futureList) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                Log.get().severe("Unexpected failure writing sidecar: " + Log.fmtEx(e.getCause()));
+            }
+        }
+    }
+
+    /**
+     * Write an anonymized file, either to the output file or to a new file in
+     * the destination directory, and then its sidecars if they are wanted.
+     *
+     * @param attributeList
+     *            Anonymized DICOM.
+     *
+     * @return File written.
+     */
+    public File write(AttributeList attributeList) throws IOException, DicomException {
+        File newFile = reserveFile(attributeList);
+        writeFile(attributeList, newFile, getOutputTransferSyntax(attributeList, null));
+        try {
+            awaitSidecars(submitSidecars(attributeList, newFile));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing sidecars of " + newFile.getAbsolutePath());
+        }
+        return newFile;
+    }
+
+    /**
+     * Get the transfer syntax to write an anonymized file with. This is the
+     * default unless the original transfer syntax is being kept. Compressed
+     * pixel data is decompressed when the whole file is read, so in that case
+     * the default is used too.
+     *
+     * @param attributeList
+     *            Contents of the original file, before its meta information is
+     *            replaced.
+     *
+     * @param streamer
+     *            Used to copy the pixel data, or null if the whole file was
+     *            read.
+     *
+     * @return Transfer syntax UID.
+     */
+    private String getOutputTransferSyntax(AttributeList attributeList, StreamingAnonymizer streamer) {
+        if (!keepTransferSyntax) return Util.DEFAULT_TRANSFER_SYNTAX;
+        if (streamer != null) return streamer.getTransferSyntax();
+        String transferSyntax = Util.getAttributeValue(attributeList, TagFromName.TransferSyntaxUID);
+        if ((transferSyntax == null) || (!new TransferSyntax(transferSyntax).isRecognized()) || TransferSyntax.isEncapsulated(transferSyntax)) {
+            return Util.DEFAULT_TRANSFER_SYNTAX;
+        }
+        return transferSyntax;
+    }
+
+    /**
+     * Choose the file that an anonymized file will be written to, either the
+     * output file or a new file in the destination directory. A new file is
+     * created empty so that the name will not be chosen again.
+     *
+     * @param attributeList
+     *            Anonymized DICOM.
+     *
+     * @return File to write.
+     */
+    private File reserveFile(AttributeList attributeList) throws IOException {
+        File newFile = getOutputFile();
+        if (newFile == null) {
+            ArrayList<String> suffixList = new ArrayList<String>();
+            suffixList.add(Util.DICOM_SUFFIX);
+            for (Sidecar sidecar : sidecarSet) {
+                suffixList.add(sidecar.getSuffix());
+            }
+            File dir = getDestinationDirectory();
+            FileNameAllocator allocator = getFileNameAllocator(dir);
+            String prefix = getFilePrefix(attributeList);
+            // Creating the file also detects files made by other programs since the directory was listed.
+            do {
+                newFile = new File(dir, allocator.reserve(prefix, suffixList) + Util.DICOM_SUFFIX);
+            } while (!newFile.createNewFile());
+        }
+        else {
+            File dir = newFile.getParentFile();
+            if ((dir != null) && (!dir.exists())) dir.mkdirs();
+        }
+        return newFile;
+    }
+
+    /**
+     * Write an anonymized file that was read whole.
+     *
+     * @param attributeList
+     *            Anonymized DICOM.
+     *
+     * @param newFile
+     *            File to write.
+     *
+     * @param transferSyntax
+     *            Transfer syntax to write.
+     */
+    private void writeFile(AttributeList attributeList, File newFile, String transferSyntax) throws IOException, DicomException {
+        attributeList.write(newFile, transferSyntax, true, true);
+    }
+
+    /**
+     * Prepare to anonymize a file without reading its pixel data, if it is
+     * large enough or its transfer syntax is being kept, and it can be
+     * streamed.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @return Streaming anonymizer, or null if the whole file should be read.
+     */
+    private StreamingAnonymizer openStreaming(File file) {
+        long threshold = streamingThreshold;
+        boolean keep = keepTransferSyntax;
+        if ((!sidecarSet.isEmpty()) || (threshold < 0) || ((!keep) && (file.length() < threshold))) return null;
+        try {
+            StreamingAnonymizer streamer = StreamingAnonymizer.open(file);
+            if ((streamer != null) && (!keep) && (!streamer.canWrite(Util.DEFAULT_TRANSFER_SYNTAX))) return null;
+            return streamer;
+        }
+        catch (IOException e) {
+            Log.get().warning("Unable to stream file " + file.getAbsolutePath() + " so reading all of it instead: " + Log.fmtEx(e));
+            return null;
+        }
+    }
+
+    /**
+     * Lets steps that must be done in slice order take turns.
+     */
+    private static class Sequencer {
+        /** Index of the slice whose turn it is. */
+        private int turn = 0;
+
+        /**
+         * Wait for the turn of the given slice.
+         */
+        synchronized void await(int index) {
+            boolean interrupted = false;
+            while (turn < index) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /**
+         * End the turn of the given slice.
+         */
+        synchronized void advance(int index) {
+            turn = Math.max(turn, index + 1);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes one anonymized slice on a writer thread, and then starts writing
+     * its sidecars on the sidecar threads.
+     */
+    private class WriteTask implements Callable<File> {
+        private final AttributeList attributeList;
+        private final File newFile;
+        private final String transferSyntax;
+        private final StreamingAnonymizer streamer;
+        private final AtomicBoolean failed;
+        private final List<Future<?>> sidecarList;
+
+        WriteTask(AttributeList attributeList, File newFile, String transferSyntax, StreamingAnonymizer streamer, AtomicBoolean failed,
+                List<Future<?>> sidecarList) {
+            this.attributeList = attributeList;
+            this.newFile = newFile;
+            this.transferSyntax = transferSyntax;
+            this.streamer = streamer;
+            this.failed = failed;
+            this.sidecarList = sidecarList;
+        }
+
+        public File call() throws DicomException, IOException {
+            boolean done = false;
+            try {
+                if (streamer == null) {
+                    writeFile(attributeList, newFile, transferSyntax);
+                }
+                else {
+                    streamer.write(attributeList, newFile, transferSyntax);
+                }
+                // the series may be recorded as completed, so it must not be lost
+                if (Anonymize.isJournalOpen()) Util.syncFile(newFile);
+                done = true;
+                sidecarList.addAll(submitSidecars(attributeList, newFile));
+                return newFile;
+            }
+            finally {
+                // stop the rest of the series
+                if (!done) failed.set(true);
+            }
+        }
+    }
+
+    /**
+     * Anonymizes one slice of a series and queues it to be written. Reading
+     * and anonymizing are done in parallel with other slices, but UIDs are
+     * translated and file names are chosen in slice order so that the results
+     * are the same as anonymizing the slices one after another. The result is
+     * the pending write, or null if the slice was skipped.
+     */
+    private class SliceTask implements Callable<Future<File>> {
+        private final EngineSeries series;
+        private final InstanceRecord instance;
+        private final int index;
+        private final Sequencer uidTurn;
+        private final Sequencer nameTurn;
+        private final AtomicBoolean failed;
+        private final List<Future<?>> sidecarList;
+
+        SliceTask(EngineSeries series, InstanceRecord instance, int index, Sequencer uidTurn, Sequencer nameTurn, AtomicBoolean failed,
+                List<Future<?>> sidecarList) {
+            this.series = series;
+            this.instance = instance;
+            this.index = index;
+            this.uidTurn = uidTurn;
+            this.nameTurn = nameTurn;
+            this.failed = failed;
+            this.sidecarList = sidecarList;
+        }
+
+        public Future<File> call() throws DicomException, IOException {
+            boolean uidDone = false;
+            boolean nameDone = false;
+            try {
+                if (cancelled || failed.get()) return null;
+                StreamingAnonymizer streamer = openStreaming(instance.file);
+                AttributeList attributeList = (streamer == null) ? Util.readDicomFile(instance.file) : streamer.readHeader();
+                if (!DicomClient.hasValidSOPInstanceUID(attributeList)) {
+                    Attribute sopInstanceUID = AttributeFactory.newAttribute(TagFromName.SOPInstanceUID);
+                    sopInstanceUID.addValue(instance.sopInstanceUID);
+                    attributeList.put(sopInstanceUID);
+                }
+                AnonymizePlan plan = series.getPatient().getAnonymizePlan(getReplacementList(series, attributeList));
+
+                uidTurn.await(index);
+                Anonymize.translateUids(attributeList, plan);
+                uidTurn.advance(index);
+                uidDone = true;
+
+                Anonymize.anonymize(attributeList, plan);
+
+                // Indicate that the file was touched by this application. Also a subtle way to advertise. :)
+                String transferSyntax = getOutputTransferSyntax(attributeList, streamer);
+                FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, DicomClient.PROJECT_NAME);
+
+                nameTurn.await(index);
+                File newFile = reserveFile(attributeList);
+                nameTurn.advance(index);
+                nameDone = true;
+
+                return getWriteExecutor().submit(new WriteTask(attributeList, newFile, transferSyntax, streamer, failed, sidecarList));
+            }
+            catch (DicomException e) {
+                failed.set(true);
+                throw e;
+            }
+            catch (IOException e) {
+                failed.set(true);
+                throw e;
+            }
+            catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            }
+            finally {
+                // let the following slices have their turns
+                if (!uidDone) uidTurn.advance(index);
+                if (!nameDone) nameTurn.advance(index);
+            }
+        }
+    }
+
+    /**
+     * Anonymize a series and write the results to new files. Slices are done
+     * in parallel, giving the same UIDs and file names as doing them one after
+     * another, and are written by the writer threads. This returns after all
+     * of the files and their sidecars have been written, and the series is
+     * marked as anonymized if all of its files were written.
+     *
+     * @param series
+     *            Series to anonymize.
+     *
+     * @param listener
+     *            Also notified of progress, in addition to the engine's
+     *            listeners. May be null.
+     *
+     * @return List of files written, in slice order.
+     *
+     * @throws DicomException
+     *             If a file could not be interpreted as DICOM.
+     *
+     * @throws IOException
+     *             If a file could not be read or written.
+     */
+    public ArrayList<File> anonymize(EngineSeries series, EngineListener listener) throws DicomException, IOException {
+        List<EngineListener> notifyList = new ArrayList<EngineListener>(listenerList);
+        if (listener != null) notifyList.add(listener);
+        List<InstanceRecord> instanceList = series.getInstanceList();
+
+        Sequencer uidTurn = new Sequencer();
+        Sequencer nameTurn = new Sequencer();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> sidecarList = Collections.synchronizedList(new ArrayList<Future<?>>());
+        ArrayList<Future<Future<File>>> futureList = new ArrayList<Future<Future<File>>>(instanceList.size());
+        ExecutorService executor = getSliceExecutor();
+        for (int i = 0; i < instanceList.size(); i++) {
+            futureList.add(executor.submit(new SliceTask(series, instanceList.get(i), i, uidTurn, nameTurn, failed, sidecarList)));
+        }
+
+        ArrayList<File> filesCreated = new ArrayList<File>();
+        Throwable failure = null;
+        int count = 0;
+        for (Future<Future<File>> future : futureList) {
+            File newFile = null;
+            try {
+                // wait for the slice to be anonymized and then written
+                Future<File> write = future.get();
+                if (write != null) newFile = write.get();
+            }
+            catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+            }
+            catch (InterruptedException e) {
+                failed.set(true);
+                if (failure == null) failure = e;
+            }
+            if (newFile != null) {
+                filesCreated.add(newFile);
+                anonymizedCount.incrementAndGet();
+                count++;
+                Log.get().info("Anonymized to file: " + newFile.getAbsolutePath());
+                for (EngineListener l : notifyList) {
+                    l.fileWritten(series, newFile);
+                    l.progress(series, count, instanceList.size());
+                }
+            }
+        }
+
+        // all writes are done, so no more sidecars will be added
+        try {
+            awaitSidecars(new ArrayList<Future<?>>(sidecarList));
+        }
+        catch (InterruptedException e) {
+            if (failure == null) failure = e;
+        }
+
+        if (failure instanceof DicomException) throw (DicomException) failure;
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new IOException("Interrupted while anonymizing series " + series);
+
+        if (filesCreated.size() == instanceList.size()) {
+            series.setAnonymized(true);
+            Anonymize.seriesCompleted(series.getPatient().getPatientId(), getSeriesKey(series));
+        }
+        return filesCreated;
+    }
+
+    /**
+     * Get the key that identifies a series in the UID journal.
+     */
+    private static String getSeriesKey(EngineSeries series) {
+        File directory = (series.getDirectory() == null) ? new File(".") : series.getDirectory();
+        return series.getPatient().getPatientId() + "\0" + series.getStudyInstanceUID() + "\0" + series.getSeriesInstanceUID() + "\0"
+                + directory.getAbsolutePath();
+    }
+
+    /**
+     * Anonymize all loaded series on the worker threads. After the first
+     * failure, series that have not been started are skipped. Series that
+     * were completed by an earlier run with the same UID journal are also
+     * skipped. Returns when all series have been processed.
+     *
+     * @throws DicomException
+     *             If a file could not be interpreted as DICOM.
+     *
+     * @throws IOException
+     *             If a file could not be read or written.
+     */
+    public void anonymizeAll() throws DicomException, IOException {
+        final Exception[] failure = new Exception[1];
+
+        class AnonymizeTask implements Runnable {
+            private final EngineSeries series;
+
+            AnonymizeTask(EngineSeries series) {
+                this.series = series;
+            }
+
+            public void run() {
+                try {
+                    anonymize(series, null);
+                }
+                catch (Exception e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) failure[0] = e;
+                    }
+                    cancel();
+                }
+            }
+        }
+
+        for (EngineSeries series : getAllSeries()) {
+            if (Anonymize.isSeriesCompleted(getSeriesKey(series))) {
+                series.setAnonymized(true);
+                showMessage("Series " + series + " was anonymized by an earlier run and is being skipped.");
+                continue;
+            }
+            if (!submit(series, new AnonymizeTask(series))) break;
+        }
+        awaitIdle();
+
+        synchronized (failure) {
+            if (failure[0] instanceof DicomException) throw (DicomException) failure[0];
+            if (failure[0] instanceof IOException) throw (IOException) failure[0];
+            if (failure[0] != null) throw new RuntimeException(failure[0]);
+        }
+    }
+
+    /**
+     * Upload the given files to a PACS. Files that can not be read are
+     * reported and skipped.
+     *
+     * @param series
+     *            Series that the files belong to, for reporting progress.
+     *
+     * @param fileList
+     *            Files to upload.
+     *
+     * @param pacs
+     *            Destination.
+     *
+     * @return Null on success, or a description of the problem.
+     */
+    public String upload(EngineSeries series, List<File> fileList, PACS pacs) {
+        String failText = "";
+        int failCount = 0;
+        SetOfDicomFiles setOfDicomFiles = new SetOfDicomFiles();
+        for (File file : fileList) {
+            try {
+                setOfDicomFiles.add(file);
+            }
+            catch (IOException e) {
+                failCount++;
+                String message = "Unable to read file " + file.getAbsolutePath() + " : " + e + "\n";
+                failText += message;
+                Log.get().warning(message);
+            }
+        }
+        if (failCount > 0) {
+            showMessage("While uploading, " + failCount + " files out of " + fileList.size() +
+                    " failed to upload.  Details below.\n\n" + failText);
+        }
+
+        if (setOfDicomFiles.isEmpty()) return null;
+
+        try {
+            uploadLock.acquireUninterruptibly();
+            DicomPush dicomPush = new DicomPush(pacs, setOfDicomFiles, null);
+            String pushError = dicomPush.push();
+            if (pushError != null) {
+                return pushError;
+            }
+        }
+        catch (Exception e) {
+            return "Remaining uploads for this series are being aborted.  Exception: " + e;
+        }
+        finally {
+            uploadLock.release();
+        }
+        Log.get().info("Uploaded " + setOfDicomFiles.size() + " files to PACS " + pacs);
+        for (EngineListener listener : listenerList) {
+            listener.progress(series, fileList.size(), fileList.size());
+        }
+        return null;
+    }
+}
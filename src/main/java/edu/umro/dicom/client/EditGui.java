@@ -565,7 +565,7 @@ public class EditGui implements ActionListener, WindowListener {
         if (saveAsText.isSelected()) {
             try {
                 File textFile = new File(destFile.getParentFile(), prefix + Util.TEXT_SUFFIX);
-                Util.writeTextFile(attributeList, textFile);
+                Util.writeTextFile(attributeList, textFile, preview.getShowDetails());
             }
             catch (Exception e) {
                 return "Unable to save text version of " + destFile.getAbsolutePath() + " : " + e.toString();
@@ -0,0 +1,71 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+/**
+ * Receive notification of what a <code>DicomEngine</code> is doing. Methods
+ * are called by whichever thread is doing the work, so implementations that
+ * update a GUI must pass the work to the event thread themselves.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public interface EngineListener {
+
+    /**
+     * A message intended for the user.
+     *
+     * @param message
+     *            Text of message.
+     */
+    void message(String message);
+
+    /**
+     * A new series was found while loading files.
+     *
+     * @param series
+     *            New series.
+     */
+    void seriesAdded(EngineSeries series);
+
+    /**
+     * A file of a series has been anonymized and written.
+     *
+     * @param series
+     *            Series being anonymized.
+     *
+     * @param file
+     *            New DICOM file.
+     */
+    void fileWritten(EngineSeries series, File file);
+
+    /**
+     * Progress has been made processing a series.
+     *
+     * @param series
+     *            Series being processed.
+     *
+     * @param count
+     *            Number of files done.
+     *
+     * @param total
+     *            Number of files in the series.
+     */
+    void progress(EngineSeries series, int count, int total);
+}
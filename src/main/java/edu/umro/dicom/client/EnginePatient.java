@@ -0,0 +1,166 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.pixelmed.dicom.AttributeList;
+
+/**
+ * A patient as seen by the <code>DicomEngine</code>: the series loaded for
+ * the patient, grouped by study, and the values to use for the patient ID
+ * and name when anonymizing. There is no GUI associated with this class.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class EnginePatient {
+
+    /** Patient ID as found in the DICOM files. */
+    private final String patientId;
+
+    /** Patient ID to use when anonymizing. */
+    private volatile String anonymizedPatientId;
+
+    /** Patient name to use when anonymizing. */
+    private volatile String anonymizedPatientName;
+
+    /** Most recent plan for anonymizing this patient, or null if there is none yet. */
+    private volatile AnonymizePlan anonymizePlan = null;
+
+    /** Series of each study indexed by study instance UID, in the order that they were loaded. */
+    private final LinkedHashMap<String, ArrayList<EngineSeries>> studyIndex = new LinkedHashMap<String, ArrayList<EngineSeries>>();
+
+    /**
+     * Construct a patient.
+     *
+     * @param patientId
+     *            Patient ID as found in the DICOM files.
+     *
+     * @param anonymizedPatientId
+     *            Patient ID and name to use when anonymizing.
+     */
+    public EnginePatient(String patientId, String anonymizedPatientId) {
+        this.patientId = patientId;
+        this.anonymizedPatientId = anonymizedPatientId;
+        this.anonymizedPatientName = anonymizedPatientId;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getAnonymizedPatientId() {
+        return anonymizedPatientId;
+    }
+
+    public void setAnonymizedPatientId(String anonymizedPatientId) {
+        this.anonymizedPatientId = anonymizedPatientId;
+    }
+
+    public String getAnonymizedPatientName() {
+        return anonymizedPatientName;
+    }
+
+    public void setAnonymizedPatientName(String anonymizedPatientName) {
+        this.anonymizedPatientName = anonymizedPatientName;
+    }
+
+    /**
+     * Get the plan for anonymizing files of this patient with the given
+     * replacement values. The plan is compiled once and used for the
+     * following files of the patient for as long as the replacement values
+     * stay the same.
+     *
+     * @param replacementAttributeList
+     *            Values to be written into anonymized objects.
+     *
+     * @return Plan compiled from the given values.
+     */
+    public AnonymizePlan getAnonymizePlan(AttributeList replacementAttributeList) {
+        AnonymizePlan plan = anonymizePlan;
+        if ((plan == null) || (!plan.isCompiledFrom(replacementAttributeList))) {
+            plan = new AnonymizePlan(replacementAttributeList);
+            anonymizePlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * Add a series to this patient.
+     *
+     * @param series
+     *            New series.
+     */
+    public void addSeries(EngineSeries series) {
+        synchronized (studyIndex) {
+            ArrayList<EngineSeries> seriesList = studyIndex.get(series.getStudyInstanceUID());
+            if (seriesList == null) {
+                seriesList = new ArrayList<EngineSeries>();
+                studyIndex.put(series.getStudyInstanceUID(), seriesList);
+            }
+            seriesList.add(series);
+        }
+    }
+
+    /**
+     * Find the series of the given study that have the given series instance
+     * UID. There may be more than one if they were loaded from different
+     * directories.
+     *
+     * @param studyInstanceUID
+     *            Study to search.
+     *
+     * @param seriesInstanceUID
+     *            Series to look for.
+     *
+     * @return List of matching series, empty if there are none.
+     */
+    public ArrayList<EngineSeries> findSeries(String studyInstanceUID, String seriesInstanceUID) {
+        ArrayList<EngineSeries> list = new ArrayList<EngineSeries>();
+        synchronized (studyIndex) {
+            ArrayList<EngineSeries> seriesList = studyIndex.get(studyInstanceUID);
+            if (seriesList != null) {
+                for (EngineSeries series : seriesList) {
+                    if (series.getSeriesInstanceUID().equals(seriesInstanceUID)) list.add(series);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get a list of all series for this patient, ordered by study.
+     *
+     * @return List of series.
+     */
+    public ArrayList<EngineSeries> getSeriesList() {
+        ArrayList<EngineSeries> list = new ArrayList<EngineSeries>();
+        synchronized (studyIndex) {
+            for (ArrayList<EngineSeries> seriesList : studyIndex.values()) {
+                list.addAll(seriesList);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return patientId;
+    }
+}
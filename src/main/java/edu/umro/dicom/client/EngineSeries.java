@@ -0,0 +1,179 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.SOPClassDescriptions;
+import com.pixelmed.dicom.TagFromName;
+
+/**
+ * A series as seen by the <code>DicomEngine</code>: the files in the series
+ * and whether it has been anonymized. Files in the same series but in
+ * different directories are kept as different series. There is no GUI
+ * associated with this class.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class EngineSeries {
+
+    /** Patient to which this series belongs. */
+    private final EnginePatient patient;
+
+    private final String studyInstanceUID;
+
+    private final String seriesInstanceUID;
+
+    /** Directory containing the files. */
+    private final File directory;
+
+    /** Short description for messages. */
+    private final String summary;
+
+    /** Files in this series. */
+    private final InstanceList instanceList = new InstanceList();
+
+    /** True if this series has been anonymized. */
+    private volatile boolean isAnonymized = false;
+
+    /**
+     * Construct a series from its first file. The file is not added.
+     *
+     * @param patient
+     *            Patient to which this series belongs.
+     *
+     * @param file
+     *            First file of series.
+     *
+     * @param attributeList
+     *            Header of file.
+     */
+    public EngineSeries(EnginePatient patient, File file, AttributeList attributeList) {
+        this.patient = patient;
+        String studyUid = Util.getAttributeValue(attributeList, TagFromName.StudyInstanceUID);
+        studyInstanceUID = (studyUid == null) ? "" : studyUid;
+        String seriesUid = Util.getAttributeValue(attributeList, TagFromName.SeriesInstanceUID);
+        seriesInstanceUID = (seriesUid == null) ? "" : seriesUid;
+        directory = file.getParentFile();
+
+        String modality = Util.getAttributeValue(attributeList, TagFromName.Modality);
+        if (modality == null) {
+            modality = SOPClassDescriptions.getAbbreviationFromUID(Util.getAttributeValue(attributeList, TagFromName.MediaStorageSOPClassUID));
+        }
+        String seriesNumber = Util.getAttributeValue(attributeList, TagFromName.SeriesNumber);
+        String seriesDescription = Util.getAttributeValue(attributeList, TagFromName.SeriesDescription);
+        String text = patient.getPatientId();
+        text += (seriesNumber == null) ? "" : " " + seriesNumber;
+        text += (modality == null) ? " No modality" : " " + modality;
+        text += (seriesDescription == null) ? "" : " " + seriesDescription;
+        summary = text;
+    }
+
+    /**
+     * Add a file to this series.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @param attributeList
+     *            Header of file.
+     *
+     * @return Null on success, or a message describing why the file was not added.
+     */
+    public String addFile(File file, AttributeList attributeList) {
+        return instanceList.put(file, attributeList);
+    }
+
+    public EnginePatient getPatient() {
+        return patient;
+    }
+
+    public String getStudyInstanceUID() {
+        return studyInstanceUID;
+    }
+
+    public String getSeriesInstanceUID() {
+        return seriesInstanceUID;
+    }
+
+    /**
+     * Get the directory where series is stored.
+     *
+     * @return Directory where series is stored.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the files of this series in sorted order.
+     *
+     * @return List of files.
+     */
+    public ArrayList<File> getFileList() {
+        return instanceList.values();
+    }
+
+    /**
+     * Get the instances of this series in sorted order.
+     *
+     * @return List of instances.
+     */
+    ArrayList<InstanceRecord> getInstanceList() {
+        return instanceList.getList();
+    }
+
+    /**
+     * Get the file at the given position in sorted order.
+     *
+     * @param index
+     *            Position of file.
+     *
+     * @return File at that position.
+     */
+    public File getFile(int index) {
+        return instanceList.getFile(index);
+    }
+
+    public int size() {
+        return instanceList.size();
+    }
+
+    public boolean containsFile(File file) {
+        return instanceList.containsFile(file);
+    }
+
+    public boolean containsSOPInstanceUID(String sopInstanceUID) {
+        return instanceList.containsSOPInstanceUID(sopInstanceUID);
+    }
+
+    public boolean isAnonymized() {
+        return isAnonymized;
+    }
+
+    void setAnonymized(boolean isAnonymized) {
+        this.isAnonymized = isAnonymized;
+    }
+
+    @Override
+    public String toString() {
+        return summary;
+    }
+}
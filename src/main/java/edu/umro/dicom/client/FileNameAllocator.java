@@ -0,0 +1,114 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Choose names for new files in a directory without overwriting existing
+ * files. The directory is listed once, and after that names are checked
+ * and reserved in memory, so that choosing a name does not require asking
+ * the file system whether each candidate exists, and threads sharing an
+ * allocator never choose the same name.
+ *
+ * Names are compared ignoring case so that they are also unique on file
+ * systems that ignore case. Files created by other programs after the
+ * directory was listed are not known, so callers should still create their
+ * files in a way that fails if the file exists.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class FileNameAllocator {
+
+    /** Directory where files will be created. */
+    private final File directory;
+
+    /** Lower case names of files that exist or have been reserved. */
+    private final HashSet<String> nameList = new HashSet<String>();
+
+    /** Next number to try for each lower case prefix that has been numbered. */
+    private final HashMap<String, Integer> nextNumber = new HashMap<String, Integer>();
+
+    /**
+     * Create an allocator, listing the files already in the directory.
+     *
+     * @param directory
+     *            Directory where files will be created, or null for the
+     *            current directory.
+     */
+    public FileNameAllocator(File directory) {
+        this.directory = directory;
+        String[] list = ((directory == null) ? new File(".") : directory).list();
+        if (list != null) {
+            for (String name : list) {
+                nameList.add(name.toLowerCase());
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Determine if no file exists or is reserved with the given prefix and
+     * any of the given suffixes.
+     */
+    private boolean isAvailable(String prefix, List<String> suffixList) {
+        String lowerPrefix = prefix.toLowerCase();
+        for (String suffix : suffixList) {
+            if (nameList.contains(lowerPrefix + suffix.toLowerCase())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reserve a file prefix. If the prefix is taken with any of the
+     * suffixes, then an underscore and a number that makes it available is
+     * appended, counting up from 1 and skipping numbers already used with
+     * this prefix. The prefix with each suffix is reserved.
+     *
+     * @param prefix
+     *            Preferred prefix.
+     *
+     * @param suffixList
+     *            Suffixes that will be used with the prefix, with a leading
+     *            '.' if desired.
+     *
+     * @return Prefix that may be used with each suffix.
+     */
+    public synchronized String reserve(String prefix, List<String> suffixList) {
+        String name = prefix;
+        if (!isAvailable(name, suffixList)) {
+            // names are never released, so numbers that were taken before are still taken
+            String key = prefix.toLowerCase();
+            Integer next = nextNumber.get(key);
+            int number = (next == null) ? 1 : next;
+            while (!isAvailable(name = prefix + "_" + number, suffixList))
+                number++;
+            nextNumber.put(key, number + 1);
+        }
+        for (String suffix : suffixList) {
+            nameList.add((name + suffix).toLowerCase());
+        }
+        return name;
+    }
+}
@@ -0,0 +1,434 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.ValueRepresentation;
+
+import edu.umro.util.Log;
+
+/**
+ * Save the minimal headers of DICOM files between sessions so that files
+ * that have not changed do not have to be read again. A file is considered
+ * unchanged if its absolute path, size, and modification time are the same.
+ *
+ * The index is kept in memory while the application runs and is written to a
+ * single binary file. Each distinct string (path, UID, date, etc.) is written
+ * only once and thereafter referred to by number, which keeps the file small
+ * because most values are shared by all of the files in a series.
+ *
+ * The value representation and every value of each attribute are saved, so
+ * that the header recreated from the index is the same as the one that was
+ * read. Headers with attributes that can not be saved this way, such as
+ * sequences, are not indexed.
+ *
+ * The index holds patient names and IDs, so it is only kept if the
+ * configuration file names a file for it. The number of entries is limited,
+ * and the ones used least recently are dropped first.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class HeaderIndex {
+
+    /** Identifies the file format. */
+    private static final int MAGIC = 0x44434849;
+
+    /** Longest value that is saved, which keeps each within the limit of <code>writeUTF</code>. */
+    private static final int MAX_VALUE_LENGTH = 16 * 1024;
+
+    /** Change this if the format changes so that old files are ignored. */
+    private static final int VERSION = 2;
+
+    /** Header of a single file. */
+    private static class Entry {
+        final long length;
+        final long lastModified;
+
+        /** Group and element of each attribute. */
+        final int[] tagList;
+
+        /** Value representation of each attribute, as its two characters. */
+        final short[] vrList;
+
+        /** Values of each attribute, which may be none. */
+        final String[][] valueList;
+
+        /** When the entry was last added or used, for dropping old entries. */
+        volatile long lastUsed;
+
+        Entry(long length, long lastModified, int[] tagList, short[] vrList, String[][] valueList, long lastUsed) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.tagList = tagList;
+            this.vrList = vrList;
+            this.valueList = valueList;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static HeaderIndex instance = null;
+
+    /** File where the index is saved, or null if it is not saved. */
+    private final File indexFile;
+
+    /** Maximum number of entries that are saved. */
+    private final int maxSize;
+
+    /** Headers indexed by absolute path name. */
+    private final ConcurrentHashMap<String, Entry> entryList = new ConcurrentHashMap<String, Entry>();
+
+    /** True if there are entries that have not been saved. */
+    private volatile boolean modified = false;
+
+    /**
+     * Construct an index that is saved to the given file.
+     *
+     * @param indexFile
+     *            Where the index is saved, or null if it is not saved.
+     *
+     * @param maxSize
+     *            Maximum number of entries that are saved.
+     */
+    public HeaderIndex(File indexFile, int maxSize) {
+        this.indexFile = indexFile;
+        this.maxSize = maxSize;
+        if (indexFile != null) {
+            load();
+        }
+    }
+
+    /**
+     * Get the index that was specified in the configuration file.
+     *
+     * @return The index.
+     */
+    public static synchronized HeaderIndex getInstance() {
+        if (instance == null) {
+            instance = new HeaderIndex(ClientConfig.getInstance().getHeaderIndexFile(), ClientConfig.getInstance().getHeaderIndexSize());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the saved header of the given file.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @return A new copy of the header, or null if the file is not in the
+     *         index or has changed since it was saved.
+     */
+    public AttributeList get(File file) {
+        String path = file.getAbsolutePath();
+        Entry entry = entryList.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if ((entry.length != file.length()) || (entry.lastModified != file.lastModified())) {
+            // changed or gone, so the entry will not be used again
+            entryList.remove(path, entry);
+            modified = true;
+            return null;
+        }
+        AttributeList attributeList = new AttributeList();
+        try {
+            for (int t = 0; t < entry.tagList.length; t++) {
+                int tag = entry.tagList[t];
+                byte[] vr = { (byte) (entry.vrList[t] >>> 8), (byte) entry.vrList[t] };
+                Attribute attribute = AttributeFactory.newAttribute(new AttributeTag(tag >>> 16, tag & 0xffff), vr);
+                for (String value : entry.valueList[t]) {
+                    attribute.addValue(value);
+                }
+                attributeList.put(attribute);
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to use saved header for file " + path + " : " + e);
+            entryList.remove(path, entry);
+            modified = true;
+            return null;
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        return attributeList;
+    }
+
+    /**
+     * Determine if an attribute can be saved as a string and recreated from it.
+     */
+    private static boolean isSaveable(Attribute attribute) {
+        byte[] vr = attribute.getVR();
+        return (vr != null) && (vr.length == 2) && (!ValueRepresentation.isSequenceVR(vr)) && (!ValueRepresentation.isOtherByteOrWordVR(vr))
+                && (!ValueRepresentation.isUnknownVR(vr));
+    }
+
+    /**
+     * Save the header of the given file. If it contains attributes that are
+     * not represented by strings (sequences and binary data), then it is not
+     * saved, because the header recreated from the index would be missing
+     * them.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @param attributeList
+     *            Header of the file.
+     *
+     * @return True if the header was saved.
+     */
+    public boolean put(File file, AttributeList attributeList) {
+        String path = file.getAbsolutePath();
+        int size = attributeList.size();
+        int[] tagList = new int[size];
+        short[] vrList = new short[size];
+        String[][] valueList = new String[size][];
+        @SuppressWarnings("unchecked")
+        Iterator<Attribute> iter = attributeList.values().iterator();
+        try {
+            for (int t = 0; t < size; t++) {
+                Attribute attribute = iter.next();
+                if (!isSaveable(attribute)) {
+                    Log.get().fine("Not indexing header of " + path + " because it contains " + attribute.getTag());
+                    return false;
+                }
+                AttributeTag tag = attribute.getTag();
+                byte[] vr = attribute.getVR();
+                tagList[t] = (tag.getGroup() << 16) | tag.getElement();
+                vrList[t] = (short) (((vr[0] & 0xff) << 8) | (vr[1] & 0xff));
+                String[] values = attribute.getStringValues();
+                valueList[t] = (values == null) ? new String[0] : values;
+                for (String value : valueList[t]) {
+                    if (value.length() > MAX_VALUE_LENGTH) {
+                        Log.get().fine("Not indexing header of " + path + " because " + tag + " is too long");
+                        return false;
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to index header of " + path + " : " + e);
+            return false;
+        }
+        entryList.put(path, new Entry(file.length(), file.lastModified(), tagList, vrList, valueList, System.currentTimeMillis()));
+        modified = true;
+        return true;
+    }
+
+    /**
+     * Get the number of entries in the index.
+     *
+     * @return Number of entries.
+     */
+    public int size() {
+        return entryList.size();
+    }
+
+    /**
+     * Drop the least recently used entries if there are more than the
+     * maximum.
+     *
+     * @return Entries that remain.
+     */
+    private ArrayList<Map.Entry<String, Entry>> trim() {
+        ArrayList<Map.Entry<String, Entry>> list = new ArrayList<Map.Entry<String, Entry>>(entryList.entrySet());
+        if (list.size() > maxSize) {
+            Collections.sort(list, new Comparator<Map.Entry<String, Entry>>() {
+                public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                    long au = a.getValue().lastUsed;
+                    long bu = b.getValue().lastUsed;
+                    return (au > bu) ? -1 : ((au < bu) ? 1 : 0);
+                }
+            });
+            for (Map.Entry<String, Entry> old : list.subList(maxSize, list.size())) {
+                entryList.remove(old.getKey(), old.getValue());
+            }
+            list = new ArrayList<Map.Entry<String, Entry>>(list.subList(0, maxSize));
+        }
+        return list;
+    }
+
+    /**
+     * Read a string, either new or a reference to one already read.
+     */
+    private static String readString(DataInputStream in, ArrayList<String> stringList) throws IOException {
+        int index = in.readInt();
+        if (index < 0) {
+            String text = in.readUTF();
+            stringList.add(text);
+            return text;
+        }
+        return stringList.get(index);
+    }
+
+    /**
+     * Write a string, or a reference to it if it has already been written.
+     */
+    private static void writeString(DataOutputStream out, HashMap<String, Integer> stringList, String text) throws IOException {
+        Integer index = stringList.get(text);
+        if (index == null) {
+            out.writeInt(-1);
+            out.writeUTF(text);
+            stringList.put(text, stringList.size());
+        }
+        else {
+            out.writeInt(index);
+        }
+    }
+
+    /**
+     * Read the index from its file. If there is a problem, start with an
+     * empty index.
+     */
+    private void load() {
+        if (!indexFile.canRead()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                Log.get().info("Ignoring header index file with unknown format: " + indexFile.getAbsolutePath());
+                return;
+            }
+            ArrayList<String> stringList = new ArrayList<String>();
+            int count = in.readInt();
+            for (int e = 0; e < count; e++) {
+                String path = readString(in, stringList);
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                long lastUsed = in.readLong();
+                int size = in.readUnsignedShort();
+                int[] tagList = new int[size];
+                short[] vrList = new short[size];
+                String[][] valueList = new String[size][];
+                for (int t = 0; t < size; t++) {
+                    tagList[t] = in.readInt();
+                    vrList[t] = in.readShort();
+                    valueList[t] = new String[in.readUnsignedShort()];
+                    for (int v = 0; v < valueList[t].length; v++) {
+                        valueList[t][v] = readString(in, stringList);
+                    }
+                }
+                entryList.put(path, new Entry(length, lastModified, tagList, vrList, valueList, lastUsed));
+            }
+            Log.get().info("Read " + count + " entries from header index " + indexFile.getAbsolutePath() + " in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to read header index file " + indexFile.getAbsolutePath() + " : " + e);
+            entryList.clear();
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index to its file if it has changed, first dropping the
+     * least recently used entries if there are too many. The index is
+     * written to a temporary file first so that a failure does not destroy
+     * the old one.
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+        // take a copy so that the count matches the entries written
+        ArrayList<Map.Entry<String, Entry>> list = trim();
+        if (indexFile == null) {
+            return;
+        }
+        File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (indexFile.getParentFile() != null) {
+                indexFile.getParentFile().mkdirs();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(list.size());
+            HashMap<String, Integer> stringList = new HashMap<String, Integer>();
+            for (Map.Entry<String, Entry> mapEntry : list) {
+                Entry entry = mapEntry.getValue();
+                writeString(out, stringList, mapEntry.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.lastUsed);
+                out.writeShort(entry.tagList.length);
+                for (int t = 0; t < entry.tagList.length; t++) {
+                    out.writeInt(entry.tagList[t]);
+                    out.writeShort(entry.vrList[t]);
+                    out.writeShort(entry.valueList[t].length);
+                    for (String value : entry.valueList[t]) {
+                        writeString(out, stringList, value);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (indexFile.exists() && (!indexFile.delete())) {
+                throw new IOException("Unable to replace old file");
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Unable to rename " + tempFile.getAbsolutePath());
+            }
+        }
+        catch (Exception e) {
+            Log.get().warning("Unable to write header index file " + indexFile.getAbsolutePath() + " : " + e);
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    ;
+                }
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import com.pixelmed.dicom.AttributeList;
+
+import edu.umro.util.Log;
+
+/**
+ * Load a set of files in three stages:
+ *
+ * <ul>
+ * <li>A walker that expands the given directories into a list of files.</li>
+ * <li>A fixed size pool of threads that read the header of each file.</li>
+ * <li>A single updater that adds the headers to the patient list in batches.</li>
+ * </ul>
+ *
+ * Headers are added in the order that the files were found, so the resulting
+ * patient list is the same as if the files had been read one at a time. The
+ * number of headers waiting to be added is bounded so that a fast walker does
+ * not fill memory with headers when the screen is slow to update.
+ *
+ * Batches are either added by the calling thread or, for a GUI, on the
+ * Swing event thread, in which case this must not be run on the event thread.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class IngestPipeline implements Runnable {
+
+    /** Maximum number of files that have been found but not yet added to the patient list. */
+    private static final int QUEUE_SIZE = 512;
+
+    /** Maximum number of files added to the patient list in a single batch. */
+    private static final int BATCH_SIZE = 100;
+
+    /** How often in milliseconds the walker checks whether loading has stopped while the queue is full. */
+    private static final long PUT_TIMEOUT = 250;
+
+    /**
+     * Whatever the files are being loaded into.  The headers are read by
+     * multiple threads at the same time, but they are added by one thread.
+     */
+    interface Loader {
+
+        /** Read the header of a file. */
+        AttributeList readDicomFile(File file);
+
+        /** Add a file whose header has been read. */
+        void addDicomFile(File file, AttributeList attributeList);
+
+        /** Show a message to the user. */
+        void showMessage(String message);
+
+        /** Called after each batch of files has been added. */
+        void updatePatientList();
+
+        /** Called if memory runs out. */
+        void outOfMemory(String message);
+    }
+
+    /** Contents of a file as read by the header readers. */
+    private static class Header {
+        final File file;
+        final AttributeList attributeList;
+        final String message;
+
+        Header(File file, AttributeList attributeList, String message) {
+            this.file = file;
+            this.attributeList = attributeList;
+            this.message = message;
+        }
+    }
+
+    /** Marks the end of the list of files. */
+    private static final FutureTask<Header> END = completed(null);
+
+    private final Loader loader;
+
+    private final File[] fileList;
+
+    private final int threadCount;
+
+    /** If true, add headers on the Swing event thread. */
+    private final boolean useEventThread;
+
+    /** Headers in the order that their files were found. */
+    private final ArrayBlockingQueue<Future<Header>> queue = new ArrayBlockingQueue<Future<Header>>(QUEUE_SIZE);
+
+    /** Number of files whose headers have been read. */
+    private final AtomicInteger readCount = new AtomicInteger(0);
+
+    /** Set when headers are no longer being taken from the queue, so that the walker stops. */
+    private volatile boolean stopped = false;
+
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    /**
+     * Construct a pipeline to load the given files.
+     *
+     * @param loader What the files will be added to.
+     *
+     * @param fileList Files and directories to load.  Directories are descended one level.
+     *
+     * @param threadCount Number of threads reading headers.
+     *
+     * @param useEventThread If true, add the headers on the Swing event thread.
+     */
+    IngestPipeline(Loader loader, File[] fileList, int threadCount, boolean useEventThread) {
+        this.loader = loader;
+        this.fileList = fileList;
+        this.threadCount = Math.max(1, threadCount);
+        this.useEventThread = useEventThread;
+    }
+
+    /**
+     * Make a future that already has its value.
+     */
+    private static FutureTask<Header> completed(Header header) {
+        FutureTask<Header> future = new FutureTask<Header>(new Runnable() {
+            public void run() {
+            }
+        }, header);
+        future.run();
+        return future;
+    }
+
+    /**
+     * Add to the queue, waiting while it is full. Gives up if loading stops,
+     * so that the walker does not wait forever for a thread that has quit
+     * taking from the queue.
+     */
+    private void put(Future<Header> future) throws InterruptedException {
+        while (!queue.offer(future, PUT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            if (stopped) throw new InterruptedException("Loading files has stopped.");
+        }
+    }
+
+    /**
+     * Find all files and start reading their headers. Runs in its own thread.
+     */
+    private class Walker implements Runnable {
+        private final ExecutorService readers;
+
+        Walker(ExecutorService readers) {
+            this.readers = readers;
+        }
+
+        private void read(final File file) throws InterruptedException {
+            put(readers.submit(new Callable<Header>() {
+                public Header call() throws Exception {
+                    AttributeList attributeList = loader.readDicomFile(file);
+                    readCount.incrementAndGet();
+                    return new Header(file, attributeList, null);
+                }
+            }));
+        }
+
+        private void ignore(String message) throws InterruptedException {
+            put(completed(new Header(null, null, message)));
+        }
+
+        public void run() {
+            try {
+                for (File file : fileList) {
+                    if (file.isDirectory()) {
+                        File[] childList = file.listFiles();
+                        if (childList == null) {
+                            ignore(file.getAbsolutePath() + " is a directory that can not be read and is being ignored.");
+                            continue;
+                        }
+                        for (File child : childList) {
+                            if (child.isDirectory()) {
+                                ignore(child.getAbsolutePath() + " is a directory and is being ignored.");
+                            }
+                            else {
+                                read(child);
+                            }
+                        }
+                    }
+                    else {
+                        read(file);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Log.get().warning("Interrupted while looking for files to load: " + e);
+            }
+            catch (Exception e) {
+                Log.get().severe("Unexpected error while looking for files to load: " + Log.fmtEx(e));
+            }
+            finally {
+                try {
+                    put(END);
+                }
+                catch (InterruptedException e) {
+                    if (!stopped) Log.get().severe("Unable to finish loading files: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a batch of headers to the patient list.
+     */
+    private class Update implements Runnable {
+        private final ArrayList<Header> batch;
+
+        Update(ArrayList<Header> batch) {
+            this.batch = batch;
+        }
+
+        public void run() {
+            for (Header header : batch) {
+                if (header.message != null) {
+                    loader.showMessage(header.message);
+                }
+                else {
+                    loader.addDicomFile(header.file, header.attributeList);
+                }
+            }
+            loader.updatePatientList();
+        }
+    }
+
+    /**
+     * Get the header of the given file, reporting any problems.
+     *
+     * @return Header, or null if it could not be read.
+     */
+    private Header get(Future<Header> future) throws InterruptedException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OutOfMemoryError) {
+                loader.outOfMemory("The program has run out of memory reading files.");
+            }
+            else {
+                Log.get().severe("Unexpected error reading DICOM file: " + Log.fmtEx(cause));
+            }
+        }
+        return null;
+    }
+
+    private void update(ArrayList<Header> batch) throws Exception {
+        Update update = new Update(batch);
+        if (useEventThread) {
+            SwingUtilities.invokeAndWait(update);
+        }
+        else {
+            update.run();
+        }
+    }
+
+    /**
+     * Load all of the files, returning when they have all been added to the
+     * patient list.
+     */
+    public void run() {
+        startTime = System.currentTimeMillis();
+        ExecutorService readers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                count++;
+                Thread thread = new Thread(runnable, "IngestReader-" + count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread walker = new Thread(new Walker(readers), "IngestWalker");
+        walker.setDaemon(true);
+        walker.start();
+
+        try {
+            boolean done = false;
+            while (!done) {
+                ArrayList<Header> batch = new ArrayList<Header>();
+                Future<Header> future = queue.take();
+                // Add everything that is ready, but do not wait for more
+                // than one so that the screen keeps up with the readers.
+                while (true) {
+                    if (future == END) {
+                        done = true;
+                        break;
+                    }
+                    Header header = get(future);
+                    if (header != null) batch.add(header);
+                    future = queue.peek();
+                    if ((batch.size() >= BATCH_SIZE) || (future == null) || (!future.isDone())) break;
+                    queue.take();
+                }
+                if (!batch.isEmpty()) update(batch);
+            }
+        }
+        catch (OutOfMemoryError e) {
+            loader.outOfMemory("The program has run out of memory loading files.");
+        }
+        catch (Exception e) {
+            Log.get().severe("Unexpected error while loading files: " + Log.fmtEx(e));
+        }
+        finally {
+            stopped = true;
+            walker.interrupt();
+            readers.shutdownNow();
+            endTime = System.currentTimeMillis();
+            double seconds = (endTime - startTime) / 1000.0;
+            Log.get().info("Read " + readCount.get() + " files in " + seconds + " seconds using " + threadCount + " threads: " +
+                    String.format("%.1f", getFilesPerSecond()) + " files/second");
+        }
+    }
+
+    /**
+     * Get the number of files whose headers have been read.
+     *
+     * @return Number of files read.
+     */
+    public int getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * Determine if all files have been loaded.
+     *
+     * @return True if finished.
+     */
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * Get the rate at which headers are being read.
+     *
+     * @return Files per second.
+     */
+    public double getFilesPerSecond() {
+        long start = startTime;
+        if (start == 0) return 0;
+        long end = (endTime == 0) ? System.currentTimeMillis() : endTime;
+        long elapsed = Math.max(1, end - start);
+        return (readCount.get() * 1000.0) / elapsed;
+    }
+}
@@ -0,0 +1,219 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.util.Log;
+
+/**
+ * The instances (files) of a series, kept in sorted order and indexed by
+ * SOP instance UID and file name.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+class InstanceList {
+    private TreeSet<InstanceRecord> instList = new TreeSet<InstanceRecord>();
+
+    /** Instances in sorted order for access by index.  Set to null when the list changes and rebuilt when needed. */
+    private InstanceRecord[] sortedList = null;
+
+    /** Instances indexed by SOP instance UID. */
+    private HashMap<String, InstanceRecord> sopList = new HashMap<String, InstanceRecord>();
+
+    /** Absolute path names of all files. */
+    private HashSet<String> fileList = new HashSet<String>();
+
+    private Semaphore lock = new Semaphore(1);
+
+    private void acquire() {
+        try {
+            if (!lock.tryAcquire(10, TimeUnit.SECONDS)) {
+                Log.get().warning("Failed to acquire internal data lock");
+            }
+        }
+        catch (Exception e) {
+        }
+    }
+
+    private void release() {
+        lock.release();
+    }
+
+    /**
+     * Get the instances in sorted order. The caller must hold the lock.
+     *
+     * @return Sorted array of instances.
+     */
+    private InstanceRecord[] getSortedList() {
+        if (sortedList == null) {
+            sortedList = instList.toArray(new InstanceRecord[instList.size()]);
+        }
+        return sortedList;
+    }
+
+    /**
+     * Get the sortedList of file names in ascending order by instance
+     * number.
+     *
+     * @return List of file names.
+     */
+    public ArrayList<File> values() {
+        try {
+            acquire();
+            InstanceRecord[] sorted = getSortedList();
+            ArrayList<File> list = new ArrayList<File>(sorted.length);
+            for (InstanceRecord inst : sorted) list.add(inst.file);
+            return list;
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Get a copy of the list of instances in sorted order.
+     *
+     * @return List of instances.
+     */
+    public ArrayList<InstanceRecord> getList() {
+        try {
+            acquire();
+            return new ArrayList<InstanceRecord>(Arrays.asList(getSortedList()));
+        }
+        finally {
+            release();
+        }
+    }
+
+    public int size() {
+
+        try {
+            acquire();
+
+            return instList.size();
+        }
+        finally {
+            release();
+        }
+    }
+
+    public File getFirstFile() {
+        try {
+            acquire();
+            return instList.first().file;
+        }
+        finally {
+            release();
+        }
+    }
+
+    public File getFile(int i) {
+        try {
+            acquire();
+            return getSortedList()[i].file;
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Indicate whether or not the file is in this list.
+     *
+     * @param file
+     *            File for which to search.
+     *
+     * @return True if file is in list.
+     */
+    public boolean containsFile(File file) {
+        try {
+            acquire();
+            return fileList.contains(file.getAbsolutePath());
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Indicate whether or not an instance with the given UID is in this list.
+     *
+     * @param sopInstanceUID
+     *            SOP instance UID to search for
+     *
+     * @return True if instance is in list.
+     */
+    public boolean containsSOPInstanceUID(String sopInstanceUID) {
+        try {
+            acquire();
+            return sopList.containsKey(sopInstanceUID);
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Add a file to the list.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @param attributeList
+     *            Header of the file.
+     *
+     * @return Null on success, or a message describing why the file was not added.
+     */
+    public String put(File file, AttributeList attributeList) {
+        try {
+            acquire();
+
+            if (fileList.contains(file.getAbsolutePath())) {
+                return "The file " + file + " has already been loaded.";
+            }
+
+            String sopInstanceUID = attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString();
+            InstanceRecord old = sopList.get(sopInstanceUID);
+            if (old != null) {
+                return "The SOP Instance UID " + sopInstanceUID + " was already loaded with from file " + old.file + ", so ignoring file " + file.getAbsolutePath();
+            }
+
+            InstanceRecord instance = new InstanceRecord(sopInstanceUID, file, attributeList);
+            instList.add(instance);
+            sortedList = null;
+            sopList.put(sopInstanceUID, instance);
+            fileList.add(file.getAbsolutePath());
+
+            return null;
+        }
+        finally {
+            release();
+        }
+    }
+}
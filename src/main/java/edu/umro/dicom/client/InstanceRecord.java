@@ -0,0 +1,246 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.TagFromName;
+
+/**
+ * One instance (file) in a series. Only the values needed to sort the
+ * instances are kept, extracted from the header when the instance is
+ * loaded, so that the header itself can be discarded. Date and time
+ * values are interned because most are shared by many instances.
+ *
+ * Each numeric value is packed into a single long, ordered so that
+ * comparing the longs gives the same result as comparing the values,
+ * and sorting is just a matter of comparing two arrays of longs and then,
+ * rarely, the strings. Values that can not be ordered this way (numbers
+ * that could not be parsed and NaN, both of which compare equal to any
+ * value) are compared one value at a time instead.
+ *
+ * Instances are sorted by slice location, image position, instance
+ * number, a series of dates and times, and finally SOP instance UID.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+class InstanceRecord implements Comparable<InstanceRecord> {
+
+    /** Tags of numeric values used for sorting, in order of precedence. */
+    private static final AttributeTag[] NUMBER_TAG_LIST = {
+            TagFromName.SliceLocation,
+            TagFromName.ImagePositionPatient,
+            TagFromName.ImagePositionPatient,
+            TagFromName.ImagePositionPatient,
+            TagFromName.InstanceNumber
+    };
+
+    /** Index of the value used in each of the numeric tags. */
+    private static final int[] NUMBER_INDEX_LIST = { 0, 0, 1, 2, 0 };
+
+    /** Tags of text values used for sorting after the numeric values, in order of precedence. */
+    private static final AttributeTag[] TEXT_TAG_LIST = {
+            TagFromName.InstanceCreationDate,
+            TagFromName.InstanceCreationTime,
+            TagFromName.AcquisitionDate,
+            TagFromName.AcquisitionTime,
+            TagFromName.ContentDate,
+            TagFromName.ContentTime,
+            TagFromName.RTPlanDate,
+            TagFromName.RTPlanTime,
+            TagFromName.StructureSetDate,
+            TagFromName.StructureSetTime,
+            TagFromName.SOPInstanceUID
+    };
+
+    /**
+     * Numeric attribute is not present.  Sorts first.  The special keys are
+     * all less than the key of any number, including negative infinity.
+     */
+    private static final long NUMBER_ABSENT = Long.MIN_VALUE;
+
+    /** Numeric attribute has no values. */
+    private static final long NUMBER_NULL = Long.MIN_VALUE + 1;
+
+    /** Numeric attribute does not have enough values. */
+    private static final long NUMBER_MISSING = Long.MIN_VALUE + 2;
+
+    /** Numeric attribute could not be converted to numbers.  Equal to anything that is present. */
+    private static final long NUMBER_ERROR = Long.MIN_VALUE + 3;
+
+    /** Marks a text attribute that is present but has no value, as opposed to null for not present. */
+    private static final String TEXT_NULL = new String("");
+
+    final String sopInstanceUID;
+
+    final File file;
+
+    /** Key of each numeric sort value, either one of the special keys or a packed number. */
+    private final long[] number = new long[NUMBER_TAG_LIST.length];
+
+    /** True if the numeric keys can be compared directly. */
+    private boolean exact = true;
+
+    /** Each text sort value. Null if the attribute is not present, TEXT_NULL if it has no value. */
+    private final String[] text = new String[TEXT_TAG_LIST.length];
+
+    /**
+     * Construct an instance from the header of its file.
+     *
+     * @param sopInstanceUID
+     *            SOP instance UID.
+     *
+     * @param file
+     *            File containing the instance.
+     *
+     * @param attributeList
+     *            Header of the file.
+     */
+    InstanceRecord(String sopInstanceUID, File file, AttributeList attributeList) {
+        this.sopInstanceUID = sopInstanceUID;
+        this.file = file;
+
+        for (int n = 0; n < NUMBER_TAG_LIST.length; n++) {
+            Attribute attribute = attributeList.get(NUMBER_TAG_LIST[n]);
+            if (attribute == null) {
+                number[n] = NUMBER_ABSENT;
+                continue;
+            }
+            try {
+                double[] valueList = attribute.getDoubleValues();
+                if (valueList == null) {
+                    number[n] = NUMBER_NULL;
+                }
+                else {
+                    if (valueList.length <= NUMBER_INDEX_LIST[n]) {
+                        number[n] = NUMBER_MISSING;
+                    }
+                    else {
+                        double value = valueList[NUMBER_INDEX_LIST[n]];
+                        number[n] = pack(value);
+                        if (Double.isNaN(value)) exact = false;
+                    }
+                }
+            }
+            catch (Exception e) {
+                number[n] = NUMBER_ERROR;
+                exact = false;
+            }
+        }
+
+        for (int t = 0; t < TEXT_TAG_LIST.length; t++) {
+            Attribute attribute = attributeList.get(TEXT_TAG_LIST[t]);
+            if (attribute != null) {
+                String value = attribute.getSingleStringValueOrNull();
+                text[t] = (value == null) ? TEXT_NULL : value.intern();
+            }
+        }
+    }
+
+    /**
+     * Pack a number into a long so that comparing the longs gives the same
+     * result as comparing the numbers. Negative zero is the same as zero.
+     */
+    private static long pack(double value) {
+        long bits = Double.doubleToLongBits((value == 0.0) ? 0.0 : value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * Reverse of <code>pack</code>.
+     */
+    private static double unpack(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+    /**
+     * Determine if the given key is a number as opposed to one of the special keys.
+     */
+    private static boolean isNumber(long key) {
+        return key > NUMBER_ERROR;
+    }
+
+    /**
+     * Compare numeric sort keys one at a time, for when one of them could not
+     * be packed into an exact key.
+     */
+    private static int compareNumber(long thisKey, long otherKey) {
+        if ((thisKey == NUMBER_ABSENT) && (otherKey == NUMBER_ABSENT)) return 0;
+        if (thisKey == NUMBER_ABSENT) return -1;
+        if (otherKey == NUMBER_ABSENT) return 1;
+
+        if ((thisKey == NUMBER_ERROR) || (otherKey == NUMBER_ERROR)) return 0;
+
+        if (!(isNumber(thisKey) && isNumber(otherKey))) {
+            if (thisKey == otherKey) return 0;
+            return (thisKey < otherKey) ? -1 : 1;
+        }
+
+        double thisValue = unpack(thisKey);
+        double otherValue = unpack(otherKey);
+        if (thisValue < otherValue) return -1;
+        if (thisValue > otherValue) return 1;
+        return 0;
+    }
+
+    /**
+     * Rank text values so that those not present sort before those without
+     * a value, which sort before those with a value.
+     */
+    private static int rank(String value) {
+        if (value == null) return 0;
+        if (value == TEXT_NULL) return 1;
+        return 2;
+    }
+
+    /**
+     * Compare text sort values.
+     */
+    private static int compareText(String thisValue, String otherValue) {
+        // most values are interned, so this is usually enough
+        if (thisValue == otherValue) return 0;
+        int thisRank = rank(thisValue);
+        int otherRank = rank(otherValue);
+        if (thisRank != otherRank) return (thisRank < otherRank) ? -1 : 1;
+        if (thisRank != 2) return 0;
+        return thisValue.compareTo(otherValue);
+    }
+
+    @Override
+    public int compareTo(InstanceRecord other) {
+        if (exact && other.exact) {
+            for (int n = 0; n < number.length; n++) {
+                if (number[n] != other.number[n]) return (number[n] < other.number[n]) ? -1 : 1;
+            }
+        }
+        else {
+            for (int n = 0; n < number.length; n++) {
+                int c = compareNumber(number[n], other.number[n]);
+                if (c != 0) return c;
+            }
+        }
+        for (int t = 0; t < text.length; t++) {
+            int c = compareText(text[t], other.text[t]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
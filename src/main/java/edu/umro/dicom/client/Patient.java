@@ -19,11 +19,11 @@ package edu.umro.dicom.client;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
-import java.awt.Container;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -67,6 +67,12 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
     /** Patient ID of this patient. */
     private String patientId = null;
 
+    /** Studies of this patient indexed by study instance UID, in the order that they were loaded. */
+    private final LinkedHashMap<String, Study> studyIndex = new LinkedHashMap<String, Study>();
+
+    /** Patient as seen by the engine that does the processing. */
+    private final EnginePatient model;
+
     /** Name of this patient. */
     private String patientName = null;
 
@@ -167,6 +173,19 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
         return panel;
     }
 
+    /**
+     * Get the patient ID of a file as it is shown, which is also the ID
+     * that patients are looked up by.
+     * 
+     * @param attributeList Representation of DICOM file.
+     * 
+     * @return Patient ID, trimmed, or a placeholder if there is none.
+     */
+    public static String getPatientId(AttributeList attributeList) {
+        String patientId = Util.getAttributeValue(attributeList, TagFromName.PatientID);
+        return (patientId == null) ? "No patient id" : patientId;
+    }
+
     /**
      * Construct a new patient with the given file.  If the file identifies a
      * study that is not already listed, then add it to the list.  If the study
@@ -180,11 +199,11 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
      * read and parse the file once.
      */
     public Patient(File file, AttributeList attributeList, String anonymousPatientId) {
-        patientId        = Util.getAttributeValue(attributeList, TagFromName.PatientID);
-        patientId        = (patientId == null) ? "No patient id" : patientId;
+        patientId        = getPatientId(attributeList);
         patientName      = Util.getAttributeValue(attributeList, TagFromName.PatientName); 
         patientName      = (patientName == null) ? "No patient name" : patientName;
         patientBirthDate = Util.getAttributeValue(attributeList, TagFromName.PatientBirthDate); 
+        model = new EnginePatient(patientId, anonymousPatientId);
 
         patientSummary = "";
 
@@ -217,7 +236,10 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
 
         add(buildPatientButtonPanel(anonymousPatientId));
 
-        Study study = new Study(file, attributeList);
+        Study study = new Study(file, attributeList, model);
+        synchronized (studyIndex) {
+            studyIndex.put(study.getStudyInstanceUID(), study);
+        }
         add(study);
     }
     
@@ -263,16 +285,19 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
     public void addStudy(File file, AttributeList attributeList) {
         String studyInstanceUid = Util.getAttributeValue(attributeList, TagFromName.StudyInstanceUID);
         studyInstanceUid = (studyInstanceUid == null) ? "" : studyInstanceUid;
-        for (Component component : getComponents()) {
-            if (component instanceof Study) {
-                Study study = (Study)component;
-                if (study.getStudyInstanceUID().equals(studyInstanceUid)) {
-                    study.addInstance(file, attributeList);
-                    return;
-                }
-            }
+        Study study = null;
+        synchronized (studyIndex) {
+            study = studyIndex.get(studyInstanceUid);
+        }
+        if (study != null) {
+            study.addInstance(file, attributeList);
+            return;
+        }
+        study = new Study(file, attributeList, model);
+        synchronized (studyIndex) {
+            studyIndex.put(studyInstanceUid, study);
         }
-        add(new Study(file, attributeList));
+        add(study);
     }
 
 
@@ -388,6 +413,8 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
         if ((!enableDifferentPatientName.isSelected()) && (!getAnonymizePatientIdText().equals(getAnonymizePatientNameText()))) {
             setAnonymizePatienteNameText(getAnonymizePatientIdText());
         }
+        model.setAnonymizedPatientId(getAnonymizePatientIdText());
+        model.setAnonymizedPatientName(getAnonymizePatientNameText());
 
         //setSpecialField(anonymizePatientIdTextField, TagFromName.PatientID);
         //setSpecialField(anonymizePatientNameTextField, TagFromName.PatientName);
@@ -419,16 +446,15 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
     }
 
 
-    private ArrayList<Series> getSeriesList(Container container, ArrayList<Series> seriesList) {
-        if (container == null) container = this;
-        if (seriesList == null) seriesList = new ArrayList<Series>();
-        for (Component component : container.getComponents()) {
-            if (component instanceof Series) {
-                seriesList.add((Series)component);
-            }
-            if (component instanceof Container) {
-                getSeriesList((Container)component, seriesList);
-            }
+    /**
+     * Get a list of all series for this patient, ordered by study.
+     * 
+     * @return List of series.
+     */
+    public ArrayList<Series> getSeriesList() {
+        ArrayList<Series> seriesList = new ArrayList<Series>();
+        for (Study study : getStudyList()) {
+            seriesList.addAll(study.seriesList());
         }
         return seriesList;
     }
@@ -439,13 +465,9 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
      * @return List of studies.
      */
     public ArrayList<Study> getStudyList() {
-        ArrayList<Study> list = new ArrayList<Study>();
-        for (Component component : getComponents()) {
-            if (component instanceof Study) {
-                list.add((Study) component);
-            }
+        synchronized (studyIndex) {
+            return new ArrayList<Study>(studyIndex.values());
         }
-        return list;
     }
 
 
@@ -458,8 +480,7 @@ public class Patient extends JPanel implements Comparable<Patient>, DocumentList
         if (e.getSource() == processPatientButton) {
             Log.get().info("Processing all series for patient");
             Series.processOk = true;
-            for (Series series : getSeriesList(null, null)) series.processSeries();
-            DicomClient.getInstance().setProcessedStatus();
+            DicomClient.getInstance().processSeries(getSeriesList());
         }
 
         if (e.getSource() == clearButton) {
@@ -0,0 +1,261 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generate anonymous patient IDs from a template, in an order that looks
+ * random but never repeats an ID until every ID that the template allows
+ * has been generated.
+ *
+ * In the template, <code>*</code> is replaced by a digit or upper case
+ * letter, <code>?</code> by an upper case letter, and <code>#</code> by a
+ * digit. A <code>%</code> makes the next character literal, and all other
+ * characters are literal.
+ *
+ * Each possible ID is numbered, and a counter is passed through a keyed
+ * permutation of those numbers to choose the next ID. The permutation is a
+ * Feistel network on the smallest even number of bits that holds every
+ * number, where results that are too large are permuted again until they
+ * fit. This takes less than four rounds on average, however full the
+ * template is.
+ *
+ * This class is not thread safe.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class PatientIdGenerator {
+
+    private static final String DIGIT = "0123456789";
+
+    private static final String LETTER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    /** Most IDs that are numbered. Positions that would exceed this are fixed instead. */
+    private static final long MAX_SIZE = 1L << 62;
+
+    private static final int ROUNDS = 4;
+
+    private final String template;
+
+    /** Characters of an ID, with the fixed ones filled in. */
+    private final char[] pattern;
+
+    /** Index in the pattern of each numbered position, least significant first. */
+    private final int[] positionList;
+
+    /** Characters allowed at each numbered position. */
+    private final String[] alphabetList;
+
+    /** Number of different IDs. */
+    private final long size;
+
+    /** Bits in each half of a Feistel block. */
+    private final int halfBits;
+
+    private final long halfMask;
+
+    /** Key for each Feistel round. */
+    private final long[] keyList = new long[ROUNDS];
+
+    /** Number of IDs generated. */
+    private long count = 0;
+
+    /**
+     * Create a generator.
+     *
+     * @param template
+     *            Template for IDs.
+     *
+     * @param random
+     *            Source of the permutation key, so that each generator gives
+     *            a different sequence of IDs.
+     */
+    public PatientIdGenerator(String template, Random random) {
+        this.template = template;
+
+        // parse the template into literal and variable characters
+        StringBuilder text = new StringBuilder();
+        ArrayList<Integer> variablePosition = new ArrayList<Integer>();
+        ArrayList<String> variableAlphabet = new ArrayList<String>();
+        for (int t = 0; t < template.length(); t++) {
+            char ch = template.charAt(t);
+            String alphabet = null;
+            switch (ch) {
+            case '*':
+                alphabet = DIGIT + LETTER;
+                break;
+            case '?':
+                alphabet = LETTER;
+                break;
+            case '#':
+                alphabet = DIGIT;
+                break;
+            case '%':
+                t++;
+                if (t < template.length()) text.append(template.charAt(t));
+                continue;
+            }
+            if (alphabet != null) {
+                variablePosition.add(text.length());
+                variableAlphabet.add(alphabet);
+                ch = ' ';
+            }
+            text.append(ch);
+        }
+        pattern = text.toString().toCharArray();
+
+        // number the rightmost positions, and fix any that would make too many IDs
+        long total = 1;
+        int numbered = 0;
+        for (int v = variablePosition.size() - 1; v >= 0; v--) {
+            int radix = variableAlphabet.get(v).length();
+            if ((numbered == variablePosition.size() - 1 - v) && (total <= MAX_SIZE / radix)) {
+                total *= radix;
+                numbered++;
+            }
+            else {
+                String alphabet = variableAlphabet.get(v);
+                pattern[variablePosition.get(v)] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+        }
+        size = total;
+        positionList = new int[numbered];
+        alphabetList = new String[numbered];
+        for (int n = 0; n < numbered; n++) {
+            int v = variablePosition.size() - 1 - n;
+            positionList[n] = variablePosition.get(v);
+            alphabetList[n] = variableAlphabet.get(v);
+        }
+
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1));
+        halfBits = Math.max(1, (bits + 1) / 2);
+        halfMask = (1L << halfBits) - 1;
+        for (int r = 0; r < ROUNDS; r++) {
+            keyList[r] = random.nextLong();
+        }
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Get the number of different IDs that may be generated.
+     *
+     * @return Number of IDs.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Mix the bits of a value. This is the finalizer of SplitMix64.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Permute a number in the range of the Feistel block.
+     */
+    private long permute(long value) {
+        long left = value >>> halfBits;
+        long right = value & halfMask;
+        for (int r = 0; r < ROUNDS; r++) {
+            long next = left ^ (mix(right ^ keyList[r]) & halfMask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * Get the ID with the given number.
+     */
+    private String format(long number) {
+        char[] id = pattern.clone();
+        for (int n = 0; n < positionList.length; n++) {
+            String alphabet = alphabetList[n];
+            id[positionList[n]] = alphabet.charAt((int) (number % alphabet.length()));
+            number /= alphabet.length();
+        }
+        return new String(id);
+    }
+
+    /**
+     * Generate the next ID.
+     *
+     * @return An ID that has not been generated before, or null if all of
+     *         them have been.
+     */
+    public String next() {
+        if (count >= size) return null;
+        long number = permute(count++);
+        while (number >= size)
+            number = permute(number);
+        return format(number);
+    }
+
+    /**
+     * Show some IDs, check that small templates give every ID exactly once,
+     * and time generating many IDs. For testing only.
+     *
+     * @param args
+     *            Optional template and number of IDs to time.
+     */
+    public static void main(String[] args) {
+        String template = (args.length > 0) ? args[0] : "$######";
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+        Random random = new Random();
+
+        PatientIdGenerator generator = new PatientIdGenerator(template, random);
+        System.out.println("Template " + template + " allows " + generator.size() + " IDs.  First few:");
+        for (int i = 0; i < 5; i++) {
+            System.out.println("    " + generator.next());
+        }
+
+        String[] smallList = { "?#", "%#*-##", "X", "ab%" };
+        for (String small : smallList) {
+            PatientIdGenerator g = new PatientIdGenerator(small, random);
+            HashSet<String> seen = new HashSet<String>();
+            String id;
+            while ((id = g.next()) != null) {
+                if (!seen.add(id)) System.out.println("    duplicate " + id);
+            }
+            System.out.println("Template " + small + " gave " + seen.size() + " unique IDs of " + g.size());
+        }
+
+        generator = new PatientIdGenerator(template, random);
+        HashSet<String> seen = new HashSet<String>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String id = generator.next();
+            if ((id == null) || !seen.add(id)) {
+                System.out.println("Failed after " + i + " IDs");
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Generated " + seen.size() + " unique IDs in " + (elapsed / 1000000) + " ms");
+    }
+}
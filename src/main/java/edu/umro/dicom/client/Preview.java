@@ -42,7 +42,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.concurrent.Semaphore;
 
 import javax.swing.BorderFactory;
@@ -74,16 +73,7 @@ import javax.swing.text.Highlighter;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeList;
-import com.pixelmed.dicom.AttributeTag;
-import com.pixelmed.dicom.AttributeTagAttribute;
 import com.pixelmed.dicom.DicomException;
-import com.pixelmed.dicom.OtherByteAttribute;
-import com.pixelmed.dicom.OtherFloatAttribute;
-import com.pixelmed.dicom.OtherWordAttribute;
-import com.pixelmed.dicom.SOPClassDescriptions;
-import com.pixelmed.dicom.SequenceAttribute;
-import com.pixelmed.dicom.SequenceItem;
-import com.pixelmed.dicom.TransferSyntax;
 import com.pixelmed.dicom.ValueRepresentation;
 import com.pixelmed.display.ConsumerFormatImageMaker;
 
@@ -101,32 +91,6 @@ import edu.umro.util.Log;
  */
 public class Preview implements ActionListener, ChangeListener, DocumentListener, KeyListener, MouseListener, WindowListener {
 
-    /** Maximum line length for attributes of uncertain qualities. */
-    private static final int MAX_LINE_LENGTH = 2 * 1000;
-
-    /**
-     * When there are multiple values to be displayed for a single attribute,
-     * they are separated by this string followed by a blank.
-     */
-    private static final String VALUE_SEPARATOR = " \\ ";
-
-    /**
-     * List of value representations that can be displayed as strings in the
-     * text version of the preview.
-     */
-    private static final byte[][] TEXTUAL_VR = { ValueRepresentation.AE, ValueRepresentation.AS, ValueRepresentation.CS, ValueRepresentation.DA, ValueRepresentation.DS,
-            ValueRepresentation.DT, ValueRepresentation.FL, ValueRepresentation.FD, ValueRepresentation.IS, ValueRepresentation.LO, ValueRepresentation.LT, ValueRepresentation.PN,
-            ValueRepresentation.SH, ValueRepresentation.SL, ValueRepresentation.SS, ValueRepresentation.ST, ValueRepresentation.TM, ValueRepresentation.UI, ValueRepresentation.UL,
-            ValueRepresentation.US, ValueRepresentation.UT, ValueRepresentation.XS, ValueRepresentation.XO };
-
-    /** A quickly searchable list of value representations. */
-    public static HashSet<String> vrSet = new HashSet<String>();
-    {
-        for (byte[] vr : TEXTUAL_VR) {
-            vrSet.add(new String(vr));
-        }
-    }
-
     /**
      * List of value representations that may contain characters (such as null)
      * that are invalid for XML.
@@ -1000,255 +964,6 @@ public class Preview implements ActionListener, ChangeListener, DocumentListener
         }
     }
 
-    /**
-     * Determine the prefix for the given indent level.
-     * 
-     * @param indentLevel
-     *            Degree of indentation.
-     * 
-     * @return String to shift text to the right.
-     */
-    private String indent(int indentLevel) {
-        final String INDENT_VAL = "    ";
-        StringBuffer text = new StringBuffer();
-        for (int i = 0; i < indentLevel; i++) {
-            text.append(INDENT_VAL);
-        }
-        return text.toString();
-    }
-    
-    /**
-     * Add a single line of text to the text view. If the text matches the
-     * current search text, then add its location to the list of matches.
-     * 
-     * @param text
-     *            Text so far.
-     * 
-     * @param line
-     *            New line to add.
-     * 
-     * @param searchText
-     *            Search text - null if none.
-     * 
-     * @param indentLevel
-     *            Degree of indentation.
-     */
-    private void addLine(StringBuffer text, String line, String searchText, int indentLevel, AttributeLocation attributeLocation, int sequenceItemIndex, Attribute attribute) {
-        int textStart = text.length();
-        text.append(indent(indentLevel) + line + "\n");
-        int textEnd = text.length();
-        if (attributeLocation != null) attributeLocation.setAttribute(text.length(), 0, attribute, textStart, textEnd);
-    }
-
-    private String addDetails(AttributeTag tag, byte[] vr, String line) {
-        if (showDetails.isSelected() || (DicomClient.inCommandLineMode() && DicomClient.showDetails)) {
-            String element = Integer.toHexString(tag.getElement()).toUpperCase();
-            while (element.length() < 4) {
-                element = "0" + element;
-            }
-            String group = Integer.toHexString(tag.getGroup()).toUpperCase();
-            while (group.length() < 4) {
-                group = "0" + group;
-            }
-            if (vr == null) {
-                vr = new byte[] { '?', '?' };
-            }
-            String vmName = CustomDictionary.getInstance().getValueMultiplicity(tag).getName();
-            String prefix = group + "," + element + " " + (char) vr[0] + (char) vr[1] + " " + vmName + "  ";
-            line = prefix + line;
-        }
-        return line;
-    }
-
-    /**
-     * Show a byte value as humanly readable as possible. If it is a displayable
-     * ASCII character, then show that, otherwise show the hex value (as in
-     * 0xfe).
-     * 
-     * @param i
-     * 
-     * @return
-     */
-    private static String byteToHuman(int i) {
-        i = i & 255;
-        return ((i >= 32) && (i <= 126)) ? ("" + (char) i) : ("0x" + Integer.toHexString(i & 255));
-    }
-
-    /*
-    public static AttributeList replaceNullsWithBlanks(AttributeList attributeList) throws IOException, DicomException {
-
-        attributeList = Util.cloneAttributeList(attributeList);
-
-        Iterator<?> i = attributeList.values().iterator();
-        while (i.hasNext()) {
-            Attribute attribute = (Attribute) i.next();
-            if (attribute instanceof SequenceAttribute) {
-                Iterator<?> si = ((SequenceAttribute) attribute).iterator();
-                while (si.hasNext()) {
-                    SequenceItem item = (SequenceItem) si.next();
-                    replaceNullsWithBlanks(item.getAttributeList());
-                }
-            }
-            else {
-                AttributeTag tag = attribute.getTag();
-                byte[] vr = CustomDictionary.getInstance().getValueRepresentationFromTag(tag);
-                if ((vr != null) && stringSet.contains(new String(vr))) {
-                    try {
-                        String[] valueList = attribute.getStringValues();
-                        if ((valueList != null) && (valueList.length > 0)) {
-                            boolean same = true;
-                            for (int v = 0; v < valueList.length; v++) {
-                                if (valueList[v].indexOf('\0') != -1) {
-                                    same = false;
-                                    valueList[v] = valueList[v].replace('\0', ' ');
-                                }
-                            }
-                            if (!same) {
-                                attribute.removeValues();
-                                for (String value : valueList) {
-                                    attribute.addValue(value);
-                                }
-                            }
-                        }
-                    }
-                    catch (DicomException e) {
-                        ;
-                    }
-                }
-            }
-        }
-        return attributeList;
-    }
-    */
-
-    /**
-     * Convert a single non-sequence attribute to a human readable text format.
-     * 
-     * @param attribute
-     *            Attribute to format.
-     * 
-     * @return String version of attribute.
-     */
-    private String getAttributeAsText(Attribute attribute) {
-        AttributeTag tag = attribute.getTag();
-        StringBuffer line = new StringBuffer();
-        boolean ok = false;
-        byte[] vr = CustomDictionary.getInstance().getValueRepresentationFromTag(tag);
-        if (vr == null) {
-            vr = attribute.getVR();
-        }
-        if (vr != null) {
-            try {
-                if ((!ok) && (vrSet.contains(new String(vr)))) {
-                    String[] valueList = attribute.getStringValues();
-
-                    if ((valueList != null) && (valueList.length > 0)) {
-                        boolean first = true;
-                        for (String value : valueList) {
-                            if (first)
-                                first = false;
-                            else
-                                line.append(VALUE_SEPARATOR);
-                            line.append(" " + value.replace('\n', ' '));
-                            if (line.length() > MAX_LINE_LENGTH) {
-                                break;
-                            }
-                            if (ValueRepresentation.isUniqueIdentifierVR(vr)) {
-                                String classDesc = SOPClassDescriptions.getDescriptionFromUID(value);
-                                if (classDesc.length() > 0) {
-                                    line.append(" (" + classDesc + ")");
-                                }
-                                TransferSyntax transferSyntax = new TransferSyntax(value);
-                                if (transferSyntax.isRecognized()) {
-                                    line.append(" (" + transferSyntax.getDescription() + ")");
-                                }
-                            }
-                        }
-                    }
-                    ok = true;
-                }
-                else {
-                    if ((!ok) && (ValueRepresentation.isAttributeTagVR(vr))) {
-                        AttributeTag[] atList = ((AttributeTagAttribute) attribute).getAttributeTagValues();
-                        for (AttributeTag t : atList) {
-                            line.append("  " + t);
-                            if (CustomDictionary.getInstance().getNameFromTag(t) == null) {
-                                line.append(":<unknown>");
-                            }
-                            else {
-                                line.append(":" + CustomDictionary.getInstance().getNameFromTag(t));
-                            }
-                            if (line.length() > MAX_LINE_LENGTH) {
-                                break;
-                            }
-                        }
-                        ok = true;
-                    }
-
-                    if ((!ok) && ((ValueRepresentation.isOtherByteVR(vr)) || (attribute instanceof OtherByteAttribute))) {
-                        byte[] outData = ((OtherByteAttribute) attribute).getByteValues();
-
-                        for (int b = 0; b < outData.length; b++) {
-                            line.append(" " + byteToHuman(outData[b]));
-                            if (line.length() > MAX_LINE_LENGTH) {
-                                break;
-                            }
-                        }
-                        ok = true;
-                    }
-
-                    if ((!ok) && ((ValueRepresentation.isOtherFloatVR(vr) || (attribute instanceof OtherFloatAttribute)))) {
-                        float[] floatValues = ((OtherFloatAttribute) attribute).getFloatValues();
-                        boolean first = true;
-                        for (float f : floatValues) {
-                            if (first)
-                                first = false;
-                            else
-                                line.append(VALUE_SEPARATOR);
-                            line.append(" " + f);
-                            if (line.length() > MAX_LINE_LENGTH) {
-                                break;
-                            }
-                        }
-                        ok = true;
-                    }
-
-                    if ((!ok) && ((attribute instanceof OtherWordAttribute) || (ValueRepresentation.isOtherWordVR(vr)))) {
-                        short[] outData = ((OtherWordAttribute) attribute).getShortValues();
-
-                        for (int b = 0; b < outData.length; b++) {
-                            line.append(" " + byteToHuman((outData[b] & 0xffff) >> 8) + " " + byteToHuman(outData[b] & 0xff));
-                            if (line.length() > MAX_LINE_LENGTH) {
-                                break;
-                            }
-                        }
-                        ok = true;
-                    }
-                }
-            }
-            catch (Exception e) {
-                line.append(" Error interpreting field: " + attribute.toString().replace('\n', ' '));
-            }
-        }
-
-        if (!ok) {
-            line = new StringBuffer(" " + attribute.toString().replace('\n', ' '));
-        }
-
-        if (line.length() > MAX_LINE_LENGTH) {
-            line = new StringBuffer(line.substring(0, MAX_LINE_LENGTH) + " ... (truncated)");
-        }
-
-        String tagName = CustomDictionary.getInstance().getNameFromTag(tag);
-        if (tagName == null) {
-            tagName = "<unknown>";
-        }
-
-        line = new StringBuffer(line.toString().replace('\0', ' '));
-
-        return addDetails(tag, vr, tagName + " :" + line.toString());
-    }
-
     /**
      * Add the list of attributes to the given text. This method is called
      * recursively to support DICOM attributes that are defined as a tree.
@@ -1259,39 +974,21 @@ public class Preview implements ActionListener, ChangeListener, DocumentListener
      * @param text
      *            Existing text to append to.
      * 
-     * @param dicomDictionary
-     *            DICOM dictionary to use.
-     * 
      * @param indentLevel
      *            Indicates the depth of recursion and drives the amount of
      *            whitespace prepended to each line.
      */
     public void addTextAttributes(AttributeList attributeList, StringBuffer text, int indentLevel, AttributeLocation attributeLocation) {
-        String searchText = searchField.getText().toLowerCase();
+        TextRenderer.addTextAttributes(attributeList, text, indentLevel, attributeLocation, getShowDetails());
+    }
 
-        Iterator<?> i = attributeList.values().iterator();
-        while (i.hasNext()) {
-            Attribute attribute = (Attribute) i.next();
-            if (attribute instanceof SequenceAttribute) {
-                AttributeTag tag = attribute.getTag();
-                String line = CustomDictionary.getInstance().getNameFromTag(tag) + " : ";
-                line = addDetails(tag, CustomDictionary.getInstance().getValueRepresentationFromTag(tag), line);
-                addLine(text, line, searchText, indentLevel, attributeLocation, 0, attribute);
-                Iterator<?> si = ((SequenceAttribute) attribute).iterator();
-                int itemNumber = 1;
-                while (si.hasNext()) {
-                    if ((attributeLocation != null) && (!attributeLocation.isLocated())) attributeLocation.addParent((SequenceAttribute)attribute, itemNumber - 1);
-                    SequenceItem item = (SequenceItem) si.next();
-                    addLine(text, "Item: " + itemNumber + " / " + ((SequenceAttribute) attribute).getNumberOfItems(), searchText, indentLevel + 1, attributeLocation, itemNumber-1, null);
-                    addTextAttributes(item.getAttributeList(), text, indentLevel + 2, attributeLocation);
-                    if ((attributeLocation != null) && (!attributeLocation.isLocated())) attributeLocation.removeParent();
-                    itemNumber++;
-                }
-            }
-            else {
-                addLine(text, getAttributeAsText(attribute), searchText, indentLevel, attributeLocation, 0, attribute);
-            }
-        }
+    /**
+     * Determine if the user wants to see the tag, VR and VM of each attribute.
+     * 
+     * @return True if details should be shown.
+     */
+    public boolean getShowDetails() {
+        return showDetails.isSelected() || (DicomClient.inCommandLineMode() && DicomClient.showDetails);
     }
     
     public void selectForEdit(AttributeLocation attributeLocation) {
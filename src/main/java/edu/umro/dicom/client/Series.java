@@ -19,18 +19,15 @@ package edu.umro.dicom.client;
 import java.awt.BorderLayout;
 import java.awt.CardLayout;
 import java.awt.Color;
-import java.awt.Component;
 import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.TreeSet;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
 import javax.swing.Icon;
@@ -39,20 +36,15 @@ import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
-import javax.xml.parsers.ParserConfigurationException;
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeFactory;
 import com.pixelmed.dicom.AttributeList;
-import com.pixelmed.dicom.AttributeTag;
 import com.pixelmed.dicom.DicomException;
-import com.pixelmed.dicom.FileMetaInformation;
 import com.pixelmed.dicom.SOPClassDescriptions;
-import com.pixelmed.dicom.SetOfDicomFiles;
 import com.pixelmed.dicom.TagFromName;
 import edu.umro.dicom.client.DicomClient.ProcessingMode;
 import edu.umro.dicom.client.test.AutoTest;
 import edu.umro.util.Log;
-import edu.umro.util.UMROException;
 
 /**
  * Represent a DICOM series.
@@ -90,9 +82,6 @@ public class Series extends JPanel implements ActionListener, Runnable {
     /** Description of series including key metadata values. */
     private String seriesSummary = null;
 
-    /** True if this series has been anonymized. */
-    private boolean isAnonymized = false;
-
     /** True if this series has been anonymized and then uploaded. */
     private boolean isAnonymizedThenUploaded = false;
 
@@ -103,8 +92,6 @@ public class Series extends JPanel implements ActionListener, Runnable {
     /** DICOM value for series description for the series. */
     private String seriesDescription = null;
 
-    private static volatile Semaphore processLock = new Semaphore(1);
-
     /**
      * The next two sets of DICOM values are dates and times. Frequently, a
      * DICOM file is generated with one or another date or time field filled in,
@@ -169,227 +156,9 @@ public class Series extends JPanel implements ActionListener, Runnable {
 
     /** Layout that shows the progress bar or preview slider. */
     private CardLayout previewProgressLayout = null;
-    
-    public static int totalFilesAnonymized = 0;
-
-    private class InstanceList {
-        private class Instance implements Comparable<Instance> {
-            public String sopInstanceUID;
-            public File file;
-            AttributeList attributeList;
-
-            private int compareString(Instance other, AttributeTag tag) {
-                Attribute thisAttr = attributeList.get(tag);
-                Attribute otherAttr = other.attributeList.get(tag);
-
-                if ((thisAttr == null) && (otherAttr == null)) return 0;
-                if (thisAttr == null) return -1;
-                if (otherAttr == null) return 1;
-
-                String thisVal = thisAttr.getSingleStringValueOrNull();
-                String otherVal = otherAttr.getSingleStringValueOrNull();
-                if ((thisVal == null) && (otherVal == null)) return 0;
-                if (thisVal == null) return -1;
-                if (otherVal == null) return 1;
-
-                return thisVal.compareTo(otherVal);
-            }
-
-            private int compareDouble(Instance other, AttributeTag tag, int index) {
-                Attribute thisAttr = attributeList.get(tag);
-                Attribute otherAttr = other.attributeList.get(tag);
-
-                if ((thisAttr == null) && (otherAttr == null)) return 0;
-                if (thisAttr == null) return -1;
-                if (otherAttr == null) return 1;
-
-                try {
-                    double[] thisVal = thisAttr.getDoubleValues();
-                    double[] otherVal = otherAttr.getDoubleValues();
-                    if ((thisVal == null) && (otherVal == null)) return 0;
-                    if (thisVal == null) return -1;
-                    if (otherVal == null) return 1;
-
-                    if ((thisVal.length <= index) && (otherVal.length <= index)) return 0;
-                    if (thisVal.length <= index) return -1;
-                    if (otherVal.length <= index) return 1;
-
-                    double tv = thisVal[index];
-                    double ov = otherVal[index];
-                    if (tv < ov) return -1;
-                    if (tv > ov) return 1;
-                    return 0;
-                    //return Double.compare(tv, ov);
-                }
-                catch (Exception e) {
-                    return 0;
-                }
-            }
-
-            public Instance(String sopInstanceUID, File file, AttributeList attributeList) {
-                this.sopInstanceUID = sopInstanceUID;
-                this.file = file;
-                this.attributeList = attributeList;
-            }
-
-            public int compareTo(Instance o) {
-                int c = 0;
-                
-                c = compareDouble(o, TagFromName.SliceLocation, 0);
-                if (c != 0) return c;
-
-                c = compareDouble(o, TagFromName.ImagePositionPatient, 0);
-                if (c != 0) return c;
-
-                c = compareDouble(o, TagFromName.ImagePositionPatient, 1);
-                if (c != 0) return c;
-
-                c = compareDouble(o, TagFromName.ImagePositionPatient, 2);
-                if (c != 0) return c;
-                
-                c = compareDouble(o, TagFromName.InstanceNumber, 0);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.InstanceCreationDate);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.InstanceCreationTime);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.InstanceCreationTime);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.AcquisitionDate);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.AcquisitionTime);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.ContentDate);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.ContentTime);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.RTPlanDate);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.RTPlanTime);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.StructureSetDate);
-                if (c != 0) return c;
-
-                c = compareString(o, TagFromName.StructureSetTime);
-                if (c != 0) return c;
-
-                return compareString(o, TagFromName.SOPInstanceUID);
-            }
-        }
-
-        private TreeSet<Instance> instList = new TreeSet<Instance>();
-
-        private HashSet<String> sopList = new HashSet<String>();
-        private HashSet<File> fileList = new HashSet<File>();
-
-        private Semaphore lock = new Semaphore(1);
-
-        private void acquire() {
-            try {
-                if (!lock.tryAcquire(10, TimeUnit.SECONDS)) {
-                    DicomClient.getInstance().showMessage("Failed to acquire internal data lock");
-                }
-            }
-            catch (Exception e) {
-            }
-        }
-
-        private void release() {
-            lock.release();
-        }
-
-        /**
-         * Get the sortedList of file names in ascending order by instance
-         * number.
-         * 
-         * @return List of file names.
-         */
-        public ArrayList<File> values() {
-            try {
-                acquire();
-                ArrayList<File> list = new ArrayList<File>();
-                for (Instance inst : instList) list.add(inst.file);
-                return list;
-            }
-            finally {
-                release();
-            }
-        }
 
-        public TreeSet<Instance> getList() {
-            return instList;
-        }
-
-        public int size() {
-
-            try {
-                acquire();
-
-                return instList.size();
-            }
-            finally {
-                release();
-            }
-        }
-        
-        public File getFirstFile() {
-            return instList.first().file;
-        }
-
-        public File getFile(int i) {
-            try {
-                acquire();
-                return ((Instance) (instList.toArray()[i])).file;
-            }
-            finally {
-                release();
-            }
-        }
-
-        private String put(File file, AttributeList attributeList) {
-            try {
-                acquire();
-
-                if (fileList.contains(file)) {
-                    return "The file " + file + " has already been loaded.";
-                }
-
-                String sopInstanceUID = attributeList.get(TagFromName.SOPInstanceUID).getSingleStringValueOrEmptyString();
-                if (sopList.contains(sopInstanceUID)) {
-                    File oldFile = null;
-                    for (Instance instance : instList) {
-                        if (instance.sopInstanceUID == sopInstanceUID) {
-                            oldFile = instance.file;
-                            break;
-                        }
-                    }
-                    return "The SOP Instance UID " + sopInstanceUID + " was already loaded with from file " + oldFile + ", so ignoring file " + file.getAbsolutePath();
-                }
-
-                instList.add(new Instance(sopInstanceUID, file, attributeList));
-                sopList.add(sopInstanceUID);
-                fileList.add(file);
-
-                return null;
-            }
-            finally {
-                release();
-            }
-        }
-    }
-
-    /** List of file names for this series. */
-    private InstanceList instanceList = new InstanceList();
+    /** Files in this series and whether it has been anonymized. */
+    private final EngineSeries model;
 
     /** List of PACS AE titles to which this series has been uploaded. */
     private HashSet<String> aeTitleUploadList = new HashSet<String>();
@@ -403,10 +172,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * @return True if file is in list.
      */
     public boolean containsFile(File file) {
-        String path = file.getAbsolutePath();
-        for (File f : instanceList.fileList)
-            if (f.getAbsolutePath().equals(path)) return true;
-        return false;
+        return model.containsFile(file);
     }
 
     /**
@@ -418,7 +184,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * @return True if instance is in list.
      */
     public boolean containsSOPInstanceUID(String sopInstanceUID) {
-        return instanceList.sopList.contains(sopInstanceUID);
+        return model.containsSOPInstanceUID(sopInstanceUID);
     }
 
     /**
@@ -452,7 +218,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
         seriesSummary += (date == null) ? "" : " " + date;
         seriesSummary += (time == null) ? "" : " " + time;
 
-        seriesSummary += "    Files: " + instanceList.size();
+        seriesSummary += "    Files: " + model.size();
 
         seriesSummary += "   ";
         summaryLabel.setText(seriesSummary);
@@ -534,8 +300,13 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * 
      * @param attributeList
      *            Parsed version of DICOM file contents.
+     * 
+     * @param patient
+     *            Patient to which this series belongs.
      */
-    public Series(File file, AttributeList attributeList) {
+    public Series(File file, AttributeList attributeList, EnginePatient patient) {
+        model = new EngineSeries(patient, file, attributeList);
+        patient.addSeries(model);
 
         // For the first file of every series, read the entire attribute
         // list and then update the anonymizing list. This ensures that
@@ -659,11 +430,11 @@ public class Series extends JPanel implements ActionListener, Runnable {
         switch (mode) {
         case ANONYMIZE:
         case ANONYMIZE_THEN_LOAD: {
-            doneIcon.setIcon(isAnonymized ? PreDefinedIcons.getOk() : PreDefinedIcons.getEmpty());
+            doneIcon.setIcon(model.isAnonymized() ? PreDefinedIcons.getOk() : PreDefinedIcons.getEmpty());
             uploadAnonymizeButton.setToolTipText(ANONYMIZE_BUTTON_TOOLTIP);
             uploadAnonymizeButton.setText("Anonymize");
             uploadAnonymizeButton.setEnabled(true);
-            return isAnonymized;
+            return model.isAnonymized();
         }
 
         case UPLOAD: {
@@ -690,42 +461,6 @@ public class Series extends JPanel implements ActionListener, Runnable {
         return false;
     }
 
-    /**
-     * Upload the given list of attribute lists to the current PACS.
-     * 
-     * @param description
-     *            Description of this series.
-     * 
-     * @param attrListList
-     *            Content to upload.
-     * 
-     * @return True on success.
-     */
-    private void pushDicom(SetOfDicomFiles setOfDicomFiles) {
-        try {
-            processLock.acquireUninterruptibly();
-            PACS pacs = DicomClient.getInstance().getCurrentPacs();
-            DicomPush dicomPush = new DicomPush(pacs, setOfDicomFiles, null);
-            String pushError = dicomPush.push();
-            if (pushError != null) {
-                processOk = false;
-                String message = "Problem uploading files for " + seriesSummary + " : " + pushError;
-                Log.get().warning(message);
-                DicomClient.getInstance().showMessage(message);
-                new Alert(message, "Upload Error");
-            }
-            return;
-        }
-        catch (Exception e) {
-            String message = "Problem uploading series " + seriesSummary + " . Remaining uploads for this series are being aborted.  Exception: " + e;
-            DicomClient.getInstance().showMessage(message);
-        }
-        finally {
-            processLock.release();
-        }
-        processOk = false;
-    }
-
     public void run() {
         processOk = true;
         switch (DicomClient.getInstance().getProcessingMode()) {
@@ -751,33 +486,16 @@ public class Series extends JPanel implements ActionListener, Runnable {
 
     /**
      * Perform either anonymization or upload on this series depending on the
-     * mode.
+     * mode. The work is done by one of the engine's worker threads. This
+     * waits if the workers are busy and enough work is already waiting, so
+     * it should not be called from the event thread.
      */
     public void processSeries() {
         if (!processOk) return;
-        if (DicomClient.inCommandLineMode()) {
-            run();
-        }
-        else {
-            Thread thread = new Thread(this);
-            thread.start();
-        }
+        DicomClient.getInstance().getEngine().submit(model, this);
         DicomClient.getInstance().markScreenAsModified();
     }
 
-    /**
-     * Get the patient object containing this series.
-     * 
-     * @return The patient object containing this series.
-     */
-    private Patient getPatient() {
-        Component pat = this;
-        while (!(pat instanceof Patient)) {
-            pat = pat.getParent();
-        }
-        return (Patient) pat;
-    }
-
     /**
      * Get the sortedList of anonymization values for this series.
      * 
@@ -787,79 +505,33 @@ public class Series extends JPanel implements ActionListener, Runnable {
      *             On invalid PatientID or PatientName
      */
     public synchronized AttributeList getAnonymizingReplacementList() throws DicomException {
-        AttributeList replacementAttributeList = AnonymizeGUI.getInstance().getAttributeList();
-
-        Attribute patientId = AttributeFactory.newAttribute(TagFromName.PatientID);
-        patientId.addValue(getPatient().getAnonymizePatientIdText());
-        replacementAttributeList.put(patientId);
-
-        Attribute patientName = AttributeFactory.newAttribute(TagFromName.PatientName);
-        patientName.addValue(getPatient().getAnonymizePatientNameText());
-        replacementAttributeList.put(patientName);
-
-        return replacementAttributeList;
+        return AnonymizeGUI.getInstance().getAttributeList(model.getPatient());
     }
 
     /**
-     * If in command line mode, save the anonymized DICOM as text and, if
-     * possible, as an image.
-     * 
-     * @param attributeList
-     *            Anonymized DICOM.
-     * 
-     * @param file
-     *            File where anonymized DICOM is to be written.
+     * Keeps the screen up to date while this series is being anonymized.
      */
-    private void saveTextAndXmlAndImageFiles(AttributeList attributeList, File file) {
-        String fileName = file.getName();
-        String textFileName = null;
-        String imageFileName = null;
-        String xmlFileName = null;
-        File dir = (file.getParentFile() == null) ? new File(".") : file.getParentFile();
-        int dotIndex = fileName.lastIndexOf('.');
-        if (dotIndex == -1) {
-            textFileName = fileName + Util.TEXT_SUFFIX;
-            imageFileName = fileName + Util.PNG_SUFFIX;
-            xmlFileName = fileName + Util.XML_SUFFIX;
-        }
-        else {
-            String baseName = fileName.substring(0, dotIndex);
-            textFileName = baseName + Util.TEXT_SUFFIX;
-            imageFileName = baseName + Util.PNG_SUFFIX;
-            xmlFileName = baseName + Util.XML_SUFFIX;
-        }
+    private class AnonymizeProgress implements EngineListener {
+        int count = 0;
 
-        File textFile = new File(dir, textFileName);
-        Log.get().info("Writing text file: " + textFile.getAbsolutePath());
-        try {
-            Util.writeTextFile(attributeList, textFile);
-        }
-        catch (UMROException e) {
-            System.err.println("Unable to write anonymized text file: " + Log.fmtEx(e));
-        }
-        catch (IOException e) {
-            System.err.println("Unable to create anonymized text file " + textFile.getAbsolutePath() + " : " + Log.fmtEx(e));
+        public void message(String message) {
         }
 
-        File imageFile = new File(dir, imageFileName);
-        try {
-            Log.get().info("Writing PNG file: " + imageFile.getAbsolutePath());
-            Util.writePngFile(attributeList, imageFile);
-        }
-        catch (Exception e) {
-            Log.get().warning("Unable to write image file as part of anonymization for file " + imageFile.getAbsolutePath() + " : " + Log.fmtEx(e));
+        public void seriesAdded(EngineSeries series) {
         }
 
-        File xmlFile = new File(dir, xmlFileName);
-        try {
-            Log.get().info("Writing XML file: " + xmlFile.getAbsolutePath());
-            Util.writeXmlFile(attributeList, xmlFile);
-        }
-        catch (ParserConfigurationException e) {
-            System.err.println("Unable to parse anonymized DICOM file " + xmlFile.getAbsolutePath() + " as XML: " + Log.fmtEx(e));
+        public void fileWritten(EngineSeries series, File file) {
+            // load the anonymized file automatically
+            if (DicomClient.getInstance().getProcessingMode() == ProcessingMode.ANONYMIZE_THEN_LOAD) {
+                DicomClient.getInstance().addDicomFile(file, false);
+            }
         }
-        catch (Exception e) {
-            System.err.println("Unable to write anonymized " + xmlFile.getAbsolutePath() + " XML file: " + Log.fmtEx(e));
+
+        public void progress(EngineSeries series, int count, int total) {
+            this.count = count;
+            DicomClient.getInstance().indicateThatStatisticsHaveChanged();
+            setProgress(count);
+            DicomClient.getInstance().markScreenAsModified();
         }
     }
 
@@ -868,115 +540,38 @@ public class Series extends JPanel implements ActionListener, Runnable {
      */
     private synchronized ArrayList<File> anonymizeSeries() {
         ArrayList<File> filesCreated = new ArrayList<File>();
+        if (!processOk) return filesCreated;
+        AnonymizeProgress progress = new AnonymizeProgress();
         try {
-            processLock.acquireUninterruptibly();
-            if (!processOk) return filesCreated;
-            File newFile = null;
-            int count = 0;
-            int tries = 0;
-            try {
-                previewProgressLayout.show(previewProgressPanel, CARD_PROGRESS);
-                zeroProgressBar();
-                // for (String fileName : instanceList.values()) {
-                for (InstanceList.Instance instance : instanceList.getList()) {
-                    tries++;
-                    AttributeList attributeList = Util.readDicomFile(instance.file);
-                    if (!DicomClient.hasValidSOPInstanceUID(attributeList)) {
-                        attributeList.put(instance.attributeList.get(TagFromName.SOPInstanceUID));
-                    }
-
-                    // ensure that all types of attributes that will be
-                    // encountered have already been initialized for
-                    // anonymization
-                    AnonymizeGUI.getInstance().updateTagList(attributeList);
-
-                    // do the actual anonymization
-                    Anonymize.anonymize(attributeList, getAnonymizingReplacementList());
-
-                    // Indicate that the file was touched by this application. Also a subtle way to advertise. :)
-                    FileMetaInformation.addFileMetaInformation(attributeList, Util.DEFAULT_TRANSFER_SYNTAX, DicomClient.PROJECT_NAME);
-
-                    if (DicomClient.inCommandLineMode()) {
-                        if (DicomClient.getInstance().getCommandParameterOutputFile() != null) {
-                            newFile = DicomClient.getInstance().getCommandParameterOutputFile();
-                        }
-                        else {
-                            ArrayList<String> suffixList = new ArrayList<String>();
-                            suffixList.add(Util.DICOM_SUFFIX);
-                            suffixList.add(Util.TEXT_SUFFIX);
-                            suffixList.add(Util.PNG_SUFFIX);
-                            suffixList.add(Util.XML_SUFFIX);
-                            String prefix = DicomClient.getInstance().getAvailableFilePrefix(attributeList, suffixList);
-                            newFile = new File(DicomClient.getInstance().getDestinationDirectory(), prefix + Util.DICOM_SUFFIX);
-                        }
-                        if (!newFile.getParentFile().exists()) newFile.getParentFile().mkdirs();
-                        attributeList.write(newFile, Util.DEFAULT_TRANSFER_SYNTAX, true, true);
-                        saveTextAndXmlAndImageFiles(attributeList, newFile);
-                    }
-                    else {
-                        File dir = DicomClient.getInstance().getDestinationDirectory();
-                        if (!dir.exists()) dir.mkdirs();
-                        ArrayList<String> suffixList = new ArrayList<String>();
-                        suffixList.add(Util.DICOM_SUFFIX);
-                        String prefix = DicomClient.getInstance().getAvailableFilePrefix(attributeList, suffixList);
-                        newFile = new File(dir, prefix + Util.DICOM_SUFFIX);
-                        attributeList.write(newFile, Util.DEFAULT_TRANSFER_SYNTAX, true, true);
-                        // load the anonymized file automatically
-                        if (DicomClient.getInstance().getProcessingMode() == ProcessingMode.ANONYMIZE_THEN_LOAD) {
-                            DicomClient.getInstance().addDicomFile(newFile, false);
-                        }
-                        filesCreated.add(newFile);
-                    }
-                    
-                    totalFilesAnonymized++;
-                    DicomClient.getInstance().indicateThatStatisticsHaveChanged();
-
-                    count++;
-                    setProgress(count);
-                    Log.get().info("Anonymized to file: " + newFile.getAbsolutePath());
-                    DicomClient.getInstance().markScreenAsModified();
-                }
-            }
-            catch (DicomException e) {
-                String msg = "DICOM error - unable to anonymize series : " + e;
-                DicomClient.getInstance().showMessage(msg);
-                Log.get().severe(msg);
-                processOk = false;
-                if (DicomClient.inCommandLineMode()) {
-                    System.err.println(msg);
-                    System.exit(1);
-                }
-            }
-            catch (IOException e) {
-                processOk = false;
-                String msg = "File error - unable to anonymize series : " + e;
-                DicomClient.getInstance().showMessage(msg);
-                Log.get().severe(msg);
-                // If there was an IO exception, then
-                if (tries == 1) { // only tell user once per series
-                    String ioMsg = "<html>Unable to write file\n\n    " + newFile.getAbsolutePath()
-                            + "\n<p><br><p>It is possible that you do not have permission to write to this directory." + "\n<p><br><p>Technical details:<br>" + e + "\n</html>";
-                    new Alert(ioMsg, "Unable to write file");
-                }
-                if (DicomClient.inCommandLineMode()) {
-                    System.err.println(msg);
-                    System.exit(1);
-                }
-            }
-            finally {
-                previewProgressLayout.show(previewProgressPanel, CARD_SLIDER);
-            }
-            if (count == instanceList.size()) {
-                isAnonymized = true;
-                setProcessedStatus(DicomClient.getInstance().getProcessingMode());
-            }
-            else {
-                String msg = "Unable to anonymize series " + toString() + " .  Only " + count + " slices of " + instanceList.size() + " were completed.";
-                DicomClient.getInstance().showMessage(msg);
-            }
+            previewProgressLayout.show(previewProgressPanel, CARD_PROGRESS);
+            zeroProgressBar();
+            filesCreated = DicomClient.getInstance().getEngine().anonymize(model, progress);
+        }
+        catch (DicomException e) {
+            String msg = "DICOM error - unable to anonymize series : " + e;
+            DicomClient.getInstance().showMessage(msg);
+            Log.get().severe(msg);
+            processOk = false;
+        }
+        catch (IOException e) {
+            processOk = false;
+            String msg = "File error - unable to anonymize series : " + e;
+            DicomClient.getInstance().showMessage(msg);
+            Log.get().severe(msg);
+            // only tell user once per series
+            String ioMsg = "<html>Unable to write file in\n\n    " + DicomClient.getInstance().getDestinationDirectory().getAbsolutePath()
+                    + "\n<p><br><p>It is possible that you do not have permission to write to this directory." + "\n<p><br><p>Technical details:<br>" + e + "\n</html>";
+            new Alert(ioMsg, "Unable to write file");
         }
         finally {
-            processLock.release();
+            previewProgressLayout.show(previewProgressPanel, CARD_SLIDER);
+        }
+        if (model.isAnonymized()) {
+            setProcessedStatus(DicomClient.getInstance().getProcessingMode());
+        }
+        else {
+            String msg = "Unable to anonymize series " + toString() + " .  Only " + progress.count + " slices of " + model.size() + " were completed.";
+            DicomClient.getInstance().showMessage(msg);
         }
         return filesCreated;
     }
@@ -992,73 +587,22 @@ public class Series extends JPanel implements ActionListener, Runnable {
     }
 
     private void uploadFiles(ArrayList<File> fileList) {
-        int fileIndex = 0;
-
-        /*
-         * AttributeList[] tempList = new AttributeList[fileList.size()];
-         * while ((fileIndex < fileList.size()) && (processOk)) {
-         * int f = 0;
-         * while ((fileIndex < fileList.size()) && processOk && (f < UPLOAD_BUFFER_SIZE)) {
-         * File file = fileList.get(fileIndex);
-         * AttributeList attributeList = new CustomAttributeList();
-         * try {
-         * attributeList = Util.readDicomFile(file);
-         * }
-         * catch (Exception e) {
-         * String msg = seriesSummary + " Unable to read DICOM file " + file.getAbsolutePath() + " : " + e;
-         * Log.get().warning(msg);
-         * DicomClient.getInstance().showMessage(msg);
-         * new Alert(msg, "Upload Failure");
-         * processOk = false;
-         * return;
-         * }
-         * tempList[f] = attributeList;
-         * f++;
-         * fileIndex++;
-         * }
-         * AttributeList[] attrListList = null;
-         * if (tempList.length == f)
-         * attrListList = tempList;
-         * else {
-         * attrListList = new AttributeList[f];
-         * for (int ff = 0; ff < f; ff++)
-         * attrListList[ff] = tempList[ff];
-         * }
-         */
-
-        String failText = "";
-        int failCount = 0;
-        SetOfDicomFiles setOfDicomFiles = new SetOfDicomFiles();
-        for (File file : fileList) {
-            try {
-                setOfDicomFiles.add(file);
-            }
-            catch (IOException e) {
-                failCount++;
-                String message = "Unable to read file " + file.getAbsolutePath() + " : " + e + "\n";
-                failText += message;
-                Log.get().warning(message);
-            }
-        }
-        if (failCount > 0) {
-            String msg = "While uploading, " + failCount + " files out of " + fileList.size() +
-                    " failed to upload.  Details below.\n\n" + failText;
-            new Alert(msg, "Upload Failure");
-        }
-
-        if (!setOfDicomFiles.isEmpty()) {
-            pushDicom(setOfDicomFiles);
-            if (processOk) {
-                Log.get().info("Uploaded file to PACS " + getSelectedAeTitle());
-                setProgress(fileIndex);
-                DicomClient.getInstance().incrementUploadCount(setOfDicomFiles.size());
-            }
-        }
-
-        if (processOk) {
+        PACS pacs = DicomClient.getInstance().getCurrentPacs();
+        String error = DicomClient.getInstance().getEngine().upload(model, fileList, pacs);
+        if (error == null) {
+            Log.get().info("Uploaded file to PACS " + getSelectedAeTitle());
+            setProgress(model.size());
+            DicomClient.getInstance().incrementUploadCount(fileList.size());
             aeTitleUploadList.add(getSelectedAeTitle());
             DicomClient.getInstance().setProcessedStatus();
         }
+        else {
+            processOk = false;
+            String message = "Problem uploading files for " + seriesSummary + " : " + error;
+            Log.get().warning(message);
+            DicomClient.getInstance().showMessage(message);
+            new Alert(message, "Upload Error");
+        }
         previewProgressLayout.show(previewProgressPanel, CARD_SLIDER);
     }
     
@@ -1082,8 +626,8 @@ public class Series extends JPanel implements ActionListener, Runnable {
             Log.get().info("Starting upload of " + seriesSummary);
 
             ArrayList<File> fileList = new ArrayList<File>();
-            for (int f = 0; f < instanceList.size(); f++) {
-                fileList.add(instanceList.getFile(f));
+            for (int f = 0; f < model.size(); f++) {
+                fileList.add(model.getFile(f));
                 DicomClient.getInstance().markScreenAsModified();
             }
                 
@@ -1109,8 +653,8 @@ public class Series extends JPanel implements ActionListener, Runnable {
      */
     public void addFile(File file, AttributeList attributeList) {
         AnonymizeGUI.getInstance().updateTagList(attributeList);
-        String msg = instanceList.put(file, attributeList);
-        progressBar.setMaximum(instanceList.size());
+        String msg = model.addFile(file, attributeList);
+        progressBar.setMaximum(model.size());
         if (msg == null) {
             resetSummary();
         }
@@ -1118,7 +662,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
             DicomClient.getInstance().showMessage(msg);
         }
         if (DicomClient.getInstance().getPreview().getPreviewedSeries() == this) {
-            int sliceNumber = instanceList.size() / 2;
+            int sliceNumber = model.size() / 2;
             sliceNumber = (sliceNumber < 1) ? 1 : sliceNumber;
             showPreview(sliceNumber);
         }
@@ -1149,16 +693,16 @@ public class Series extends JPanel implements ActionListener, Runnable {
         if (ev.getSource() == uploadAnonymizeButton) {
             if (DicomClient.getInstance().getProcessingMode() != ProcessingMode.UPLOAD) {
                 if (DicomClient.getInstance().ensureAnonymizeDirectoryExists()) {
-                    processSeries();
+                    DicomClient.getInstance().processSeries(Arrays.asList(this));
                 }
             }
             else {
-                processSeries();
+                DicomClient.getInstance().processSeries(Arrays.asList(this));
             }
         }
 
         if (ev.getSource() == previewButton) {
-            int slice = instanceList.size() / 2;
+            int slice = model.size() / 2;
             slice = (slice < 1) ? 1 : slice;
             showPreview(slice);
         }
@@ -1180,7 +724,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * @return Orienting description of preview.
      */
     public String getPreviewTitle(int sliceNumber) {
-        return getDescription() + "   " + sliceNumber + " / " + instanceList.size();
+        return getDescription() + "   " + sliceNumber + " / " + model.size();
     }
 
     /**
@@ -1204,8 +748,8 @@ public class Series extends JPanel implements ActionListener, Runnable {
      */
     public synchronized void showPreview(int sliceNumber) {
         Preview preview = DicomClient.getInstance().getPreview();
-        File file = instanceList.values().get(sliceNumber - 1);
-        preview.showDicom(this, getPreviewTitle(sliceNumber), sliceNumber, getFileList().size(), file);
+        File file = model.getFile(sliceNumber - 1);
+        preview.showDicom(this, getPreviewTitle(sliceNumber), sliceNumber, model.size(), file);
     }
 
     /**
@@ -1214,11 +758,11 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * @return List of file names.
      */
     public Collection<File> getFileList() {
-        return instanceList.values();
+        return model.getFileList();
     }
     
     public int getFileCount() {
-        return instanceList.size();
+        return model.size();
     }
 
     /**
@@ -1227,7 +771,7 @@ public class Series extends JPanel implements ActionListener, Runnable {
      * @return Directory where series is stored.
      */
     public File getDirectory() {
-        return instanceList.getFirstFile().getParentFile();
+        return model.getDirectory();
     }
 
     /**
@@ -0,0 +1,195 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umro.util.Log;
+
+/**
+ * Run the processing of series on a fixed number of worker threads.
+ *
+ * Tasks are submitted with a key, normally the series they process. Tasks
+ * with the same key are run one at a time in the order that they were
+ * submitted, while tasks with different keys run in parallel. Only a limited
+ * number of tasks may be waiting or running at once, so submitting blocks
+ * when the workers fall behind. After <code>cancel</code> is called, tasks
+ * that have not started are discarded.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class SeriesScheduler {
+
+    /** Numbers the worker threads. */
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    /** Worker threads. */
+    private final ExecutorService executor;
+
+    /** Limits the number of tasks that are waiting or running. */
+    private final Semaphore capacity;
+
+    /** Tasks not yet started for each key that has work. */
+    private final HashMap<Object, LinkedList<Runnable>> pending = new HashMap<Object, LinkedList<Runnable>>();
+
+    /** Number of tasks submitted but not finished. Guarded by this. */
+    private int outstanding = 0;
+
+    /** Set to discard tasks that have not started. */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Run the tasks of one key in order until there are none left.
+     */
+    private class Drain implements Runnable {
+        private final Object key;
+
+        Drain(Object key) {
+            this.key = key;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task = null;
+                synchronized (SeriesScheduler.this) {
+                    LinkedList<Runnable> queue = pending.get(key);
+                    task = queue.poll();
+                    if (task == null) {
+                        pending.remove(key);
+                        return;
+                    }
+                }
+                try {
+                    if (!cancelled) task.run();
+                }
+                catch (RuntimeException e) {
+                    Log.get().severe("Unexpected error while processing " + key + " : " + Log.fmtEx(e));
+                }
+                finally {
+                    finished();
+                }
+            }
+        }
+    }
+
+    /**
+     * Construct a scheduler.
+     *
+     * @param threadCount
+     *            Number of worker threads.
+     *
+     * @param queueSize
+     *            Maximum number of tasks that may be waiting or running.
+     */
+    public SeriesScheduler(int threadCount, int queueSize) {
+        capacity = new Semaphore(Math.max(1, queueSize));
+        executor = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SeriesWorker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a task, waiting if too many tasks are already waiting or running.
+     *
+     * @param key
+     *            Tasks with equal keys are run one at a time in order.
+     *
+     * @param task
+     *            Work to do.
+     *
+     * @return True if the task was accepted, false if the scheduler was
+     *         cancelled.
+     */
+    public boolean submit(Object key, Runnable task) {
+        if (cancelled) return false;
+        capacity.acquireUninterruptibly();
+        synchronized (this) {
+            if (cancelled) {
+                capacity.release();
+                return false;
+            }
+            outstanding++;
+            LinkedList<Runnable> queue = pending.get(key);
+            if (queue != null) {
+                queue.add(task);
+                return true;
+            }
+            queue = new LinkedList<Runnable>();
+            queue.add(task);
+            pending.put(key, queue);
+        }
+        executor.execute(new Drain(key));
+        return true;
+    }
+
+    /**
+     * Account for a task that has finished or was discarded.
+     */
+    private void finished() {
+        capacity.release();
+        synchronized (this) {
+            outstanding--;
+            if (outstanding == 0) notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all submitted tasks have finished or been discarded.
+     */
+    public synchronized void awaitIdle() {
+        while (outstanding > 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Log.get().warning("Interrupted while waiting for series processing to finish");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discard tasks that have not started and refuse new ones. Tasks that are
+     * running are expected to check their own cancellation.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop the worker threads after the submitted tasks are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,88 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.EnumSet;
+
+/**
+ * Versions of an anonymized file that may be written beside it, with the
+ * same name and a different suffix.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public enum Sidecar {
+    /** Text dump of the attributes, as shown by the previewer. */
+    TEXT(Util.TEXT_SUFFIX, "txt"),
+
+    /** Image, for files that contain one. */
+    PNG(Util.PNG_SUFFIX, "png"),
+
+    /** XML representation of the attributes. */
+    XML(Util.XML_SUFFIX, "xml");
+
+    private final String suffix;
+
+    /** Name used in option lists. */
+    private final String optionName;
+
+    Sidecar(String suffix, String optionName) {
+        this.suffix = suffix;
+        this.optionName = optionName;
+    }
+
+    /**
+     * Get the file suffix, including the leading '.'.
+     *
+     * @return File suffix.
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Parse a list of sidecars separated by commas, such as
+     * <code>txt,xml</code>. Upper and lower case are ignored, and
+     * <code>all</code> and <code>none</code> are also allowed.
+     *
+     * @param text
+     *            List of sidecars.
+     *
+     * @return Sidecars in the list.
+     *
+     * @throws IllegalArgumentException
+     *             If the list contains something else.
+     */
+    public static EnumSet<Sidecar> parse(String text) {
+        EnumSet<Sidecar> sidecarSet = EnumSet.noneOf(Sidecar.class);
+        for (String word : text.split(",")) {
+            word = word.trim();
+            if (word.equalsIgnoreCase("all")) {
+                sidecarSet.addAll(EnumSet.allOf(Sidecar.class));
+            }
+            else if (!(word.equalsIgnoreCase("none") || (word.length() == 0))) {
+                Sidecar sidecar = null;
+                for (Sidecar s : values()) {
+                    if (s.optionName.equalsIgnoreCase(word) || s.name().equalsIgnoreCase(word)) sidecar = s;
+                }
+                if (sidecar == null) throw new IllegalArgumentException("Unknown sidecar: " + word + "  Expected txt, png, xml, all or none.");
+                sidecarSet.add(sidecar);
+            }
+        }
+        return sidecarSet;
+    }
+}
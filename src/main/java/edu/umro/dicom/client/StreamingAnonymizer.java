@@ -0,0 +1,420 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeList.ReadTerminationStrategy;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomOutputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.TransferSyntax;
+
+import edu.umro.util.Utility;
+
+/**
+ * Anonymize a DICOM file without reading its pixel data into memory.
+ *
+ * The file is scanned element by element to find where the pixel data is.
+ * Only the attributes before the pixel data are read into an
+ * <code>AttributeList</code>, which is anonymized as usual and written. The
+ * pixel data is then copied from the original file to the new one by the
+ * file system, so the memory needed does not depend on the size of the
+ * file. The result is the same as reading, anonymizing and writing the
+ * whole file.
+ *
+ * When the file is written with its original transfer syntax, the pixel
+ * data element is copied exactly as it is, even if it is compressed. It can
+ * only be converted to the default transfer syntax if it is little endian
+ * and not compressed. Deflated files and files that have attributes after
+ * the pixel data can not be streamed; <code>open</code> returns null for
+ * them.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class StreamingAnonymizer {
+
+    /** Group of item and delimitation tags. */
+    private static final int ITEM_GROUP = 0xfffe;
+
+    private static final int ITEM = 0xe000;
+    private static final int ITEM_DELIMITATION = 0xe00d;
+    private static final int SEQUENCE_DELIMITATION = 0xe0dd;
+
+    /** Value length that means undefined. */
+    private static final long UNDEFINED_LENGTH = 0xffffffffL;
+
+    private static final int PIXEL_DATA_GROUP = 0x7fe0;
+    private static final int PIXEL_DATA_ELEMENT = 0x0010;
+
+    /** Value representations that have a 4 byte length in explicit VR. */
+    private static final String[] LONG_VR_LIST = { "OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV" };
+
+    /** DICOM file being anonymized. */
+    private final File file;
+
+    /** Length of file in bytes. */
+    private final long fileLength;
+
+    /** Transfer syntax of the file. */
+    private String transferSyntax = null;
+
+    /** Offset of the pixel data element. */
+    private long pixelStart;
+
+    /** Offset of the pixel data value. */
+    private long pixelValueStart;
+
+    /** Length of the pixel data value, which is undefined if it is compressed. */
+    private long pixelLength;
+
+    /** Bytes of the file most recently read while scanning. */
+    private final ByteBuffer window = ByteBuffer.allocate(8 * 1024);
+
+    /** Offset in the file of the start of the window. */
+    private long windowStart = 0;
+
+    /** Channel used to read the file while scanning. */
+    private FileChannel channel = null;
+
+    /** The header of an element. */
+    private static class Element {
+        int group;
+        int element;
+        String vr;
+        long length;
+        long valueStart;
+
+        boolean is(int g, int e) {
+            return (group == g) && (element == e);
+        }
+    }
+
+    private StreamingAnonymizer(File file) {
+        this.file = file;
+        fileLength = file.length();
+        window.limit(0);
+    }
+
+    /**
+     * Prepare to anonymize the given file by streaming.
+     *
+     * @param file
+     *            DICOM file.
+     *
+     * @return Anonymizer for the file, or null if the file can not be
+     *         streamed.
+     *
+     * @throws IOException
+     *             If the file could not be read.
+     */
+    public static StreamingAnonymizer open(File file) throws IOException {
+        StreamingAnonymizer streamer = new StreamingAnonymizer(file);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            streamer.channel = in.getChannel();
+            return streamer.scan() ? streamer : null;
+        }
+        finally {
+            streamer.channel = null;
+            in.close();
+        }
+    }
+
+    /**
+     * Get bytes from the file, reading them if they are not in the window.
+     *
+     * @return Buffer positioned at the given offset with at least the given
+     *         number of bytes remaining.
+     */
+    private ByteBuffer read(long offset, int count) throws IOException {
+        if ((offset < windowStart) || ((offset + count) > (windowStart + window.limit()))) {
+            if ((offset + count) > fileLength) throw new IOException("Unexpected end of DICOM file " + file.getAbsolutePath() + " at offset " + offset);
+            window.clear();
+            windowStart = offset;
+            while (window.hasRemaining() && (channel.read(window, windowStart + window.position()) > 0)) {
+                ;
+            }
+            window.flip();
+        }
+        window.position((int) (offset - windowStart));
+        return window;
+    }
+
+    /**
+     * Read the header of the element at the given offset.
+     */
+    private Element readElement(long offset, boolean explicit) throws IOException {
+        Element e = new Element();
+        ByteBuffer buffer = read(offset, 8);
+        e.group = buffer.getShort() & 0xffff;
+        e.element = buffer.getShort() & 0xffff;
+        if ((e.group == ITEM_GROUP) || (!explicit)) {
+            e.length = buffer.getInt() & UNDEFINED_LENGTH;
+            e.valueStart = offset + 8;
+            return e;
+        }
+        e.vr = new String(new char[] { (char) buffer.get(), (char) buffer.get() });
+        if (Arrays.binarySearch(LONG_VR_LIST, e.vr) >= 0) {
+            e.length = read(offset + 8, 4).getInt() & UNDEFINED_LENGTH;
+            e.valueStart = offset + 12;
+        }
+        else {
+            e.length = buffer.getShort() & 0xffff;
+            e.valueStart = offset + 8;
+        }
+        return e;
+    }
+
+    /**
+     * Get the offset just past the value of the given element. Values of
+     * undefined length are sequences of items, which are skipped one at a
+     * time.
+     */
+    private long skip(Element e, boolean explicit) throws IOException {
+        if (e.length != UNDEFINED_LENGTH) return e.valueStart + e.length;
+        // the contents of UN values are always implicit VR
+        boolean itemExplicit = explicit && (!"UN".equals(e.vr));
+        long offset = e.valueStart;
+        while (true) {
+            Element item = readElement(offset, itemExplicit);
+            if (item.is(ITEM_GROUP, SEQUENCE_DELIMITATION)) return item.valueStart;
+            if (!item.is(ITEM_GROUP, ITEM)) throw new IOException("Expected sequence item in DICOM file " + file.getAbsolutePath() + " at offset " + offset);
+            if (item.length != UNDEFINED_LENGTH) {
+                offset = item.valueStart + item.length;
+            }
+            else {
+                offset = item.valueStart;
+                while (true) {
+                    Element child = readElement(offset, itemExplicit);
+                    if (child.is(ITEM_GROUP, ITEM_DELIMITATION)) {
+                        offset = child.valueStart;
+                        break;
+                    }
+                    offset = skip(child, itemExplicit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the pixel data and determine whether the file can be streamed.
+     *
+     * @return True if the file can be streamed.
+     */
+    private boolean scan() throws IOException {
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        if (fileLength < 132) return false;
+        ByteBuffer buffer = read(128, 4);
+        if ((buffer.get() != 'D') || (buffer.get() != 'I') || (buffer.get() != 'C') || (buffer.get() != 'M')) return false;
+
+        // the meta information is always explicit VR little endian
+        long offset = 132;
+        while (offset < fileLength) {
+            Element e = readElement(offset, true);
+            if (e.group != 2) break;
+            if (e.is(2, 0x0010)) {
+                byte[] value = new byte[(int) e.length];
+                read(e.valueStart, value.length).get(value);
+                transferSyntax = new String(value, "US-ASCII").replace('\0', ' ').trim();
+            }
+            offset = skip(e, true);
+        }
+        if (transferSyntax == null) return false;
+        if (new TransferSyntax(transferSyntax).isDeflated()) return false;
+        boolean explicit = !TransferSyntax.isImplicitVR(transferSyntax);
+        window.order(TransferSyntax.isBigEndian(transferSyntax) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+        while (offset < fileLength) {
+            Element e = readElement(offset, explicit);
+            if (e.is(PIXEL_DATA_GROUP, PIXEL_DATA_ELEMENT)) {
+                if (skip(e, explicit) != fileLength) return false;
+                pixelStart = offset;
+                pixelValueStart = e.valueStart;
+                pixelLength = e.length;
+                return true;
+            }
+            offset = skip(e, explicit);
+        }
+        return false;
+    }
+
+    /**
+     * Get the transfer syntax of the file.
+     *
+     * @return Transfer syntax UID.
+     */
+    public String getTransferSyntax() {
+        return transferSyntax;
+    }
+
+    /**
+     * Determine whether the file can be written with the given transfer
+     * syntax.
+     *
+     * @param outputTransferSyntax
+     *            Transfer syntax to write.
+     *
+     * @return True if it is the transfer syntax of the file, or if it is the
+     *         default and the pixel data can be converted to it.
+     */
+    public boolean canWrite(String outputTransferSyntax) {
+        if (outputTransferSyntax.equals(transferSyntax)) return true;
+        return outputTransferSyntax.equals(Util.DEFAULT_TRANSFER_SYNTAX) && (!TransferSyntax.isBigEndian(transferSyntax)) && (pixelLength != UNDEFINED_LENGTH);
+    }
+
+    /**
+     * Read all of the attributes of the file except the pixel data.
+     *
+     * @return Attributes before the pixel data.
+     *
+     * @throws IOException
+     *             If the file could not be read.
+     *
+     * @throws DicomException
+     *             If the file could not be interpreted as DICOM.
+     */
+    public AttributeList readHeader() throws IOException, DicomException {
+        AttributeList attributeList = new AttributeList();
+        // the offset given is just past the tag of the next attribute
+        attributeList.read(file, new ReadTerminationStrategy() {
+            public boolean terminate(AttributeList list, AttributeTag tag, long byteOffset) {
+                return byteOffset > pixelStart;
+            }
+        });
+        return attributeList;
+    }
+
+    /**
+     * Write the anonymized attributes followed by the pixel data of the
+     * original file. See <code>canWrite</code>.
+     *
+     * @param attributeList
+     *            Anonymized attributes, without pixel data.
+     *
+     * @param newFile
+     *            File to write.
+     *
+     * @param outputTransferSyntax
+     *            Transfer syntax to write, which must also be the transfer
+     *            syntax in the meta information of the attributes.
+     *
+     * @throws IOException
+     *             If the file could not be read or written.
+     *
+     * @throws DicomException
+     *             If the attributes could not be written.
+     */
+    public void write(AttributeList attributeList, File newFile, String outputTransferSyntax) throws IOException, DicomException {
+        if (!canWrite(outputTransferSyntax)) {
+            throw new DicomException("Can not write pixel data of " + file.getAbsolutePath() + " with transfer syntax " + outputTransferSyntax);
+        }
+        FileOutputStream out = new FileOutputStream(newFile);
+        try {
+            DicomOutputStream dicomOut = new DicomOutputStream(new BufferedOutputStream(out), TransferSyntax.ExplicitVRLittleEndian, outputTransferSyntax);
+            attributeList.write(dicomOut, true);
+
+            // the whole element is copied if the transfer syntax is the same, otherwise only the value
+            long position = pixelStart;
+            if (!outputTransferSyntax.equals(transferSyntax)) {
+                // element header in implicit VR little endian
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                header.putShort((short) PIXEL_DATA_GROUP);
+                header.putShort((short) PIXEL_DATA_ELEMENT);
+                header.putInt((int) pixelLength);
+                dicomOut.write(header.array());
+                position = pixelValueStart;
+            }
+            dicomOut.flush();
+
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long end = fileLength;
+                while (position < end) {
+                    long count = inChannel.transferTo(position, end - position, outChannel);
+                    if (count <= 0) throw new IOException("Unable to copy pixel data from " + file.getAbsolutePath() + " to " + newFile.getAbsolutePath());
+                    position += count;
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compare streaming with reading the whole file, both for the result and
+     * the time taken. For testing only.
+     *
+     * @param args
+     *            DICOM files.
+     *
+     * @throws Exception
+     *             On any error.
+     */
+    public static void main(String[] args) throws Exception {
+        for (String name : args) {
+            File file = new File(name);
+            StreamingAnonymizer streamer = open(file);
+            if (streamer == null) {
+                System.out.println(file.getName() + " : can not be streamed");
+                continue;
+            }
+            String[] transferSyntaxList = { Util.DEFAULT_TRANSFER_SYNTAX, streamer.getTransferSyntax() };
+            for (String transferSyntax : transferSyntaxList) {
+                if (!streamer.canWrite(transferSyntax)) continue;
+                File wholeFile = File.createTempFile("whole", ".dcm");
+                File streamedFile = File.createTempFile("streamed", ".dcm");
+
+                long start = System.nanoTime();
+                AttributeList attributeList = Util.readDicomFile(file);
+                FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, DicomClient.PROJECT_NAME);
+                attributeList.write(wholeFile, transferSyntax, true, true);
+                long wholeTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                streamer = open(file);
+                attributeList = streamer.readHeader();
+                FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, DicomClient.PROJECT_NAME);
+                streamer.write(attributeList, streamedFile, transferSyntax);
+                long streamTime = System.nanoTime() - start;
+
+                boolean same = Arrays.equals(Utility.readBinFile(wholeFile), Utility.readBinFile(streamedFile));
+                System.out.println(file.getName() + " " + transferSyntax + " : " + (same ? "same" : "DIFFERENT") + "    whole: " + (wholeTime / 1000000)
+                        + " ms    streamed: " + (streamTime / 1000000) + " ms");
+                wholeFile.delete();
+                streamedFile.delete();
+            }
+        }
+    }
+}
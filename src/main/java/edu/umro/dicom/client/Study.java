@@ -17,9 +17,9 @@ package edu.umro.dicom.client;
  */
 
 import java.awt.BorderLayout;
-import java.awt.Component;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -56,13 +56,27 @@ public class Study extends JPanel {
 
     private JPanel seriesListPanel = null;
 
+    /** All series in this study in the order that they were loaded. */
+    private final ArrayList<Series> seriesList = new ArrayList<Series>();
+
+    /**
+     * Series in this study indexed by series instance UID. There may be more
+     * than one series with the same UID if they were loaded from different
+     * directories.
+     */
+    private final HashMap<String, ArrayList<Series>> seriesIndex = new HashMap<String, ArrayList<Series>>();
+
+    /** Patient to which this study belongs. */
+    private final EnginePatient patient;
+
     @Override
     public boolean equals(Object other) {
         return (other instanceof Study) && (studyInstanceUid.equals(((Study)other).studyInstanceUid));
     }
 
 
-    public Study(File file, AttributeList attributeList) {
+    public Study(File file, AttributeList attributeList, EnginePatient patient) {
+        this.patient = patient;
 
         studyInstanceUid = Util.getAttributeValue(attributeList, TagFromName.StudyInstanceUID);
         studyInstanceUid = (studyInstanceUid == null) ? "" : studyInstanceUid;
@@ -90,7 +104,7 @@ public class Study extends JPanel {
         BoxLayout seriesListLayout = new BoxLayout(seriesListPanel, BoxLayout.Y_AXIS);
         seriesListPanel.setLayout(seriesListLayout);
 
-        seriesListPanel.add(new Series(file, attributeList));
+        addSeries(new Series(file, attributeList, patient));
         add(seriesListPanel, BorderLayout.CENTER);
 
         int gap = 8;
@@ -103,19 +117,35 @@ public class Study extends JPanel {
     
     private ArrayList<Series> findMatchingSeriesUID(AttributeList attributeList) {
         Attribute attr = attributeList.get(TagFromName.SeriesInstanceUID);
-        
+
         ArrayList<Series> list = new ArrayList<Series>();
-        String seriesInstanceUID = (attr == null) ? null : attr.getSingleStringValueOrEmptyString();
-        for (Component component : seriesListPanel.getComponents()) {
-            if (component instanceof Series) {
-                Series series = (Series) component;
-                if (series.getSeriesInstanceUID().equals(seriesInstanceUID)) {
-                    list.add(series);
-                }
+        if (attr != null) {
+            synchronized (seriesList) {
+                ArrayList<Series> matching = seriesIndex.get(attr.getSingleStringValueOrEmptyString());
+                if (matching != null) list.addAll(matching);
             }
         }
         return list;
     }
+
+    /**
+     * Add a series to this study, both to the index and the GUI.
+     * 
+     * @param series
+     *            New series.
+     */
+    private void addSeries(Series series) {
+        synchronized (seriesList) {
+            seriesList.add(series);
+            ArrayList<Series> matching = seriesIndex.get(series.getSeriesInstanceUID());
+            if (matching == null) {
+                matching = new ArrayList<Series>();
+                seriesIndex.put(series.getSeriesInstanceUID(), matching);
+            }
+            matching.add(series);
+        }
+        seriesListPanel.add(series);
+    }
     
 
     /**
@@ -155,7 +185,7 @@ public class Study extends JPanel {
         // can either be because it is a totally new series or
         // has the same series UID as an existing series but comes from a
         // different directory.
-        seriesListPanel.add(new Series(file, attributeList));
+        addSeries(new Series(file, attributeList, patient));
     }
 
 
@@ -171,20 +201,12 @@ public class Study extends JPanel {
 
 
     public void processAll() {
-        for (Component component : seriesListPanel.getComponents()) {
-            if (component instanceof Series) {
-                Series series = (Series)component;
-                series.processSeries();
-            }
-        }
+        DicomClient.getInstance().processSeries(seriesList());
     }
 
     public void zeroAllProgressBars() {
-        for (Component component : seriesListPanel.getComponents()) {
-            if (component instanceof Series) {
-                Series series = (Series)component;
-                series.zeroProgressBar();
-            }
+        for (Series series : seriesList()) {
+            series.zeroProgressBar();
         }
     }
     
@@ -194,13 +216,9 @@ public class Study extends JPanel {
      * @return List of series in this study.
      */
     public ArrayList<Series> seriesList() {
-        ArrayList<Series> list = new ArrayList<Series>();
-        for (Component component : seriesListPanel.getComponents()) {
-            if (component instanceof Series) {
-                list.add((Series)component);
-            }
+        synchronized (seriesList) {
+            return new ArrayList<Series>(seriesList);
         }
-        return list;
     }
 
 }
@@ -0,0 +1,409 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.AttributeTagAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherFloatAttribute;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.SOPClassDescriptions;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.SequenceItem;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.ValueRepresentation;
+
+/**
+ * Format DICOM attributes as human readable text, as shown in the text
+ * version of the preview and written to text files. This does not depend on
+ * the GUI, so it can be used without one.
+ *
+ * All state is local to each call, so attribute lists may be formatted on
+ * several threads at once. The dictionary is looked up once per call
+ * rather than for each attribute, so those threads do not contend for it.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TextRenderer {
+
+    /** Maximum line length for attributes of uncertain qualities. */
+    private static final int MAX_LINE_LENGTH = 2 * 1000;
+
+    /**
+     * When there are multiple values to be displayed for a single attribute,
+     * they are separated by this string followed by a blank.
+     */
+    private static final String VALUE_SEPARATOR = " \\ ";
+
+    /** Text used for each level of indentation. */
+    private static final String INDENT_VAL = "    ";
+
+    /**
+     * List of value representations that can be displayed as strings in the
+     * text version of the preview.
+     */
+    private static final byte[][] TEXTUAL_VR = { ValueRepresentation.AE, ValueRepresentation.AS, ValueRepresentation.CS, ValueRepresentation.DA, ValueRepresentation.DS,
+            ValueRepresentation.DT, ValueRepresentation.FL, ValueRepresentation.FD, ValueRepresentation.IS, ValueRepresentation.LO, ValueRepresentation.LT, ValueRepresentation.PN,
+            ValueRepresentation.SH, ValueRepresentation.SL, ValueRepresentation.SS, ValueRepresentation.ST, ValueRepresentation.TM, ValueRepresentation.UI, ValueRepresentation.UL,
+            ValueRepresentation.US, ValueRepresentation.UT, ValueRepresentation.XS, ValueRepresentation.XO };
+
+    /** A quickly searchable list of value representations. */
+    public static final HashSet<String> vrSet = new HashSet<String>();
+    static {
+        for (byte[] vr : TEXTUAL_VR) {
+            vrSet.add(new String(vr));
+        }
+    }
+
+    /**
+     * Determine the prefix for the given indent level.
+     *
+     * @param indentLevel
+     *            Degree of indentation.
+     *
+     * @return String to shift text to the right.
+     */
+    private static String indent(int indentLevel) {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < indentLevel; i++) {
+            text.append(INDENT_VAL);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Add a single line of text, recording its location if requested.
+     *
+     * @param text
+     *            Text so far.
+     *
+     * @param line
+     *            New line to add.
+     *
+     * @param indentLevel
+     *            Degree of indentation.
+     */
+    private static void addLine(StringBuffer text, String line, int indentLevel, AttributeLocation attributeLocation, Attribute attribute) {
+        int textStart = text.length();
+        text.append(indent(indentLevel) + line + "\n");
+        int textEnd = text.length();
+        if (attributeLocation != null) attributeLocation.setAttribute(text.length(), 0, attribute, textStart, textEnd);
+    }
+
+    /**
+     * Write a single line of text.
+     *
+     * @param writer
+     *            Destination of text.
+     *
+     * @param line
+     *            New line to write.
+     *
+     * @param indentLevel
+     *            Degree of indentation.
+     */
+    private static void writeLine(Writer writer, String line, int indentLevel) throws IOException {
+        for (int i = 0; i < indentLevel; i++) {
+            writer.write(INDENT_VAL);
+        }
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    /**
+     * Prefix the line with the tag, value representation, and value
+     * multiplicity if details were requested.
+     */
+    private static String addDetails(CustomDictionary dictionary, AttributeTag tag, byte[] vr, String line, boolean showDetails) {
+        if (showDetails) {
+            String element = Integer.toHexString(tag.getElement()).toUpperCase();
+            while (element.length() < 4) {
+                element = "0" + element;
+            }
+            String group = Integer.toHexString(tag.getGroup()).toUpperCase();
+            while (group.length() < 4) {
+                group = "0" + group;
+            }
+            if (vr == null) {
+                vr = new byte[] { '?', '?' };
+            }
+            String vmName = dictionary.getValueMultiplicity(tag).getName();
+            String prefix = group + "," + element + " " + (char) vr[0] + (char) vr[1] + " " + vmName + "  ";
+            line = prefix + line;
+        }
+        return line;
+    }
+
+    /**
+     * Show a byte value as humanly readable as possible. If it is a displayable
+     * ASCII character, then show that, otherwise show the hex value (as in
+     * 0xfe).
+     */
+    private static String byteToHuman(int i) {
+        i = i & 255;
+        return ((i >= 32) && (i <= 126)) ? ("" + (char) i) : ("0x" + Integer.toHexString(i & 255));
+    }
+
+    /**
+     * Convert a single non-sequence attribute to a human readable text format.
+     *
+     * @param attribute
+     *            Attribute to format.
+     *
+     * @param showDetails
+     *            If true, prefix the text with the tag, VR and VM.
+     *
+     * @return String version of attribute.
+     */
+    public static String getAttributeAsText(Attribute attribute, boolean showDetails) {
+        return getAttributeAsText(CustomDictionary.getInstance(), attribute, showDetails);
+    }
+
+    private static String getAttributeAsText(CustomDictionary dictionary, Attribute attribute, boolean showDetails) {
+        AttributeTag tag = attribute.getTag();
+        StringBuffer line = new StringBuffer();
+        boolean ok = false;
+        byte[] vr = dictionary.getValueRepresentationFromTag(tag);
+        if (vr == null) {
+            vr = attribute.getVR();
+        }
+        if (vr != null) {
+            try {
+                if ((!ok) && (vrSet.contains(new String(vr)))) {
+                    String[] valueList = attribute.getStringValues();
+
+                    if ((valueList != null) && (valueList.length > 0)) {
+                        boolean first = true;
+                        for (String value : valueList) {
+                            if (first)
+                                first = false;
+                            else
+                                line.append(VALUE_SEPARATOR);
+                            line.append(" " + value.replace('\n', ' '));
+                            if (line.length() > MAX_LINE_LENGTH) {
+                                break;
+                            }
+                            if (ValueRepresentation.isUniqueIdentifierVR(vr)) {
+                                String classDesc = SOPClassDescriptions.getDescriptionFromUID(value);
+                                if (classDesc.length() > 0) {
+                                    line.append(" (" + classDesc + ")");
+                                }
+                                TransferSyntax transferSyntax = new TransferSyntax(value);
+                                if (transferSyntax.isRecognized()) {
+                                    line.append(" (" + transferSyntax.getDescription() + ")");
+                                }
+                            }
+                        }
+                    }
+                    ok = true;
+                }
+                else {
+                    if ((!ok) && (ValueRepresentation.isAttributeTagVR(vr))) {
+                        AttributeTag[] atList = ((AttributeTagAttribute) attribute).getAttributeTagValues();
+                        for (AttributeTag t : atList) {
+                            line.append("  " + t);
+                            if (dictionary.getNameFromTag(t) == null) {
+                                line.append(":<unknown>");
+                            }
+                            else {
+                                line.append(":" + dictionary.getNameFromTag(t));
+                            }
+                            if (line.length() > MAX_LINE_LENGTH) {
+                                break;
+                            }
+                        }
+                        ok = true;
+                    }
+
+                    if ((!ok) && ((ValueRepresentation.isOtherByteVR(vr)) || (attribute instanceof OtherByteAttribute))) {
+                        byte[] outData = ((OtherByteAttribute) attribute).getByteValues();
+
+                        for (int b = 0; b < outData.length; b++) {
+                            line.append(" " + byteToHuman(outData[b]));
+                            if (line.length() > MAX_LINE_LENGTH) {
+                                break;
+                            }
+                        }
+                        ok = true;
+                    }
+
+                    if ((!ok) && ((ValueRepresentation.isOtherFloatVR(vr) || (attribute instanceof OtherFloatAttribute)))) {
+                        float[] floatValues = ((OtherFloatAttribute) attribute).getFloatValues();
+                        boolean first = true;
+                        for (float f : floatValues) {
+                            if (first)
+                                first = false;
+                            else
+                                line.append(VALUE_SEPARATOR);
+                            line.append(" " + f);
+                            if (line.length() > MAX_LINE_LENGTH) {
+                                break;
+                            }
+                        }
+                        ok = true;
+                    }
+
+                    if ((!ok) && ((attribute instanceof OtherWordAttribute) || (ValueRepresentation.isOtherWordVR(vr)))) {
+                        short[] outData = ((OtherWordAttribute) attribute).getShortValues();
+
+                        for (int b = 0; b < outData.length; b++) {
+                            line.append(" " + byteToHuman((outData[b] & 0xffff) >> 8) + " " + byteToHuman(outData[b] & 0xff));
+                            if (line.length() > MAX_LINE_LENGTH) {
+                                break;
+                            }
+                        }
+                        ok = true;
+                    }
+                }
+            }
+            catch (Exception e) {
+                line.append(" Error interpreting field: " + attribute.toString().replace('\n', ' '));
+            }
+        }
+
+        if (!ok) {
+            line = new StringBuffer(" " + attribute.toString().replace('\n', ' '));
+        }
+
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = new StringBuffer(line.substring(0, MAX_LINE_LENGTH) + " ... (truncated)");
+        }
+
+        String tagName = dictionary.getNameFromTag(tag);
+        if (tagName == null) {
+            tagName = "<unknown>";
+        }
+
+        line = new StringBuffer(line.toString().replace('\0', ' '));
+
+        return addDetails(dictionary, tag, vr, tagName + " :" + line.toString(), showDetails);
+    }
+
+    /**
+     * Get the line that introduces the items of a sequence.
+     */
+    private static String getSequenceLine(CustomDictionary dictionary, AttributeTag tag, boolean showDetails) {
+        String line = dictionary.getNameFromTag(tag) + " : ";
+        return addDetails(dictionary, tag, dictionary.getValueRepresentationFromTag(tag), line, showDetails);
+    }
+
+    /**
+     * Get the line that introduces one item of a sequence.
+     */
+    private static String getItemLine(SequenceAttribute sequence, int itemNumber) {
+        return "Item: " + itemNumber + " / " + sequence.getNumberOfItems();
+    }
+
+    /**
+     * Add the list of attributes to the given text. This method is called
+     * recursively to support DICOM attributes that are defined as a tree.
+     *
+     * @param attributeList
+     *            List of attributes to add.
+     *
+     * @param text
+     *            Existing text to append to.
+     *
+     * @param indentLevel
+     *            Indicates the depth of recursion and drives the amount of
+     *            whitespace prepended to each line.
+     *
+     * @param attributeLocation
+     *            If not null, records where each attribute is in the text.
+     *
+     * @param showDetails
+     *            If true, prefix each line with the tag, VR and VM.
+     */
+    public static void addTextAttributes(AttributeList attributeList, StringBuffer text, int indentLevel, AttributeLocation attributeLocation, boolean showDetails) {
+        addTextAttributes(CustomDictionary.getInstance(), attributeList, text, indentLevel, attributeLocation, showDetails);
+    }
+
+    private static void addTextAttributes(CustomDictionary dictionary, AttributeList attributeList, StringBuffer text, int indentLevel, AttributeLocation attributeLocation,
+            boolean showDetails) {
+        Iterator<?> i = attributeList.values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            if (attribute instanceof SequenceAttribute) {
+                addLine(text, getSequenceLine(dictionary, attribute.getTag(), showDetails), indentLevel, attributeLocation, attribute);
+                Iterator<?> si = ((SequenceAttribute) attribute).iterator();
+                int itemNumber = 1;
+                while (si.hasNext()) {
+                    if ((attributeLocation != null) && (!attributeLocation.isLocated())) attributeLocation.addParent((SequenceAttribute) attribute, itemNumber - 1);
+                    SequenceItem item = (SequenceItem) si.next();
+                    addLine(text, getItemLine((SequenceAttribute) attribute, itemNumber), indentLevel + 1, attributeLocation, null);
+                    addTextAttributes(dictionary, item.getAttributeList(), text, indentLevel + 2, attributeLocation, showDetails);
+                    if ((attributeLocation != null) && (!attributeLocation.isLocated())) attributeLocation.removeParent();
+                    itemNumber++;
+                }
+            }
+            else {
+                addLine(text, getAttributeAsText(dictionary, attribute, showDetails), indentLevel, attributeLocation, attribute);
+            }
+        }
+    }
+
+    /**
+     * Write the list of attributes as text, one line at a time, producing the
+     * same text as <code>addTextAttributes</code>. Only the line being
+     * formatted is held in memory, so the size of the list does not matter.
+     *
+     * @param attributeList
+     *            List of attributes to write.
+     *
+     * @param writer
+     *            Destination of text. Buffering is up to the caller.
+     *
+     * @param showDetails
+     *            If true, prefix each line with the tag, VR and VM.
+     *
+     * @throws IOException
+     *             On failure to write.
+     */
+    public static void writeTextAttributes(AttributeList attributeList, Writer writer, boolean showDetails) throws IOException {
+        writeTextAttributes(CustomDictionary.getInstance(), attributeList, writer, 0, showDetails);
+    }
+
+    private static void writeTextAttributes(CustomDictionary dictionary, AttributeList attributeList, Writer writer, int indentLevel, boolean showDetails) throws IOException {
+        Iterator<?> i = attributeList.values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            if (attribute instanceof SequenceAttribute) {
+                SequenceAttribute sequence = (SequenceAttribute) attribute;
+                writeLine(writer, getSequenceLine(dictionary, sequence.getTag(), showDetails), indentLevel);
+                Iterator<?> si = sequence.iterator();
+                int itemNumber = 1;
+                while (si.hasNext()) {
+                    SequenceItem item = (SequenceItem) si.next();
+                    writeLine(writer, getItemLine(sequence, itemNumber), indentLevel + 1);
+                    writeTextAttributes(dictionary, item.getAttributeList(), writer, indentLevel + 2, showDetails);
+                    itemNumber++;
+                }
+            }
+            else {
+                writeLine(writer, getAttributeAsText(dictionary, attribute, showDetails), indentLevel);
+            }
+        }
+    }
+}
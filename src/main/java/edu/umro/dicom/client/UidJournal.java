@@ -0,0 +1,526 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import edu.umro.util.Log;
+
+/**
+ * An append-only file of the UIDs and patient IDs made while anonymizing,
+ * so that a run that is interrupted can be restarted and give the files it
+ * has not finished the same UIDs as the ones it did finish.
+ *
+ * Records are collected in memory and written and synced to disk by a
+ * background thread every sync interval, so that anonymizing does not wait
+ * for the disk for each new UID. Records can be lost only if the process
+ * dies within one interval of making them, and <code>sync</code> may be
+ * called to make sure that everything so far is on disk.
+ *
+ * Each record is framed by its length and a CRC, so a record that was only
+ * partly written when the process died is detected and discarded when the
+ * journal is opened again. Closing the journal rewrites it without the
+ * records that were made obsolete by clearing history.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class UidJournal {
+
+    /** Identifies the file format. */
+    private static final byte[] MAGIC = { 'D', 'C', 'U', 'I', 'D', 'J', 'N', 'L' };
+
+    private static final int VERSION = 1;
+
+    /** Magic and version. */
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    /** Length written for a null string. Longer strings are not allowed. */
+    private static final int NULL_LENGTH = 0xffff;
+
+    /** Largest record body: a type and four strings. Anything larger is damage. */
+    private static final int MAX_RECORD_SIZE = 1 + (4 * (2 + NULL_LENGTH));
+
+    /** When this many bytes are waiting, they are written without waiting for the sync thread. */
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    /** An anonymized UID: original patient ID, anonymized patient ID, original UID, anonymized UID. */
+    private static final byte UID = 'U';
+
+    /** An anonymized patient ID: original patient ID, anonymized patient ID. */
+    private static final byte PATIENT = 'P';
+
+    /** All history of a patient was cleared: original patient ID. */
+    private static final byte FORGET_PATIENT = 'F';
+
+    /** All history was cleared. */
+    private static final byte CLEAR = 'C';
+
+    /** A series was completely anonymized: original patient ID, series key. */
+    private static final byte SERIES = 'S';
+
+    /** Receives the records of a journal in the order that they were made. */
+    public interface Handler {
+        void uid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) throws IOException;
+
+        void patient(String originalPatientId, String anonymizedPatientId) throws IOException;
+
+        void forgetPatient(String originalPatientId) throws IOException;
+
+        void clear() throws IOException;
+
+        void series(String originalPatientId, String seriesKey) throws IOException;
+    }
+
+    /** Journal file. */
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel channel;
+
+    /** Records that have not been written yet. Guarded by this. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** Held while writing to the file so that records are written in order. */
+    private final Object writeLock = new Object();
+
+    /** True if records have been written but not synced. Guarded by writeLock. */
+    private boolean unsynced = false;
+
+    private volatile boolean closed = false;
+
+    /** Periodically writes and syncs pending records. */
+    private final Thread syncThread;
+
+    private UidJournal(File file, long length, final long syncInterval) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (length == 0) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining())
+                channel.write(header);
+            channel.force(false);
+            length = HEADER_SIZE;
+        }
+        else if (channel.size() > length) {
+            Log.get().warning("Discarding " + (channel.size() - length) + " bytes of incomplete records at the end of UID journal " + file.getAbsolutePath());
+            channel.truncate(length);
+            channel.force(false);
+        }
+        channel.position(length);
+
+        syncThread = new Thread(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(syncInterval);
+                    }
+                    catch (InterruptedException e) {
+                        // closing
+                    }
+                    try {
+                        sync();
+                    }
+                    catch (IOException e) {
+                        Log.get().severe("Unable to write UID journal " + UidJournal.this.file.getAbsolutePath() + " : " + Log.fmtEx(e));
+                    }
+                }
+            }
+        }, "UidJournalSync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Open a journal, creating it if it does not exist, and pass each of its
+     * records to the handler. New records are added to the end.
+     *
+     * @param file
+     *            Journal file.
+     *
+     * @param handler
+     *            Receives the existing records.
+     *
+     * @param syncInterval
+     *            Milliseconds between syncs of new records to disk.
+     *
+     * @return The open journal.
+     *
+     * @throws IOException
+     *             If the file is not a journal or can not be read or written.
+     */
+    public static UidJournal open(File file, Handler handler, long syncInterval) throws IOException {
+        File compactFile = getCompactFile(file);
+        if (compactFile.exists()) {
+            // compacting was interrupted, either before or after the journal was removed
+            if (file.exists())
+                compactFile.delete();
+            else if (!compactFile.renameTo(file)) throw new IOException("Unable to rename " + compactFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+        long length = (file.exists() && (file.length() > 0)) ? replay(file, handler) : 0;
+        return new UidJournal(file, length, Math.max(1, syncInterval));
+    }
+
+    /**
+     * Get the file that a journal is written to while it is being compacted.
+     */
+    private static File getCompactFile(File file) {
+        return new File(file.getAbsolutePath() + ".tmp");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Pass each complete record of a journal to the handler.
+     *
+     * @return Length of the journal up to the end of the last complete
+     *         record.
+     */
+    private static long replay(File file, Handler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            int version = -1;
+            try {
+                in.readFully(magic);
+                version = in.readInt();
+            }
+            catch (EOFException e) {
+                // too short to be a journal
+            }
+            if ((!Arrays.equals(magic, MAGIC)) || (version != VERSION)) throw new IOException("Not a UID journal: " + file.getAbsolutePath());
+
+            long length = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] body;
+                int check;
+                try {
+                    int size = in.readInt();
+                    if ((size < 1) || (size > MAX_RECORD_SIZE)) break;
+                    body = new byte[size];
+                    in.readFully(body);
+                    check = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if ((int) crc.getValue() != check) break;
+                apply(body, handler);
+                length += 4 + body.length + 4;
+            }
+            return length;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xffff;
+        if (length == NULL_LENGTH) return null;
+        String text = new String(buffer.array(), buffer.position(), length, CHARSET);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    /**
+     * Pass one record to the handler.
+     */
+    private static void apply(byte[] body, Handler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte type = buffer.get();
+        switch (type) {
+        case UID:
+            handler.uid(readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+            break;
+        case PATIENT:
+            handler.patient(readString(buffer), readString(buffer));
+            break;
+        case FORGET_PATIENT:
+            handler.forgetPatient(readString(buffer));
+            break;
+        case CLEAR:
+            handler.clear();
+            break;
+        case SERIES:
+            handler.series(readString(buffer), readString(buffer));
+            break;
+        default:
+            throw new IOException("Unknown record type " + type + " in UID journal");
+        }
+    }
+
+    /**
+     * Make a framed record: the length of the body, the body, and the CRC of
+     * the body.
+     */
+    private static byte[] makeRecord(byte type, String... fieldList) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            for (String field : fieldList) {
+                if (field == null) {
+                    out.writeShort(NULL_LENGTH);
+                }
+                else {
+                    byte[] text = field.getBytes(CHARSET);
+                    if (text.length >= NULL_LENGTH) throw new IllegalArgumentException("Value is too long for UID journal: " + field.substring(0, 64) + "...");
+                    out.writeShort(text.length);
+                    out.write(text);
+                }
+            }
+            out.writeInt(0);
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int size = record.capacity() - 8;
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, size);
+            record.putInt(0, size);
+            record.putInt(4 + size, (int) crc.getValue());
+            return record.array();
+        }
+        catch (IOException e) {
+            // writing to memory, so this only happens if UTF-8 is not supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Add a record to be written. Records added before <code>close</code>
+     * is called are always written. A record added after that, by a thread
+     * that was still using the journal, can not be, so it is logged and
+     * dropped.
+     */
+    private void append(byte type, String... fieldList) {
+        byte[] record = makeRecord(type, fieldList);
+        boolean full;
+        synchronized (this) {
+            if (closed) {
+                Log.get().warning("Record made after UID journal " + file.getAbsolutePath() + " was closed is not kept");
+                return;
+            }
+            pending.write(record, 0, record.length);
+            full = pending.size() >= MAX_PENDING;
+        }
+        if (full) {
+            try {
+                synchronized (writeLock) {
+                    write();
+                }
+            }
+            catch (IOException e) {
+                Log.get().severe("Unable to write UID journal " + file.getAbsolutePath() + " : " + Log.fmtEx(e));
+            }
+        }
+    }
+
+    /**
+     * Write the pending records to the file without syncing. The caller
+     * must hold the write lock.
+     */
+    private void write() throws IOException {
+        byte[] bytes;
+        synchronized (this) {
+            if (pending.size() == 0) return;
+            bytes = pending.toByteArray();
+            pending.reset();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        unsynced = true;
+    }
+
+    /**
+     * Write all records made so far and wait until they are on disk.
+     *
+     * @throws IOException
+     *             If the journal could not be written.
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            if (!channel.isOpen()) return;
+            write();
+            if (unsynced) {
+                channel.force(false);
+                unsynced = false;
+            }
+        }
+    }
+
+    public void addUid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) {
+        append(UID, originalPatientId, anonymizedPatientId, originalUid, anonymizedUid);
+    }
+
+    public void addPatient(String originalPatientId, String anonymizedPatientId) {
+        append(PATIENT, originalPatientId, anonymizedPatientId);
+    }
+
+    public void forgetPatient(String originalPatientId) {
+        append(FORGET_PATIENT, originalPatientId);
+    }
+
+    public void clear() {
+        append(CLEAR);
+    }
+
+    public void addSeries(String originalPatientId, String seriesKey) {
+        append(SERIES, originalPatientId, seriesKey);
+    }
+
+    /**
+     * The records of a journal that are still in effect, in the order that
+     * they were first made.
+     */
+    private static class Compactor implements Handler {
+        final LinkedHashMap<String, String[]> uidList = new LinkedHashMap<String, String[]>();
+        final LinkedHashMap<String, String> patientList = new LinkedHashMap<String, String>();
+        final LinkedHashMap<String, String> seriesList = new LinkedHashMap<String, String>();
+
+        public void uid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) {
+            String[] record = { originalPatientId, anonymizedPatientId, originalUid, anonymizedUid };
+            uidList.put(anonymizedPatientId + "\0" + originalUid, record);
+        }
+
+        public void patient(String originalPatientId, String anonymizedPatientId) {
+            patientList.put(originalPatientId, anonymizedPatientId);
+        }
+
+        private static boolean matches(String patientId, String other) {
+            return (patientId == null) ? (other == null) : patientId.equalsIgnoreCase(other);
+        }
+
+        public void forgetPatient(String originalPatientId) {
+            Iterator<String[]> u = uidList.values().iterator();
+            while (u.hasNext())
+                if (matches(originalPatientId, u.next()[0])) u.remove();
+            Iterator<String> p = patientList.keySet().iterator();
+            while (p.hasNext())
+                if (matches(originalPatientId, p.next())) p.remove();
+            Iterator<String> s = seriesList.values().iterator();
+            while (s.hasNext())
+                if (matches(originalPatientId, s.next())) s.remove();
+        }
+
+        public void clear() {
+            uidList.clear();
+            patientList.clear();
+            seriesList.clear();
+        }
+
+        public void series(String originalPatientId, String seriesKey) {
+            seriesList.put(seriesKey, originalPatientId);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, String> patient : patientList.entrySet())
+                out.write(makeRecord(PATIENT, patient.getKey(), patient.getValue()));
+            for (String[] record : uidList.values())
+                out.write(makeRecord(UID, record));
+            for (Map.Entry<String, String> series : seriesList.entrySet())
+                out.write(makeRecord(SERIES, series.getValue(), series.getKey()));
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the records that are still in effect.
+     * The new journal is written to a separate file that replaces the old
+     * one only when it is complete.
+     */
+    private void compact() throws IOException {
+        Compactor compactor = new Compactor();
+        long length = replay(file, compactor);
+        if (length != file.length()) throw new IOException("UID journal changed while compacting: " + file.getAbsolutePath());
+
+        File compactFile = getCompactFile(file);
+        FileOutputStream fos = new FileOutputStream(compactFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            compactor.write(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+        if (!file.delete()) throw new IOException("Unable to replace " + file.getAbsolutePath() + " with compacted journal");
+        if (!compactFile.renameTo(file)) throw new IOException("Unable to rename " + compactFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        Log.get().info("Compacted UID journal " + file.getAbsolutePath() + " from " + length + " to " + file.length() + " bytes");
+    }
+
+    /**
+     * Write and sync all records, stop the sync thread, and compact the
+     * journal. Records added after this are not kept.
+     *
+     * @throws IOException
+     *             If the journal could not be written or compacted.
+     */
+    public void close() throws IOException {
+        // records are added while holding this lock, so none are added after the last sync
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        syncThread.interrupt();
+        try {
+            syncThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            try {
+                sync();
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+        compact();
+    }
+}
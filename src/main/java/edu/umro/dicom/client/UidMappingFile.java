@@ -0,0 +1,479 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import edu.umro.util.Log;
+
+/**
+ * A sorted binary file of anonymized UIDs that is searched where it lies
+ * instead of being loaded into memory. This is used for preloading UIDs
+ * from projects that have anonymized so many files that loading the
+ * <code>AnonymizePreload</code> XML would take too long and too much
+ * memory. The XML is converted to this format once with the
+ * <code>main</code> of this class.
+ *
+ * The file contains a header, a record for each UID, and an index of the
+ * records sorted by anonymized patient ID and original UID. Each record
+ * holds the anonymized patient ID and original UID as its key, then the
+ * original patient ID and anonymized UID.
+ *
+ * Lookups do not change anything, so they may be done by different threads
+ * at the same time.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class UidMappingFile {
+
+    /** Identifies the file format. */
+    private static final byte[] MAGIC = { 'D', 'C', 'U', 'I', 'D', 'M', 'A', 'P' };
+
+    private static final int VERSION = 1;
+
+    /** Magic, version, record count and index offset. */
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    /** File being searched. */
+    private final File file;
+
+    /** Contents of the file. */
+    private final MappedByteBuffer map;
+
+    /** Number of records. */
+    private final int count;
+
+    /** Offset of the sorted index of records. */
+    private final int indexOffset;
+
+    /** Original patient IDs, in lower case, whose UIDs should be ignored. */
+    private final HashSet<String> ignoredPatientList = new HashSet<String>();
+
+    /** An anonymized UID and the patient it belongs to. */
+    public static class Mapping {
+        public final String originalPatientId;
+        public final String anonymizedUid;
+
+        Mapping(String originalPatientId, String anonymizedUid) {
+            this.originalPatientId = originalPatientId;
+            this.anonymizedUid = anonymizedUid;
+        }
+    }
+
+    /**
+     * Receives the UIDs read from an <code>AnonymizePreload</code> XML file.
+     */
+    public interface PreloadHandler {
+        /**
+         * Called for each UID, in the order that they appear in the file.
+         */
+        void add(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) throws IOException;
+    }
+
+    private UidMappingFile(File file, MappedByteBuffer map) throws IOException {
+        this.file = file;
+        this.map = map;
+        ByteBuffer buffer = map.duplicate();
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a UID mapping file: " + file.getAbsolutePath());
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException("Unsupported version " + version + " of UID mapping file: " + file.getAbsolutePath());
+        count = buffer.getInt();
+        indexOffset = buffer.getInt();
+        if ((count < 0) || (indexOffset < HEADER_SIZE) || ((indexOffset + (count * 4L)) > map.limit())) {
+            throw new IOException("UID mapping file is incomplete: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Determine whether the given file is a UID mapping file.
+     *
+     * @param file
+     *            File to check.
+     *
+     * @return True if it starts like a UID mapping file.
+     */
+    public static boolean isMappingFile(File file) {
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[MAGIC.length];
+                return (fis.read(buffer) == buffer.length) && Arrays.equals(buffer, MAGIC);
+            }
+            finally {
+                fis.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open a UID mapping file for searching.
+     *
+     * @param file
+     *            UID mapping file.
+     *
+     * @return Searchable file.
+     *
+     * @throws IOException
+     *             If the file could not be read or is not a UID mapping file.
+     */
+    public static UidMappingFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) throw new IOException("UID mapping file is too large: " + file.getAbsolutePath());
+            // the mapping remains valid after the file is closed
+            return new UidMappingFile(file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Ignore the UIDs of the given patient from now on.
+     *
+     * @param originalPatientId
+     *            Patient ID prior to anonymization. Case is ignored.
+     */
+    public void ignorePatient(String originalPatientId) {
+        synchronized (ignoredPatientList) {
+            ignoredPatientList.add(originalPatientId.toLowerCase());
+        }
+    }
+
+    private static byte[] makeKey(String anonymizedPatientId, String originalUid) throws IOException {
+        return (anonymizedPatientId + '\0' + originalUid).getBytes(CHARSET);
+    }
+
+    /**
+     * Compare the key of the record at the given offset with a key.
+     */
+    private static int compare(ByteBuffer buffer, int offset, byte[] key) {
+        int length = buffer.getShort(offset) & 0xffff;
+        int start = offset + 2;
+        int common = Math.min(length, key.length);
+        for (int b = 0; b < common; b++) {
+            int diff = (buffer.get(start + b) & 0xff) - (key[b] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Compare the keys of the records at two offsets.
+     */
+    private static int compare(ByteBuffer buffer, int offsetA, int offsetB) {
+        int lengthA = buffer.getShort(offsetA) & 0xffff;
+        int lengthB = buffer.getShort(offsetB) & 0xffff;
+        int common = Math.min(lengthA, lengthB);
+        for (int b = 0; b < common; b++) {
+            int diff = (buffer.get(offsetA + 2 + b) & 0xff) - (buffer.get(offsetB + 2 + b) & 0xff);
+            if (diff != 0) return diff;
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Read a length and then a string at the given position of the buffer.
+     */
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * Find the anonymized UID for an original UID of a patient.
+     *
+     * @param anonymizedPatientId
+     *            Anonymized patient ID.
+     *
+     * @param originalUid
+     *            Non-anonymized UID.
+     *
+     * @return The mapping, or null if there is none or the patient is being
+     *         ignored.
+     */
+    public Mapping lookup(String anonymizedPatientId, String originalUid) {
+        try {
+            byte[] key = makeKey(anonymizedPatientId, originalUid);
+            ByteBuffer buffer = map.duplicate();
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int offset = buffer.getInt(indexOffset + (middle * 4));
+                int c = compare(buffer, offset, key);
+                if (c < 0) {
+                    low = middle + 1;
+                }
+                else if (c > 0) {
+                    high = middle - 1;
+                }
+                else {
+                    buffer.position(offset + 2 + key.length);
+                    Mapping mapping = new Mapping(readString(buffer), readString(buffer));
+                    synchronized (ignoredPatientList) {
+                        if (ignoredPatientList.contains(mapping.originalPatientId.toLowerCase())) return null;
+                    }
+                    return mapping;
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.get().severe("Unable to read UID mapping file " + file.getAbsolutePath() + " : " + Log.fmtEx(e));
+        }
+        return null;
+    }
+
+    /**
+     * Read an <code>AnonymizePreload</code> XML file one element at a time,
+     * so that the whole file is never in memory.
+     *
+     * @param xmlFile
+     *            Preload file.
+     *
+     * @param handler
+     *            Receives each UID.
+     *
+     * @return Number of patients read.
+     *
+     * @throws IOException
+     *             If the file could not be read.
+     *
+     * @throws XMLStreamException
+     *             If the file is not valid XML.
+     */
+    public static int readPreload(File xmlFile, PreloadHandler handler) throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(xmlFile));
+        int patientCount = 0;
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            int depth = 0;
+            String origPat = null;
+            String anonPat = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if ((depth == 2) && reader.getLocalName().equals("PatientID")) {
+                        origPat = reader.getAttributeValue(null, "orig");
+                        anonPat = reader.getAttributeValue(null, "anon");
+                        patientCount++;
+                    }
+                    else if ((depth == 3) && (anonPat != null) && reader.getLocalName().equals("UID")) {
+                        String origUid = reader.getAttributeValue(null, "orig");
+                        String anonUid = reader.getAttributeValue(null, "anon");
+                        if ((origUid != null) && (anonUid != null)) handler.add((origPat == null) ? "" : origPat, anonPat, origUid, anonUid);
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 2) {
+                        origPat = null;
+                        anonPat = null;
+                    }
+                    depth--;
+                    break;
+                }
+            }
+            reader.close();
+        }
+        finally {
+            in.close();
+        }
+        return patientCount;
+    }
+
+    /**
+     * Sort the record offsets by key, keeping records with equal keys in the
+     * order that they were written.
+     */
+    private static void sort(ByteBuffer buffer, int[] offsetList, int[] work, int from, int to) {
+        if ((to - from) < 2) return;
+        int middle = (from + to) >>> 1;
+        sort(buffer, offsetList, work, from, middle);
+        sort(buffer, offsetList, work, middle, to);
+        if (compare(buffer, offsetList[middle - 1], offsetList[middle]) <= 0) return;
+        System.arraycopy(offsetList, from, work, from, to - from);
+        int a = from;
+        int b = middle;
+        for (int i = from; i < to; i++) {
+            if ((b >= to) || ((a < middle) && (compare(buffer, work[a], work[b]) <= 0))) {
+                offsetList[i] = work[a++];
+            }
+            else {
+                offsetList[i] = work[b++];
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes.length > 0xffff) throw new IOException("Value too long for UID mapping file");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Convert an <code>AnonymizePreload</code> XML file to a UID mapping
+     * file. Only the record offsets are kept in memory. If a UID appears more
+     * than once for the same anonymized patient, the last one is used, as
+     * when the XML is preloaded. The header is written last, so a file that
+     * was not finished is not recognized as a UID mapping file.
+     *
+     * @param xmlFile
+     *            Preload file.
+     *
+     * @param mappingFile
+     *            UID mapping file to write.
+     *
+     * @return Number of UIDs written.
+     *
+     * @throws IOException
+     *             If a file could not be read or written.
+     *
+     * @throws XMLStreamException
+     *             If the preload file is not valid XML.
+     */
+    public static int convert(File xmlFile, File mappingFile) throws IOException, XMLStreamException {
+        final int[][] offsetList = { new int[1024] };
+        final int[] recordCount = { 0 };
+        final long[] position = { HEADER_SIZE };
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mappingFile)));
+        try {
+            out.write(new byte[HEADER_SIZE]);
+            readPreload(xmlFile, new PreloadHandler() {
+                public void add(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) throws IOException {
+                    if (recordCount[0] == offsetList[0].length) offsetList[0] = Arrays.copyOf(offsetList[0], offsetList[0].length * 2);
+                    offsetList[0][recordCount[0]++] = (int) position[0];
+                    byte[] key = makeKey(anonymizedPatientId, originalUid);
+                    byte[] origPat = originalPatientId.getBytes(CHARSET);
+                    byte[] anonUid = anonymizedUid.getBytes(CHARSET);
+                    writeString(out, key);
+                    writeString(out, origPat);
+                    writeString(out, anonUid);
+                    position[0] += 6 + key.length + origPat.length + anonUid.length;
+                    if (position[0] > Integer.MAX_VALUE) throw new IOException("Too many UIDs for a UID mapping file");
+                }
+            });
+        }
+        finally {
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(mappingFile, "rw");
+        try {
+            int indexOffset = (int) position[0];
+            if ((indexOffset + (recordCount[0] * 4L)) > Integer.MAX_VALUE) throw new IOException("Too many UIDs for a UID mapping file");
+            int[] sorted = Arrays.copyOf(offsetList[0], recordCount[0]);
+            offsetList[0] = null;
+            ByteBuffer records = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexOffset);
+            sort(records, sorted, new int[sorted.length], 0, sorted.length);
+
+            // of records with equal keys, keep the last
+            int unique = 0;
+            for (int r = 0; r < sorted.length; r++) {
+                if ((r + 1 < sorted.length) && (compare(records, sorted[r], sorted[r + 1]) == 0)) continue;
+                sorted[unique++] = sorted[r];
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(unique * 4);
+            for (int r = 0; r < unique; r++) {
+                index.putInt(sorted[r]);
+            }
+            index.flip();
+            FileChannel channel = raf.getChannel();
+            channel.position(indexOffset);
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(unique);
+            header.putInt(indexOffset);
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            recordCount[0] = unique;
+        }
+        finally {
+            raf.close();
+        }
+        return recordCount[0];
+    }
+
+    /**
+     * Convert an <code>AnonymizePreload</code> XML file to a UID mapping
+     * file.
+     *
+     * @param args
+     *            Preload XML file and UID mapping file to write.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: UidMappingFile preload.xml preload.uidmap");
+            System.exit(1);
+        }
+        try {
+            long start = System.currentTimeMillis();
+            int count = convert(new File(args[0]), new File(args[1]));
+            System.out.println("Wrote " + count + " UIDs to " + new File(args[1]).getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (Exception e) {
+            System.err.println("Unable to convert " + args[0] + " : " + e);
+            System.exit(1);
+        }
+    }
+}
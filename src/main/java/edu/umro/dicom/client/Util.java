@@ -17,10 +17,17 @@ package edu.umro.dicom.client;
  */
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.rmi.server.UID;
@@ -30,10 +37,9 @@ import java.util.Date;
 import java.util.Random;
 import java.util.StringTokenizer;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.imageio.ImageIO;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeFactory;
@@ -49,16 +55,12 @@ import com.pixelmed.dicom.SequenceAttribute;
 import com.pixelmed.dicom.TagFromName;
 import com.pixelmed.dicom.TimeAttribute;
 import com.pixelmed.dicom.TransferSyntax;
-import com.pixelmed.dicom.XMLRepresentationOfDicomObjectFactory;
 import com.pixelmed.dicom.AttributeList.ReadTerminationStrategy;
 import com.pixelmed.display.ConsumerFormatImageMaker;
 
 import edu.umro.util.JarInfo;
 import edu.umro.util.Log;
 import edu.umro.util.OpSys;
-import edu.umro.util.UMROException;
-import edu.umro.util.Utility;
-import edu.umro.util.XML;
 
 /**
  * General purpose methods.
@@ -74,6 +76,13 @@ public class Util {
      */
     private final static int TRANSFER_BUFFER_SIZE = 64 * 1024;
 
+    /**
+     * Number of bytes read from the beginning of a file when only
+     * its header is needed.  This is enough for the header of nearly
+     * all images.
+     */
+    private final static int HEADER_PREFIX_SIZE = 16 * 1024;
+
     /** The root UID which is used to prefix files constructed by the University of Michigan. */
     public static final String UMRO_ROOT_UID = "1.3.6.1.4.1.22361";
 
@@ -109,6 +118,9 @@ public class Util {
     public static final String XML_SUFFIX = ".XML";
     public static final String DICOM_SUFFIX = ".DCM";
 
+    /** Size in characters of the buffer used when writing text files. */
+    private static final int TEXT_BUFFER_SIZE = 64 * 1024;
+
     private static boolean testing() {
         return System.getProperties().contains(TESTING_PROPERTY);
     }
@@ -240,6 +252,96 @@ public class Util {
         return uid;
     }
 
+    /** Maximum length of a DICOM UID. */
+    private static final int MAX_UID_LENGTH = 64;
+
+    /**
+     * Fewest hash digits in a hashed UID. Fewer would make it too likely that
+     * two different UIDs are given the same one.
+     */
+    public static final int MIN_UID_HASH_DIGITS = 20;
+
+    /** Algorithm used to derive UIDs from a key. */
+    private static final String UID_HASH_ALGORITHM = "HmacSHA256";
+
+    /** A MAC and the key it was made with. */
+    private static class UidMac {
+        final String key;
+        final Mac mac;
+
+        UidMac(String key) throws Exception {
+            this.key = key;
+            mac = Mac.getInstance(UID_HASH_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getBytes("UTF-8"), UID_HASH_ALGORITHM));
+        }
+    }
+
+    /** Each thread keeps its own MAC because they may not be shared. */
+    private static final ThreadLocal<UidMac> uidMac = new ThreadLocal<UidMac>();
+
+    /**
+     * Get the root UID followed by a '.'.
+     */
+    private static synchronized String getRootUidPrefix() {
+        initialize();
+        return rootUid.endsWith(".") ? rootUid : rootUid + ".";
+    }
+
+    /**
+     * Holds the root of hashed UIDs, which is determined when first needed
+     * and never changes, so that deriving a UID does not take a lock.
+     */
+    private static class HashedUidRoot {
+        static final String PREFIX = getRootUidPrefix();
+    }
+
+    /**
+     * Get the number of hash digits that fit in a hashed UID after the root.
+     * 
+     * @return Number of digits.
+     */
+    public static int getHashedUidDigitCount() {
+        return MAX_UID_LENGTH - HashedUidRoot.PREFIX.length();
+    }
+
+    /**
+     * Derive a DICOM compliant UID from a keyed hash (HMAC) of the original
+     * patient ID and UID. The same key, patient ID and UID always give the
+     * same result, so different processes and machines that share the key
+     * anonymize UIDs the same way without sharing any other state. Without
+     * the key, the original UID can not be determined from the result.
+     * 
+     * @param key
+     *            Secret key.
+     * 
+     * @param originalPatientId
+     *            Patient ID before anonymization, or null if none.
+     * 
+     * @param oldUid
+     *            UID before anonymization.
+     * 
+     * @return A DICOM compliant UID using the configured root.
+     */
+    public static String getHashedUID(String key, String originalPatientId, String oldUid) {
+        try {
+            UidMac hasher = uidMac.get();
+            if ((hasher == null) || (!hasher.key.equals(key))) {
+                hasher = new UidMac(key);
+                uidMac.set(hasher);
+            }
+            String text = ((originalPatientId == null) ? "" : originalPatientId) + '\0' + oldUid;
+            byte[] hash = hasher.mac.doFinal(text.getBytes("UTF-8"));
+            String root = HashedUidRoot.PREFIX;
+            // a decimal number has no leading zeroes, so shortening it keeps it valid
+            String number = new BigInteger(1, hash).toString();
+            return root + number.substring(0, Math.min(number.length(), MAX_UID_LENGTH - root.length()));
+        }
+        catch (Exception e) {
+            // the algorithm is required of every Java platform, so this should never happen
+            throw new RuntimeException("Unable to derive UID with " + UID_HASH_ALGORITHM + " : " + e, e);
+        }
+    }
+
     /**
      * Determine the trust store file to use and set it up.
      * First look at the javax.net.ssl.trustStore system property,
@@ -441,9 +543,29 @@ public class Util {
         }
     }
 
+    /**
+     * Wait until everything written to a file is on disk.
+     * 
+     * @param file
+     *            File that has been written and closed.
+     * 
+     * @throws IOException
+     *             If the file could not be opened or synced.
+     */
+    public static void syncFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.getFD().sync();
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
     /**
      * Write the given attribute list to a text file as a user would see it in
-     * the text previewer.
+     * the text previewer. The text is written a line at a time, so it is
+     * never all in memory.
      * 
      * @param attributeList
      *            DICOM source.
@@ -451,20 +573,25 @@ public class Util {
      * @param textFile
      *            Text file to create.
      * 
+     * @param showDetails
+     *            If true, show the tag, VR and VM of each attribute.
+     * 
      * @throws IOException
-     * @throws UMROException
      */
-    public static void writeTextFile(AttributeList attributeList, File textFile) throws IOException, UMROException {
-        StringBuffer text = new StringBuffer();
-        DicomClient.getInstance().getPreview().addTextAttributes(attributeList, text, 0, null);
-        textFile.delete();
-        textFile.createNewFile();
-        Utility.writeFile(textFile, text.toString().getBytes());
+    public static void writeTextFile(AttributeList attributeList, File textFile, boolean showDetails) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile)), TEXT_BUFFER_SIZE);
+        try {
+            TextRenderer.writeTextAttributes(attributeList, writer, showDetails);
+        }
+        finally {
+            writer.close();
+        }
         Log.get().info("Wrote text file " + textFile.getAbsolutePath());
     }
 
     /**
-     * Write the given attribute list to a text file as a user would see it in the text previewer.
+     * Write the given attribute list to an XML file. The XML is written while
+     * the attributes are traversed, so no DOM version of the file is built.
      * 
      * @param attributeList
      *            DICOM source.
@@ -473,17 +600,9 @@ public class Util {
      *            XML file to create.
      * 
      * @throws IOException
-     * @throws UMROException
-     * @throws ParserConfigurationException
      */
-    public static void writeXmlFile(AttributeList attributeList, File xmlFile) throws IOException, UMROException, ParserConfigurationException {
-        Document document = new XMLRepresentationOfDicomObjectFactory().getDocument(attributeList);
-        if (DicomClient.getReplaceControlCharacters()) {
-            XML.replaceControlCharacters(document, ' ');
-        }
-        String xmlText = XML.domToString(document);
-        xmlFile.delete();
-        Utility.writeFile(xmlFile, xmlText.getBytes());
+    public static void writeXmlFile(AttributeList attributeList, File xmlFile) throws IOException {
+        XmlRenderer.writeFile(attributeList, xmlFile, DicomClient.getReplaceControlCharacters());
         Log.get().info("Wrote xml file " + xmlFile.getAbsolutePath());
     }
 
@@ -498,11 +617,11 @@ public class Util {
                 Runtime.getRuntime().gc(); // take a shot at freeing memory
             }
             if (fileLength > Runtime.getRuntime().freeMemory()) {
-                DicomClient.getInstance().showMessage("Extremely large file " + file.getAbsolutePath() + " of size " + fileLength + " might need more memory than is available.");
+                DicomClient.showMessageIfRunning("Extremely large file " + file.getAbsolutePath() + " of size " + fileLength + " might need more memory than is available.");
             }
         }
         catch (Throwable t) {
-            DicomClient.getInstance().showMessage("Problem reading file (partially read) " + file.getAbsolutePath() + " : " + t);
+            DicomClient.showMessageIfRunning("Problem reading file (partially read) " + file.getAbsolutePath() + " : " + t);
             Runtime.getRuntime().gc();
         }
 
@@ -539,7 +658,7 @@ public class Util {
         }
         catch (Exception e) {
             if (rts.latest != null) {
-                DicomClient.getInstance().showMessage("Warning!  DICOM file " + file.getAbsolutePath() + " has problems: " + e.getMessage());
+                DicomClient.showMessageIfRunning("Warning!  DICOM file " + file.getAbsolutePath() + " has problems: " + e.getMessage());
                 return rts.latest;
             }
             else
@@ -548,4 +667,158 @@ public class Util {
         return attributeList;
     }
 
+    /**
+     * Value representations of explicit VR elements that have a 4 byte
+     * length after two reserved bytes.
+     */
+    private static final String LONG_EXPLICIT_VR_LIST = "OB OD OF OL OV OW SQ SV UC UN UR UT UV";
+
+    /**
+     * Get the offset just past the value of a top level element in the
+     * first part of a file, without parsing the value.
+     * 
+     * @param prefix
+     *            First part of the file.
+     * 
+     * @param size
+     *            Number of bytes of the prefix that were read.
+     * 
+     * @param byteOffset
+     *            Offset just past the tag of the element.
+     * 
+     * @param explicitVR
+     *            True if the element has an explicit value representation.
+     * 
+     * @param littleEndian
+     *            True if the length is little endian.
+     * 
+     * @return Offset past the end of the value, or -1 if that is not in
+     *         the prefix, or the length is undefined.
+     */
+    private static long getValueEnd(byte[] prefix, int size, long byteOffset, boolean explicitVR, boolean littleEndian) {
+        int offset = (int) Math.min(byteOffset, size);
+        int lengthOffset = offset;
+        int lengthSize = 4;
+        if (explicitVR) {
+            if ((offset + 2) > size) return -1;
+            String vr = new String(prefix, offset, 2);
+            if (LONG_EXPLICIT_VR_LIST.contains(vr)) {
+                lengthOffset = offset + 4;
+            }
+            else {
+                lengthOffset = offset + 2;
+                lengthSize = 2;
+            }
+        }
+        if ((lengthOffset + lengthSize) > size) return -1;
+        long valueLength = 0;
+        for (int b = 0; b < lengthSize; b++) {
+            int shift = 8 * (littleEndian ? b : (lengthSize - 1 - b));
+            valueLength |= ((long) (prefix[lengthOffset + b] & 0xff)) << shift;
+        }
+        if ((lengthSize == 4) && (valueLength == 0xffffffffL)) return -1;
+        long end = lengthOffset + lengthSize + valueLength;
+        return (end > size) ? -1 : end;
+    }
+
+    /**
+     * Read the header of a DICOM file, stopping where
+     * <code>DicomClientReadStrategy</code> stops. To avoid reading large
+     * files, only the first part of the file is read and parsed. If that
+     * does not contain the whole header, then the file is read again
+     * directly, which is slower but always works.
+     * 
+     * The prefix is parsed only as far as it holds complete elements, so
+     * that Pixelmed never reads past its end, which it would report on
+     * standard error.
+     * 
+     * @param file
+     *            to read
+     * @return Header of the file, or as much of it as could be read.
+     * @throws IOException
+     * @throws DicomException
+     */
+    public static AttributeList readDicomHeader(File file) throws IOException, DicomException {
+
+        final long length = file.length();
+        final byte[] prefix = new byte[(int) Math.min(length, HEADER_PREFIX_SIZE)];
+
+        class PrefixStrategy implements ReadTerminationStrategy {
+            /** True if the strategy of the client ended the read. */
+            public boolean terminated = false;
+            /** True if the read was stopped because the prefix does not hold the next element. */
+            public boolean incomplete = false;
+            /** Number of bytes in the prefix. */
+            public int size = 0;
+            private DicomClientReadStrategy dicomClientReadStrategy = new DicomClientReadStrategy();
+
+            @Override
+            public boolean terminate(AttributeList attributeList, AttributeTag tag, long byteOffset) {
+                terminated = dicomClientReadStrategy.terminate(attributeList, tag, byteOffset);
+                if (terminated || (size == length)) return terminated;
+
+                // the meta information is always explicit VR little endian
+                boolean explicitVR = true;
+                boolean littleEndian = true;
+                if (tag.getGroup() != 0x0002) {
+                    String transferSyntaxUid = Util.getAttributeValue(attributeList, TagFromName.TransferSyntaxUID);
+                    if (transferSyntaxUid != null) {
+                        TransferSyntax transferSyntax = new TransferSyntax(transferSyntaxUid);
+                        if (transferSyntax.isDeflated()) {
+                            incomplete = true;
+                            return true;
+                        }
+                        explicitVR = transferSyntax.isExplicitVR();
+                        littleEndian = transferSyntax.isLittleEndian();
+                    }
+                }
+                incomplete = getValueEnd(prefix, size, byteOffset, explicitVR, littleEndian) == -1;
+                return incomplete;
+            }
+        }
+
+        FileInputStream fileInputStream = new FileInputStream(file);
+        int size = 0;
+        try {
+            while (size < prefix.length) {
+                int count = fileInputStream.read(prefix, size, prefix.length - size);
+                if (count < 0) break;
+                size += count;
+            }
+        }
+        finally {
+            fileInputStream.close();
+        }
+
+        if (size == prefix.length) {
+            PrefixStrategy prefixStrategy = new PrefixStrategy();
+            prefixStrategy.size = size;
+            AttributeList attributeList = new AttributeList();
+            try {
+                attributeList.read(new DicomInputStream(new ByteArrayInputStream(prefix)), prefixStrategy);
+                if ((!prefixStrategy.incomplete) && (prefixStrategy.terminated || (size == length))) {
+                    return attributeList;
+                }
+            }
+            catch (Exception e) {
+                // the header is longer than the prefix or the file has problems, so read it directly
+            }
+        }
+
+        DicomClientReadStrategy dicomClientReadStrategy = new DicomClientReadStrategy();
+        AttributeList attributeList = new AttributeList();
+        try {
+            attributeList.read(file, dicomClientReadStrategy);
+        }
+        catch (IOException e) {
+            if (dicomClientReadStrategy.latest == null) throw e;
+            attributeList = dicomClientReadStrategy.latest;
+        }
+        catch (DicomException e) {
+            if (dicomClientReadStrategy.latest == null) throw e;
+            attributeList = dicomClientReadStrategy.latest;
+        }
+        return attributeList;
+    }
+
 }
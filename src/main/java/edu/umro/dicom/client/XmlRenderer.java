@@ -0,0 +1,368 @@
+package edu.umro.dicom.client;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DicomDictionary;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.SequenceItem;
+import com.pixelmed.dicom.ValueRepresentation;
+
+/**
+ * Write DICOM attributes as XML while traversing them, instead of building
+ * a DOM document and converting it to a string. Only one element's worth
+ * of text is held at a time, regardless of the number of attributes.
+ *
+ * The output is the same as that of Pixelmed's
+ * <code>XMLRepresentationOfDicomObjectFactory</code> serialized by
+ * <code>XML.domToString</code>, optionally after
+ * <code>XML.replaceControlCharacters</code>, so that files do not change
+ * depending on which was used to write them. Element names come from the
+ * current dictionary, which limits them to 32 characters when the
+ * <code>-3</code> option is given.
+ *
+ * Each instance writes to one <code>Writer</code> and is not thread safe,
+ * but separate instances may be used on separate threads.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class XmlRenderer {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+    private static final String ROOT = "DicomObject";
+
+    private static final String ITEM = "Item";
+
+    private static final String VALUE = "value";
+
+    /** Size in bytes of the file buffer, and text that is collected before writing. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Newlines in values are written as this, as the XML serializer does. */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The XML serializer wrote UTF-8, which was then converted to a string
+     * and back to bytes in the default character set. When the default is
+     * something else, non-ASCII text goes through the same conversion.
+     */
+    private static final boolean RECODE = !Charset.defaultCharset().equals(UTF_8);
+
+    private final Writer writer;
+
+    private final boolean replaceControlCharacters;
+
+    private final DicomDictionary dictionary = AttributeList.getDictionary();
+
+    /** Text waiting to be written. */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Create a renderer.
+     *
+     * @param writer
+     *            Destination of XML text.
+     *
+     * @param replaceControlCharacters
+     *            If true, replace control characters in values with blanks,
+     *            as <code>XML.replaceControlCharacters</code> does.
+     */
+    public XmlRenderer(Writer writer, boolean replaceControlCharacters) {
+        this.writer = writer;
+        this.replaceControlCharacters = replaceControlCharacters;
+    }
+
+    /**
+     * Same test of each byte as <code>XML.isRegularChar</code>.
+     */
+    private static boolean isRegularChar(int b) {
+        return ((b >= 32) && (b <= 126)) || (b == 13) || (b == 10) || (b == 9);
+    }
+
+    /**
+     * Replace control characters the way <code>XML.replaceControlCharacters</code>
+     * does, which works on the bytes of the text in the default character
+     * set.
+     */
+    private static String replaceControlCharacters(String value) {
+        int c = 0;
+        while ((c < value.length()) && isRegularChar(value.charAt(c)))
+            c++;
+        if (c == value.length()) return value;
+
+        byte[] bytes = value.getBytes();
+        boolean changed = false;
+        for (int b = 0; b < bytes.length; b++) {
+            if (!isRegularChar(bytes[b])) {
+                bytes[b] = (byte) ' ';
+                changed = true;
+            }
+        }
+        return changed ? new String(bytes) : value;
+    }
+
+    /**
+     * Append a value with the XML special characters escaped the way the
+     * XML serializer escapes them.
+     *
+     * @param value
+     *            Text of an attribute or element.
+     *
+     * @param inAttribute
+     *            True if the value is that of an XML attribute.
+     *
+     * @throws IOException
+     *             If the value contains half of a surrogate pair, which the
+     *             XML serializer also refuses.
+     */
+    private void appendEscaped(String value, boolean inAttribute) throws IOException {
+        if (replaceControlCharacters) value = replaceControlCharacters(value);
+        int start = text.length();
+        boolean nonAscii = false;
+        for (int c = 0; c < value.length(); c++) {
+            char ch = value.charAt(c);
+            switch (ch) {
+            case '&':
+                text.append("&amp;");
+                break;
+            case '<':
+                text.append("&lt;");
+                break;
+            case '>':
+                text.append("&gt;");
+                break;
+            case '"':
+                text.append(inAttribute ? "&quot;" : "\"");
+                break;
+            case '\t':
+                if (inAttribute)
+                    text.append("&#9;");
+                else
+                    text.append(ch);
+                break;
+            case '\n':
+                text.append(inAttribute ? "&#10;" : LINE_SEPARATOR);
+                break;
+            default:
+                if ((ch < 0x20) || ((ch >= 0x7f) && (ch <= 0x9f))) {
+                    text.append("&#").append((int) ch).append(';');
+                }
+                else if (Character.isHighSurrogate(ch) && ((c + 1) < value.length()) && Character.isLowSurrogate(value.charAt(c + 1))) {
+                    text.append("&#").append(Character.toCodePoint(ch, value.charAt(++c))).append(';');
+                }
+                else if ((ch >= Character.MIN_SURROGATE) && (ch <= Character.MAX_SURROGATE)) {
+                    throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(ch));
+                }
+                else {
+                    text.append(ch);
+                    nonAscii = nonAscii || (ch > 0x7f);
+                }
+            }
+        }
+        if (RECODE && nonAscii) {
+            String escaped = text.substring(start);
+            text.setLength(start);
+            text.append(new String(escaped.getBytes(UTF_8)));
+        }
+    }
+
+    /**
+     * Format a group or element number as four hex digits.
+     */
+    private static String hex4(int value) {
+        String hex = Integer.toHexString(value & 0xffff);
+        return "0000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Get the element name for the given tag, which is the name in the
+     * dictionary, or, if there is none, the group and element in hex.
+     */
+    private String getElementName(AttributeTag tag) {
+        String name = dictionary.getNameFromTag(tag);
+        if (name == null) name = "HEX" + hex4(tag.getGroup()) + hex4(tag.getElement());
+        return name;
+    }
+
+    private void appendXmlAttribute(String name, String value) throws IOException {
+        text.append(' ').append(name).append("=\"");
+        appendEscaped(value, true);
+        text.append('"');
+    }
+
+    /**
+     * Write the collected text once enough has been collected.
+     */
+    private void flushText(boolean force) throws IOException {
+        if (force || (text.length() >= BUFFER_SIZE)) {
+            writer.append(text);
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Get the values of an attribute, or null if they can not be
+     * interpreted as strings.
+     */
+    private static String[] getStringValues(Attribute attribute) {
+        try {
+            return attribute.getStringValues();
+        }
+        catch (DicomException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write each attribute in the list as an element, recursing into
+     * sequence items.
+     */
+    private void writeList(AttributeList attributeList) throws IOException {
+        Iterator<?> i = attributeList.values().iterator();
+        while (i.hasNext()) {
+            Attribute attribute = (Attribute) i.next();
+            AttributeTag tag = attribute.getTag();
+            String name = getElementName(tag);
+
+            // attributes in the order the serializer sorts them
+            text.append('<').append(name);
+            appendXmlAttribute("element", hex4(tag.getElement()));
+            appendXmlAttribute("group", hex4(tag.getGroup()));
+            appendXmlAttribute("vr", ValueRepresentation.getAsString(attribute.getVR()));
+
+            boolean empty = true;
+            if (attribute instanceof SequenceAttribute) {
+                int itemNumber = 0;
+                Iterator<?> si = ((SequenceAttribute) attribute).iterator();
+                while (si.hasNext()) {
+                    SequenceItem item = (SequenceItem) si.next();
+                    if (empty) text.append('>');
+                    empty = false;
+                    itemNumber++;
+                    text.append('<').append(ITEM);
+                    appendXmlAttribute("number", Integer.toString(itemNumber));
+                    AttributeList itemList = item.getAttributeList();
+                    if (itemList.isEmpty())
+                        text.append("/>");
+                    else {
+                        text.append('>');
+                        writeList(itemList);
+                        text.append("</").append(ITEM).append('>');
+                    }
+                }
+            }
+            else {
+                String[] valueList = getStringValues(attribute);
+                if (valueList != null) {
+                    for (int v = 0; v < valueList.length; v++) {
+                        if (empty) text.append('>');
+                        empty = false;
+                        text.append('<').append(VALUE);
+                        appendXmlAttribute("number", Integer.toString(v + 1));
+                        if (valueList[v].length() == 0)
+                            text.append("/>");
+                        else {
+                            text.append('>');
+                            appendEscaped(valueList[v], false);
+                            text.append("</").append(VALUE).append('>');
+                        }
+                    }
+                }
+            }
+            if (empty)
+                text.append("/>");
+            else
+                text.append("</").append(name).append('>');
+            flushText(false);
+        }
+    }
+
+    /**
+     * Write the XML declaration and the given attributes as a document.
+     *
+     * @param attributeList
+     *            Attributes to write.
+     *
+     * @throws IOException
+     *             On failure to write, or if a value can not be represented.
+     */
+    public void write(AttributeList attributeList) throws IOException {
+        text.append(DECLARATION);
+        if (attributeList.isEmpty())
+            text.append('<').append(ROOT).append("/>");
+        else {
+            text.append('<').append(ROOT).append('>');
+            writeList(attributeList);
+            text.append("</").append(ROOT).append('>');
+        }
+        flushText(true);
+        writer.flush();
+    }
+
+    /**
+     * Write the given attributes to an XML file through a buffered file
+     * channel. If writing fails, the partial file is deleted.
+     *
+     * @param attributeList
+     *            Attributes to write.
+     *
+     * @param xmlFile
+     *            File to create or overwrite.
+     *
+     * @param replaceControlCharacters
+     *            If true, replace control characters in values with blanks.
+     *
+     * @throws IOException
+     *             On failure to write, or if a value can not be represented.
+     */
+    public static void writeFile(AttributeList attributeList, File xmlFile, boolean replaceControlCharacters) throws IOException {
+        // replace unmappable characters as String.getBytes does
+        CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        FileOutputStream out = new FileOutputStream(xmlFile);
+        boolean ok = false;
+        try {
+            Writer writer = Channels.newWriter(out.getChannel(), encoder, BUFFER_SIZE);
+            new XmlRenderer(writer, replaceControlCharacters).write(attributeList);
+            writer.close();
+            ok = true;
+        }
+        finally {
+            out.close();
+            if (!ok) xmlFile.delete();
+        }
+    }
+}
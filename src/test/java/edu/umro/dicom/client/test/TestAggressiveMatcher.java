@@ -0,0 +1,93 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import edu.umro.dicom.client.AggressiveMatcher;
+
+/**
+ * Test that aggressive anonymization replaces values the way it is
+ * documented to.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestAggressiveMatcher {
+
+    private static AggressiveMatcher makeMatcher(String... keyAndReplacement) {
+        HashMap<String, String> replaceList = new HashMap<String, String>();
+        for (int k = 0; k < keyAndReplacement.length; k += 2) {
+            replaceList.put(keyAndReplacement[k], keyAndReplacement[k + 1]);
+        }
+        return new AggressiveMatcher(replaceList);
+    }
+
+    @Test
+    public void ignoresCase() {
+        AggressiveMatcher matcher = makeMatcher("smith", "xxx");
+        assertEquals("Dr. xxx and xxx", matcher.replace("Dr. SMITH and Smith"));
+    }
+
+    @Test
+    public void longestMatchWins() {
+        AggressiveMatcher matcher = makeMatcher("jo", "1", "john", "2", "johnson", "3");
+        assertEquals("3 2 1e", matcher.replace("Johnson John Joe"));
+    }
+
+    @Test
+    public void leftmostMatchWins() {
+        // "bcd" also appears in "abcd", but "abc" starts first
+        AggressiveMatcher matcher = makeMatcher("abc", "X", "bcd", "Y");
+        assertEquals("Xd", matcher.replace("abcd"));
+        assertEquals("xY", matcher.replace("xbcd"));
+        assertEquals("XdXd", matcher.replace("abcdabcd"));
+    }
+
+    @Test
+    public void matchesDoNotOverlap() {
+        AggressiveMatcher matcher = makeMatcher("aa", "b");
+        assertEquals("bba", matcher.replace("aaaaa"));
+    }
+
+    @Test
+    public void replacementIsNotSearchedAgain() {
+        AggressiveMatcher matcher = makeMatcher("orig", "origin", "in", "out");
+        assertEquals("origin origin out", matcher.replace("orig orig in"));
+    }
+
+    @Test
+    public void shorterReplacementAtEnd() {
+        // the loop that this replaced left such values unchanged
+        AggressiveMatcher matcher = makeMatcher("bore", "-", "big", "---");
+        assertEquals("Brilliance --- - ---", matcher.replace("Brilliance Big Bore big"));
+    }
+
+    @Test
+    public void unchangedTextIsSameInstance() {
+        AggressiveMatcher matcher = makeMatcher("smith", "xxx");
+        String text = "CT CHEST W/O CONTRAST";
+        assertSame(text, matcher.replace(text));
+        String empty = "";
+        assertSame(empty, makeMatcher().replace(empty));
+    }
+}
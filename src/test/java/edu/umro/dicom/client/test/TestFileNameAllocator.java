@@ -0,0 +1,97 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umro.dicom.client.FileNameAllocator;
+
+/**
+ * Test that file names are numbered around existing and reserved files,
+ * ignoring case.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestFileNameAllocator {
+
+    private static final List<String> DICOM = Collections.singletonList(".DCM");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void unusedPrefixIsKept() {
+        FileNameAllocator allocator = new FileNameAllocator(temporaryFolder.getRoot());
+        assertEquals("1234_CT_2_0001", allocator.reserve("1234_CT_2_0001", DICOM));
+        assertEquals("reserved name is numbered", "1234_CT_2_0001_1", allocator.reserve("1234_CT_2_0001", DICOM));
+    }
+
+    @Test
+    public void existingFilesAreNumberedAroundIgnoringCase() throws Exception {
+        temporaryFolder.newFile("1234_rtplan.dcm");
+        temporaryFolder.newFile("1234_RTPLAN_1.Dcm");
+        temporaryFolder.newFile("1234_RtPlan_2.DCM");
+        FileNameAllocator allocator = new FileNameAllocator(temporaryFolder.getRoot());
+
+        assertEquals("1234_RTPLAN_3", allocator.reserve("1234_RTPLAN", DICOM));
+        assertEquals("prefix in other case shares numbers", "1234_rtplan_4", allocator.reserve("1234_rtplan", DICOM));
+        assertEquals("suffix in other case is the same file", "1234_RTPLAN_5", allocator.reserve("1234_RTPLAN", Collections.singletonList(".dcm")));
+    }
+
+    @Test
+    public void everySuffixMustBeAvailable() throws Exception {
+        // only a sidecar of the first name exists
+        temporaryFolder.newFile("1234_CT.xml");
+        FileNameAllocator allocator = new FileNameAllocator(temporaryFolder.getRoot());
+        List<String> suffixList = Arrays.asList(".DCM", ".XML", ".TXT");
+        assertEquals("1234_CT_1", allocator.reserve("1234_CT", suffixList));
+        assertEquals("sidecar names are reserved too", "1234_CT_1_1", allocator.reserve("1234_CT_1", Collections.singletonList(".txt")));
+    }
+
+    @Test
+    public void threadsGetDifferentNames() throws Exception {
+        final FileNameAllocator allocator = new FileNameAllocator(temporaryFolder.getRoot());
+        final List<String> nameList = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threadList = new Thread[4];
+        for (int t = 0; t < threadList.length; t++) {
+            threadList[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        nameList.add(allocator.reserve((i % 2 == 0) ? "name" : "NAME", DICOM).toLowerCase());
+                    }
+                }
+            });
+            threadList[t].start();
+        }
+        for (Thread thread : threadList) {
+            thread.join();
+        }
+        assertEquals(400, nameList.size());
+        assertEquals("no name was given twice", nameList.size(), new HashSet<String>(nameList).size());
+    }
+}
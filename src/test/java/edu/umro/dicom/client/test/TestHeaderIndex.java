@@ -0,0 +1,177 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DateAttribute;
+import com.pixelmed.dicom.DecimalStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.LongStringAttribute;
+import com.pixelmed.dicom.PersonNameAttribute;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+
+import edu.umro.dicom.client.HeaderIndex;
+
+/**
+ * Test that headers saved in the header index are recreated as they were.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestHeaderIndex {
+
+    /** Private creator tag found in the test files. */
+    private static final AttributeTag PRIVATE_CREATOR = new AttributeTag(0x00e1, 0x0010);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Make a file for the index to describe. Only its name, size, and date
+     * matter.
+     */
+    private File makeFile(String name) throws IOException {
+        File file = temporaryFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(name.getBytes());
+        out.close();
+        return file;
+    }
+
+    private AttributeList makeHeader() throws DicomException {
+        AttributeList attributeList = new AttributeList();
+
+        Attribute position = new DecimalStringAttribute(TagFromName.ImagePositionPatient);
+        position.addValue("1.5");
+        position.addValue("2.5");
+        position.addValue("-3.5");
+        attributeList.put(position);
+
+        Attribute creator = new LongStringAttribute(PRIVATE_CREATOR);
+        creator.addValue("ELSCINT1");
+        attributeList.put(creator);
+
+        attributeList.put(new DateAttribute(TagFromName.PatientBirthDate));
+
+        Attribute name = new PersonNameAttribute(TagFromName.PatientName);
+        name.addValue("Doe^Jane");
+        attributeList.put(name);
+
+        Attribute uid = new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID);
+        uid.addValue("1.2.3.4");
+        attributeList.put(uid);
+        return attributeList;
+    }
+
+    /**
+     * Check that two headers have the same attributes, value representations
+     * and values.
+     */
+    private void assertSameHeader(AttributeList expected, AttributeList actual) throws DicomException {
+        assertEquals("number of attributes", expected.size(), actual.size());
+        for (Object o : expected.values()) {
+            Attribute e = (Attribute) o;
+            Attribute a = actual.get(e.getTag());
+            assertNotNull("attribute " + e.getTag(), a);
+            assertEquals("VR of " + e.getTag(), new String(e.getVR()), new String(a.getVR()));
+            assertEquals("VM of " + e.getTag(), e.getVM(), a.getVM());
+            String[] ev = e.getStringValues();
+            String[] av = a.getStringValues();
+            for (int v = 0; v < e.getVM(); v++) {
+                assertEquals("value " + v + " of " + e.getTag(), ev[v], av[v]);
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File indexFile = new File(temporaryFolder.getRoot(), "HeaderIndex.dat");
+        File file = makeFile("a.dcm");
+        AttributeList header = makeHeader();
+
+        HeaderIndex index = new HeaderIndex(indexFile, 10);
+        assertTrue("header is indexed", index.put(file, header));
+        assertSameHeader(header, index.get(file));
+        index.save();
+
+        HeaderIndex reloaded = new HeaderIndex(indexFile, 10);
+        assertEquals("entries after reload", 1, reloaded.size());
+        AttributeList saved = reloaded.get(file);
+        assertNotNull("header after reload", saved);
+        assertSameHeader(header, saved);
+        assertEquals("empty attribute has no values", 0, saved.get(TagFromName.PatientBirthDate).getVM());
+        assertEquals("all position values", 3, saved.get(TagFromName.ImagePositionPatient).getVM());
+    }
+
+    @Test
+    public void changedFileIsNotUsed() throws Exception {
+        File file = makeFile("b.dcm");
+        HeaderIndex index = new HeaderIndex(null, 10);
+        index.put(file, makeHeader());
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+        assertNull("changed file", index.get(file));
+        assertEquals("entry for changed file is dropped", 0, index.size());
+    }
+
+    @Test
+    public void sequenceIsNotIndexed() throws Exception {
+        File file = makeFile("c.dcm");
+        AttributeList header = makeHeader();
+        header.put(new SequenceAttribute(TagFromName.ContentSequence));
+        HeaderIndex index = new HeaderIndex(null, 10);
+        assertTrue("header with sequence is not indexed", !index.put(file, header));
+        assertNull("no entry", index.get(file));
+    }
+
+    @Test
+    public void leastRecentlyUsedAreDropped() throws Exception {
+        File indexFile = new File(temporaryFolder.getRoot(), "HeaderIndex.dat");
+        HeaderIndex index = new HeaderIndex(indexFile, 2);
+        File[] fileList = { makeFile("1.dcm"), makeFile("2.dcm"), makeFile("3.dcm") };
+        for (File file : fileList) {
+            index.put(file, makeHeader());
+            Thread.sleep(5);
+        }
+        index.get(fileList[0]);
+        index.save();
+
+        HeaderIndex reloaded = new HeaderIndex(indexFile, 2);
+        assertEquals("entries after reload", 2, reloaded.size());
+        assertNotNull("recently used entry is kept", reloaded.get(fileList[0]));
+        assertNull("least recently used entry is dropped", reloaded.get(fileList[1]));
+        assertNotNull("newest entry is kept", reloaded.get(fileList[2]));
+    }
+}
@@ -0,0 +1,152 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umro.dicom.client.Anonymize;
+import edu.umro.dicom.client.PatientIdGenerator;
+import edu.umro.dicom.client.UidJournal;
+
+/**
+ * Test that generated patient IDs follow the template, never repeat, and
+ * do not reuse IDs that were given before.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestPatientIdGenerator {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Opening a journal reads the configuration, so use the one in the
+     * source tree unless another was given.
+     */
+    @BeforeClass
+    public static void setConfigFile() {
+        if (System.getProperty("dicomclient.config") == null) System.setProperty("dicomclient.config", "src/main/resources/DicomClientConfig.xml");
+    }
+
+    /**
+     * Generate every ID of a template and check that each is generated
+     * exactly once and matches the template.
+     */
+    private static void assertPermutation(String template, long expectedSize, String regex) {
+        for (long seed = 0; seed < 5; seed++) {
+            PatientIdGenerator generator = new PatientIdGenerator(template, new Random(seed));
+            assertEquals("size of " + template, expectedSize, generator.size());
+            HashSet<String> seen = new HashSet<String>();
+            String id;
+            while ((id = generator.next()) != null) {
+                assertTrue(id + " matches " + template, id.matches(regex));
+                assertTrue(id + " is not repeated", seen.add(id));
+            }
+            assertEquals("every ID of " + template, expectedSize, seen.size());
+            assertNull("nothing after the last ID", generator.next());
+        }
+    }
+
+    @Test
+    public void digits() {
+        assertPermutation("$###", 1000, "\\$[0-9]{3}");
+    }
+
+    @Test
+    public void lettersAndDigits() {
+        assertPermutation("?*-#", 26 * 36 * 10, "[A-Z][0-9A-Z]-[0-9]");
+    }
+
+    @Test
+    public void sizeThatIsNotAPowerOfTwo() {
+        // odd sizes need results that are too large to be permuted again
+        assertPermutation("??", 26 * 26, "[A-Z]{2}");
+        assertPermutation("#", 10, "[0-9]");
+    }
+
+    @Test
+    public void literals() {
+        assertPermutation("%#%?%*#", 10, "#\\?\\*[0-9]");
+        assertPermutation("X", 1, "X");
+    }
+
+    @Test
+    public void idsFromJournalAreSkipped() throws Exception {
+        // a previous run gave out some of the IDs of the template
+        File journalFile = new File(temporaryFolder.getRoot(), "uid.jnl");
+        HashSet<String> usedList = new HashSet<String>();
+        UidJournal journal = UidJournal.open(journalFile, new IgnoringHandler(), 1000);
+        for (int i = 0; i < 10; i += 3) {
+            String id = "J" + i;
+            journal.addPatient("Orig" + i, id);
+            usedList.add(id);
+        }
+        journal.close();
+
+        Anonymize.openJournal(journalFile);
+        try {
+            Anonymize.setTemplate("J#");
+            HashSet<String> seen = new HashSet<String>();
+            for (int i = 0; i < 10 - usedList.size(); i++) {
+                String id = Anonymize.makeUniquePatientId();
+                assertTrue(id + " was not used by the previous run", !usedList.contains(id));
+                assertTrue(id + " is not repeated", seen.add(id));
+            }
+            try {
+                Anonymize.makeUniquePatientId();
+                fail("all IDs of the template have been used");
+            }
+            catch (RuntimeException e) {
+                // expected
+            }
+        }
+        finally {
+            Anonymize.closeJournal();
+        }
+    }
+
+    /** Ignores the records of a journal. */
+    private static class IgnoringHandler implements UidJournal.Handler {
+        public void uid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) {
+        }
+
+        public void patient(String originalPatientId, String anonymizedPatientId) {
+        }
+
+        public void forgetPatient(String originalPatientId) {
+        }
+
+        public void clear() {
+        }
+
+        public void series(String originalPatientId, String seriesKey) {
+        }
+    }
+}
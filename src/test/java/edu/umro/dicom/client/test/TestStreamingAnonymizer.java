@@ -0,0 +1,110 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeFactory;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.TagFromName;
+
+import edu.umro.dicom.client.DicomClient;
+import edu.umro.dicom.client.StreamingAnonymizer;
+import edu.umro.dicom.client.Util;
+import edu.umro.util.Utility;
+
+/**
+ * Test that files written by streaming the pixel data are the same as files
+ * written by reading all of the original.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestStreamingAnonymizer {
+
+    private static final File DICOM_DIR = new File("src/test/resources/dicom/99999999");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Make the same changes to the header that anonymizing would: replace a
+     * value and the meta information.
+     */
+    private static void change(AttributeList attributeList, String transferSyntax) throws Exception {
+        Attribute patientId = AttributeFactory.newAttribute(TagFromName.PatientID);
+        patientId.addValue("1234");
+        attributeList.put(patientId);
+        FileMetaInformation.addFileMetaInformation(attributeList, transferSyntax, DicomClient.PROJECT_NAME);
+    }
+
+    /**
+     * Write a file both ways with each transfer syntax that it can be
+     * streamed with, and check that the results are identical.
+     */
+    private void assertSameAsWhole(String fileName) throws Exception {
+        File file = new File(DICOM_DIR, fileName);
+        StreamingAnonymizer streamer = StreamingAnonymizer.open(file);
+        assertNotNull(fileName + " can be streamed", streamer);
+
+        String[] transferSyntaxList = { Util.DEFAULT_TRANSFER_SYNTAX, streamer.getTransferSyntax() };
+        for (String transferSyntax : transferSyntaxList) {
+            if (!streamer.canWrite(transferSyntax)) continue;
+
+            File wholeFile = temporaryFolder.newFile();
+            AttributeList wholeList = Util.readDicomFile(file);
+            change(wholeList, transferSyntax);
+            wholeList.write(wholeFile, transferSyntax, true, true);
+
+            File streamedFile = temporaryFolder.newFile();
+            streamer = StreamingAnonymizer.open(file);
+            AttributeList header = streamer.readHeader();
+            assertNull("pixel data is not read", header.get(TagFromName.PixelData));
+            change(header, transferSyntax);
+            streamer.write(header, streamedFile, transferSyntax);
+
+            assertTrue(fileName + " written with " + transferSyntax + " is the same",
+                    Arrays.equals(Utility.readBinFile(wholeFile), Utility.readBinFile(streamedFile)));
+        }
+    }
+
+    @Test
+    public void ct() throws Exception {
+        assertSameAsWhole("99999999_CT_2_0001.DCM");
+    }
+
+    @Test
+    public void rtimage() throws Exception {
+        assertSameAsWhole("99999999_RTIMAGE_0001.DCM");
+    }
+
+    @Test
+    public void rtdose() throws Exception {
+        assertSameAsWhole("99999999_RTDOSE_214.DCM");
+    }
+}
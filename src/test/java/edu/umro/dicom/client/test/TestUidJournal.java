@@ -0,0 +1,189 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umro.dicom.client.UidJournal;
+import edu.umro.util.Utility;
+
+/**
+ * Test that a UID journal gives back what was written to it, after being
+ * interrupted and after being compacted.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestUidJournal {
+
+    /** Long enough that only sync and close write the journal. */
+    private static final long SYNC_INTERVAL = 60 * 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /** Collects the records of a journal as text. */
+    private static class Recorder implements UidJournal.Handler {
+        final ArrayList<String> recordList = new ArrayList<String>();
+
+        public void uid(String originalPatientId, String anonymizedPatientId, String originalUid, String anonymizedUid) {
+            recordList.add("uid " + originalPatientId + " " + anonymizedPatientId + " " + originalUid + " " + anonymizedUid);
+        }
+
+        public void patient(String originalPatientId, String anonymizedPatientId) {
+            recordList.add("patient " + originalPatientId + " " + anonymizedPatientId);
+        }
+
+        public void forgetPatient(String originalPatientId) {
+            recordList.add("forget " + originalPatientId);
+        }
+
+        public void clear() {
+            recordList.add("clear");
+        }
+
+        public void series(String originalPatientId, String seriesKey) {
+            recordList.add("series " + originalPatientId + " " + seriesKey);
+        }
+    }
+
+    private File journalFile() {
+        return new File(temporaryFolder.getRoot(), "uid.jnl");
+    }
+
+    /**
+     * Copy the journal as it is on disk, which is what would be left if the
+     * process died now.
+     */
+    private File copyJournal() throws IOException {
+        File copy = new File(temporaryFolder.getRoot(), "copy.jnl");
+        byte[] content = Utility.readBinFile(journalFile());
+        FileOutputStream out = new FileOutputStream(copy);
+        out.write(content);
+        out.close();
+        return copy;
+    }
+
+    private static ArrayList<String> replay(File file) throws IOException {
+        Recorder recorder = new Recorder();
+        UidJournal journal = UidJournal.open(file, recorder, SYNC_INTERVAL);
+        journal.close();
+        return recorder.recordList;
+    }
+
+    @Test
+    public void recordsAreReplayed() throws Exception {
+        UidJournal journal = UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+        journal.addPatient("Orig1", "Anon1");
+        journal.addUid("Orig1", "Anon1", "1.2.3", "2.25.1");
+        journal.addUid("Orig1", "Anon1", "1.2.4", null);
+        journal.addSeries("Orig1", "series1");
+        journal.sync();
+
+        // the process dies without closing the journal
+        ArrayList<String> recordList = replay(copyJournal());
+        journal.close();
+
+        assertEquals(4, recordList.size());
+        assertEquals("patient Orig1 Anon1", recordList.get(0));
+        assertEquals("uid Orig1 Anon1 1.2.3 2.25.1", recordList.get(1));
+        assertEquals("uid Orig1 Anon1 1.2.4 null", recordList.get(2));
+        assertEquals("series Orig1 series1", recordList.get(3));
+        assertEquals("closed journal has the same records", recordList, replay(journalFile()));
+    }
+
+    @Test
+    public void truncatedRecordIsDiscarded() throws Exception {
+        UidJournal journal = UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+        journal.addPatient("Orig1", "Anon1");
+        journal.addUid("Orig1", "Anon1", "1.2.3", "2.25.1");
+        journal.close();
+        long length = journalFile().length();
+
+        // the last record is cut off part way through
+        journal = UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+        journal.addUid("Orig1", "Anon1", "1.2.4", "2.25.2");
+        journal.sync();
+        File copy = copyJournal();
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(copy, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        Recorder recorder = new Recorder();
+        journal = UidJournal.open(copy, recorder, SYNC_INTERVAL);
+        assertEquals("complete records", 2, recorder.recordList.size());
+        assertEquals("partial record is removed", length, copy.length());
+
+        // records added after the damage are kept
+        journal.addUid("Orig1", "Anon1", "1.2.5", "2.25.3");
+        journal.close();
+        ArrayList<String> recordList = replay(copy);
+        assertEquals(3, recordList.size());
+        assertEquals("uid Orig1 Anon1 1.2.5 2.25.3", recordList.get(2));
+    }
+
+    @Test
+    public void compactingKeepsRecordsInEffect() throws Exception {
+        UidJournal journal = UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+        journal.addPatient("Old", "AnonOld");
+        journal.addUid("Old", "AnonOld", "1.2.3", "2.25.1");
+        journal.clear();
+        journal.addPatient("Orig1", "Anon1");
+        journal.addUid("Orig1", "Anon1", "1.2.3", "2.25.2");
+        journal.addPatient("Orig2", "Anon2");
+        journal.addUid("Orig2", "Anon2", "1.2.3", "2.25.3");
+        journal.addSeries("Orig2", "series2");
+        journal.forgetPatient("ORIG2");
+        journal.close();
+
+        ArrayList<String> recordList = replay(journalFile());
+        assertEquals(2, recordList.size());
+        assertEquals("patient Orig1 Anon1", recordList.get(0));
+        assertEquals("uid Orig1 Anon1 1.2.3 2.25.2", recordList.get(1));
+        assertTrue("no file left from compacting", !new File(journalFile().getAbsolutePath() + ".tmp").exists());
+    }
+
+    @Test
+    public void recordAfterCloseIsDropped() throws Exception {
+        UidJournal journal = UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+        journal.addPatient("Orig1", "Anon1");
+        journal.close();
+        journal.addPatient("Orig2", "Anon2");
+        journal.close();
+        assertEquals(1, replay(journalFile()).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsRefused() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(journalFile(), "rw");
+        file.write("not a journal".getBytes("UTF-8"));
+        file.close();
+        UidJournal.open(journalFile(), new Recorder(), SYNC_INTERVAL);
+    }
+}
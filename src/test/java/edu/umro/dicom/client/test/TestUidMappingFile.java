@@ -0,0 +1,133 @@
+package edu.umro.dicom.client.test;
+
+/*
+ * Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umro.dicom.client.UidMappingFile;
+
+/**
+ * Test that UIDs converted from a preload file are found in the mapping
+ * file.
+ *
+ * @author Jim Irrer irrer@umich.edu
+ *
+ */
+public class TestUidMappingFile {
+
+    /** Number of patients in the preload file. */
+    private static final int PATIENT_COUNT = 3;
+
+    /** Number of UIDs of each patient. */
+    private static final int UID_COUNT = 50;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static String originalPatientId(int p) {
+        return "Orig" + p;
+    }
+
+    private static String anonymizedPatientId(int p) {
+        return "Anon" + p;
+    }
+
+    private static String originalUid(int u) {
+        return "1.2.3." + u;
+    }
+
+    private static String anonymizedUid(int p, int u) {
+        return "2.25." + p + "." + u;
+    }
+
+    /**
+     * Write a preload file and convert it to a mapping file.
+     */
+    private File makeMappingFile() throws Exception {
+        StringBuffer xml = new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<AnonymizePreload>\n");
+        for (int p = 0; p < PATIENT_COUNT; p++) {
+            xml.append("  <PatientID orig=\"" + originalPatientId(p) + "\" anon=\"" + anonymizedPatientId(p) + "\">\n");
+            // the same original UIDs for each patient, in descending order
+            for (int u = UID_COUNT - 1; u >= 0; u--) {
+                xml.append("    <UID orig=\"" + originalUid(u) + "\" anon=\"" + anonymizedUid(p, u) + "\"/>\n");
+            }
+            xml.append("  </PatientID>\n");
+        }
+        xml.append("</AnonymizePreload>\n");
+
+        File xmlFile = temporaryFolder.newFile("preload.xml");
+        FileOutputStream out = new FileOutputStream(xmlFile);
+        out.write(xml.toString().getBytes("UTF-8"));
+        out.close();
+
+        File mappingFile = new File(temporaryFolder.getRoot(), "preload.map");
+        assertEquals("UIDs converted", PATIENT_COUNT * UID_COUNT, UidMappingFile.convert(xmlFile, mappingFile));
+        assertTrue("converted file is recognized", UidMappingFile.isMappingFile(mappingFile));
+        assertTrue("preload file is not a mapping file", !UidMappingFile.isMappingFile(xmlFile));
+        return mappingFile;
+    }
+
+    @Test
+    public void everyUidIsFound() throws Exception {
+        UidMappingFile mappingFile = UidMappingFile.open(makeMappingFile());
+        assertEquals("records", PATIENT_COUNT * UID_COUNT, mappingFile.size());
+        for (int p = 0; p < PATIENT_COUNT; p++) {
+            for (int u = 0; u < UID_COUNT; u++) {
+                UidMappingFile.Mapping mapping = mappingFile.lookup(anonymizedPatientId(p), originalUid(u));
+                assertNotNull("UID " + u + " of patient " + p, mapping);
+                assertEquals(originalPatientId(p), mapping.originalPatientId);
+                assertEquals(anonymizedUid(p, u), mapping.anonymizedUid);
+            }
+        }
+    }
+
+    @Test
+    public void unknownUidIsNotFound() throws Exception {
+        UidMappingFile mappingFile = UidMappingFile.open(makeMappingFile());
+        assertNull("unknown UID", mappingFile.lookup(anonymizedPatientId(0), "1.2.3"));
+        assertNull("partial patient ID", mappingFile.lookup("Anon", originalUid(0)));
+        assertNull("patient that is not in the file", mappingFile.lookup(anonymizedPatientId(PATIENT_COUNT), originalUid(0)));
+    }
+
+    @Test
+    public void ignoredPatientIsNotFound() throws Exception {
+        UidMappingFile mappingFile = UidMappingFile.open(makeMappingFile());
+        mappingFile.ignorePatient(originalPatientId(1).toUpperCase());
+        assertNull("ignored patient", mappingFile.lookup(anonymizedPatientId(1), originalUid(0)));
+        assertNotNull("other patient", mappingFile.lookup(anonymizedPatientId(2), originalUid(0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsRefused() throws Exception {
+        File file = temporaryFolder.newFile("other.map");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("DCUIDMAX and then some more bytes".getBytes("UTF-8"));
+        out.close();
+        UidMappingFile.open(file);
+    }
+}